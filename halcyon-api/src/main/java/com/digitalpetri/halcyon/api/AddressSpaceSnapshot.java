@@ -0,0 +1,81 @@
+/*
+ * Halcyon OPC-UA Server
+ *
+ * Copyright (C) 2014 Kevin Herron
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.digitalpetri.halcyon.api;
+
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import com.digitalpetri.opcua.server.api.nodes.UaNode;
+import org.opcfoundation.ua.builtintypes.NodeId;
+
+/**
+ * The address space a connection had the last time the server ran with the same configuration, restored from disk.
+ * <p>
+ * The server saves a snapshot of every connection's nodes and references (object and variable nodes reachable from
+ * its root folder through hierarchical references) in the background after it's added. On the next start, if the
+ * connection's configuration hasn't changed, {@link ConnectionContext#getSnapshot()} returns it, and the connection can
+ * take its nodes from here instead of rebuilding them from its device or tag database:
+ * <pre>
+ * Optional&lt;AddressSpaceSnapshot&gt; snapshot = context.getSnapshot();
+ *
+ * if (snapshot.isPresent()) {
+ *     snapshot.get().forEach(node -&gt; nodes.put(node.getNodeId(), node));
+ *     context.getExecutorService().execute(this::revalidate);
+ * } else {
+ *     buildNodes();
+ * }
+ * </pre>
+ * Nodes are decoded from a memory-mapped file as they're asked for; each call returns a new instance. Variable values
+ * are the ones current when the snapshot was saved.
+ * <p>
+ * Every attribute of the object and variable node classes is saved. Those are the only node classes a snapshot can
+ * hold: a connection with a node of any other class reachable from its root folder, e.g. a method or a type, gets no
+ * snapshot and {@link ConnectionContext#getSnapshot()} stays empty.
+ * <p>
+ * A restored connection should check its source in the background and, if the address space there has changed,
+ * rebuild its nodes and then call {@link #invalidate()}.
+ */
+public interface AddressSpaceSnapshot {
+
+    /**
+     * @param nodeId the {@link NodeId} of the node to restore.
+     * @return the node, or {@link Optional#empty()} if it isn't in the snapshot.
+     */
+    Optional<UaNode> getNode(NodeId nodeId);
+
+    /**
+     * Restore every node in the snapshot, parents before their children.
+     *
+     * @param consumer called with each node.
+     */
+    void forEach(Consumer<UaNode> consumer);
+
+    /**
+     * @return the number of nodes in the snapshot.
+     */
+    int size();
+
+    /**
+     * Tell the server this snapshot no longer matches the connection's source. The server replaces it with a snapshot
+     * of the connection's current address space, in the background.
+     */
+    void invalidate();
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Halcyon OPC-UA Server
+ *
+ * Copyright (C) 2014 Kevin Herron
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.digitalpetri.halcyon.api;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.core.ReadValueId;
+import org.opcfoundation.ua.core.TimestampsToReturn;
+import org.opcfoundation.ua.core.WriteValue;
+
+/**
+ * A {@link Connection} whose reads and writes are asynchronous requests to a device that limits how many items fit in
+ * one request and how many requests may be outstanding at once, as most PLC protocols do.
+ * <p>
+ * The server splits reads and writes into batches of at most {@link #getMaxBatchSize()} items and keeps up to
+ * {@link #getMaxInFlight()} of them outstanding, queueing the rest, so the connection only ever sees requests it can
+ * send as-is. {@code readAsync} and {@code writeAsync} must not block.
+ */
+public interface AsyncConnection extends Connection {
+
+    /**
+     * Read a batch of at most {@link #getMaxBatchSize()} values.
+     *
+     * @param readValueIds the values to read.
+     * @param maxAge       the maximum age of a cached value the client will accept, in milliseconds.
+     * @param timestamps   the timestamps to return.
+     * @return a {@link CompletionStage} completed with one {@link DataValue} per {@link ReadValueId}, in order.
+     */
+    CompletionStage<List<DataValue>> readAsync(List<ReadValueId> readValueIds,
+                                               Double maxAge,
+                                               TimestampsToReturn timestamps);
+
+    /**
+     * Write a batch of at most {@link #getMaxBatchSize()} values.
+     *
+     * @param writeValues the values to write.
+     * @return a {@link CompletionStage} completed with one {@link StatusCode} per {@link WriteValue}, in order.
+     */
+    CompletionStage<List<StatusCode>> writeAsync(List<WriteValue> writeValues);
+
+    /**
+     * @return the largest number of items to put in one {@code readAsync} or {@code writeAsync} call.
+     */
+    default int getMaxBatchSize() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return the largest number of {@code readAsync} and {@code writeAsync} calls that may be outstanding at once.
+     */
+    default int getMaxInFlight() {
+        return 1;
+    }
+
+    @Override
+    default boolean isNonBlocking() {
+        return true;
+    }
+
+    @Override
+    default void read(List<ReadValueId> readValueIds,
+                      Double maxAge,
+                      TimestampsToReturn timestamps,
+                      CompletableFuture<List<DataValue>> future) {
+
+        readAsync(readValueIds, maxAge, timestamps).whenComplete((values, ex) -> {
+            if (values != null) future.complete(values);
+            else future.completeExceptionally(ex);
+        });
+    }
+
+    @Override
+    default void write(List<WriteValue> writeValues, CompletableFuture<List<StatusCode>> future) {
+        writeAsync(writeValues).whenComplete((statusCodes, ex) -> {
+            if (statusCodes != null) future.complete(statusCodes);
+            else future.completeExceptionally(ex);
+        });
+    }
+
+}
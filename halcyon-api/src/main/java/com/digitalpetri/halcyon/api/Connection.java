@@ -32,4 +32,46 @@ public interface Connection extends AttributeManager, MonitoringManager, NodeMan
      */
     ConnectionContext getContext();
 
+    /**
+     * Connections whose {@code read} and {@code write} complete without blocking, e.g. from values already held in
+     * memory, can return {@code true} here to have requests that target only this connection invoked directly on the
+     * calling thread instead of being handed off to an executor.
+     *
+     * @return {@code true} if {@code read} and {@code write} never block.
+     */
+    default boolean isNonBlocking() {
+        return false;
+    }
+
+    /**
+     * Connections that return {@code true} here leave sampling of their monitored items to the server, which samples
+     * them in batches, grouped by sampling interval, through {@code read}.
+     * <p>
+     * The {@code onMonitoredItems*} callbacks are still made, before the server starts sampling, so the connection can
+     * revise sampling intervals; it should not sample the items itself.
+     *
+     * @return {@code true} if the server should sample this connection's monitored items.
+     */
+    default boolean isSampledByServer() {
+        return false;
+    }
+
+    /**
+     * Connections to a remote device can return {@code false} here while the link is down. If the connection has a
+     * write journal configured, writes made in the meantime are queued and replayed once this returns {@code true}
+     * again, rather than being passed to {@code write} to fail.
+     *
+     * @return {@code true} if the connection can currently reach its device.
+     */
+    default boolean isConnected() {
+        return true;
+    }
+
+    /**
+     * Called when this connection is removed from the server, either because its configuration file was deleted or
+     * because it's being replaced by a reloaded instance. Release sockets, scheduled tasks and the like here.
+     */
+    default void shutdown() {
+    }
+
 }
@@ -19,6 +19,7 @@
 
 package com.digitalpetri.halcyon.api;
 
+import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.regex.Pattern;
@@ -89,7 +90,8 @@ public interface ConnectionContext {
      * connection.
      * <p>
      * The {@link NodeId} is built by prefixing the supplied value with
-     * "[{@link #getName()}]".
+     * "[{@link #getName()}]". Equal values return the same {@link NodeId} instance for as long as it's referenced
+     * elsewhere, so there is no need to cache the results.
      *
      * @param value The value of the {@link NodeId}, before the prefix is applied.
      * @return A {@link NodeId} suitable for use as representing a node belonging to
@@ -98,8 +100,40 @@ public interface ConnectionContext {
      */
     NodeId nodeId(Object value);
 
+    /**
+     * Create a numeric {@link NodeId} for the tag with the given handle.
+     * <p>
+     * The UInt32 identifier holds the connection's slot in its high bits and {@code handle} in its low
+     * {@link #HANDLE_BITS} bits, so the server routes it with an array index instead of parsing a "[name]" prefix, and
+     * the connection can recover the handle with {@link #handle(NodeId)} to index its own arrays, e.g. a
+     * {@link TagTable}.
+     * <p>
+     * A connection keeps its slot when reloaded and, as long as the server's slots file is kept, across restarts, so
+     * handle NodeIds held by clients stay valid.
+     *
+     * @param handle the tag handle, between 0 and {@link #MAX_HANDLE}.
+     * @return a {@link NodeId} belonging to this connection.
+     * @throws IllegalArgumentException if {@code handle} is out of range.
+     * @throws IllegalStateException    if no slot was available for this connection.
+     */
+    default NodeId handleNodeId(int handle) {
+        throw new IllegalStateException("handle NodeIds not supported; connection=" + getName());
+    }
+
+    /**
+     * Recover the handle from a {@link NodeId} created by {@link #handleNodeId(int)}.
+     *
+     * @param nodeId a {@link NodeId}.
+     * @return the handle, or -1 if {@code nodeId} isn't one of this connection's handle NodeIds.
+     */
+    default int handle(NodeId nodeId) {
+        return -1;
+    }
+
     /**
      * A convenience method for creating {@link QualifiedName}s that belong to the connection namespace.
+     * <p>
+     * Like {@link #nodeId(Object)}, equal names return the same instance while it's in use.
      *
      * @param s The String to create the {@link QualifiedName} with.
      * @return A {@link QualifiedName} belonging to the connection namespace.
@@ -111,6 +145,17 @@ public interface ConnectionContext {
      */
     int getNamespaceIndex();
 
+    /**
+     * Get the {@link AddressSpaceSnapshot} saved by a previous run of this connection with an identical configuration.
+     * <p>
+     * Empty if snapshots are disabled, this is the connection's first run, or its configuration has changed since.
+     *
+     * @return the snapshot to restore this connection's nodes from, if there is one.
+     */
+    default Optional<AddressSpaceSnapshot> getSnapshot() {
+        return Optional.empty();
+    }
+
     /**
      * A {@link Pattern} that will match on Strings starting with a connection name surrounded by square brackets.
      * <p>
@@ -120,4 +165,15 @@ public interface ConnectionContext {
      */
     public static final Pattern CONNECTION_PREFIX_PATTERN = Pattern.compile("^\\[(.+?)\\](.*)");
 
+    /**
+     * The number of low bits of a handle NodeId's identifier that hold the tag handle. The remaining high bits hold the
+     * connection's slot, allowing up to 4096 connections with handle NodeIds.
+     */
+    public static final int HANDLE_BITS = 20;
+
+    /**
+     * The largest handle that can be encoded in a handle NodeId.
+     */
+    public static final int MAX_HANDLE = (1 << HANDLE_BITS) - 1;
+
 }
@@ -0,0 +1,67 @@
+/*
+ * Halcyon OPC-UA Server
+ *
+ * Copyright (C) 2014 Kevin Herron
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.digitalpetri.halcyon.api;
+
+import java.util.List;
+import java.util.Optional;
+
+import com.digitalpetri.opcua.server.api.Reference;
+import com.digitalpetri.opcua.server.api.nodes.Node;
+import com.digitalpetri.opcua.server.api.nodes.UaNode;
+import org.opcfoundation.ua.builtintypes.NodeId;
+
+/**
+ * A {@link Connection} that builds its nodes on demand instead of holding its whole address space in memory.
+ * <p>
+ * The server asks {@link #createNode(NodeId)} for a node the first time it's needed and keeps it in a bounded cache
+ * shared by all lazy connections, so only the nodes clients actually browse, read or subscribe to stay resident.
+ * <p>
+ * Cached nodes can be evicted and re-created at any time. A node must therefore be cheap to rebuild and must not be
+ * the only place state lives; keep current values elsewhere (e.g. in a {@link TagTable}) and serve them from
+ * {@code read}.
+ */
+public interface LazyNodeConnection extends Connection {
+
+    /**
+     * Build the node identified by {@code nodeId}, including its references.
+     * <p>
+     * May be called concurrently, and more than once for the same {@link NodeId}.
+     *
+     * @param nodeId the {@link NodeId} of the node to build.
+     * @return the node, or {@link Optional#empty()} if this connection has no such node.
+     */
+    Optional<UaNode> createNode(NodeId nodeId);
+
+    @Override
+    default boolean containsNodeId(NodeId nodeId) {
+        return createNode(nodeId).isPresent();
+    }
+
+    @Override
+    default Optional<Node> getNode(NodeId nodeId) {
+        return createNode(nodeId).map(node -> (Node) node);
+    }
+
+    @Override
+    default Optional<List<Reference>> getReferences(NodeId nodeId) {
+        return createNode(nodeId).map(UaNode::getReferences);
+    }
+
+}
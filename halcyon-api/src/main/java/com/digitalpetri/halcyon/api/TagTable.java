@@ -0,0 +1,395 @@
+/*
+ * Halcyon OPC-UA Server
+ *
+ * Copyright (C) 2014 Kevin Herron
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.digitalpetri.halcyon.api;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.builtintypes.UnsignedShort;
+import org.opcfoundation.ua.builtintypes.Variant;
+import org.opcfoundation.ua.core.TimestampsToReturn;
+
+/**
+ * Holds the current value, status and timestamps of a large number of tags in primitive arrays, addressed by an int
+ * handle, for connections that would otherwise keep a {@link DataValue} (or a whole node) per tag.
+ * <p>
+ * Numeric and boolean values are stored as raw bits in a {@code long[]}, so a tag costs roughly 40 bytes however many
+ * times it's updated; other values are kept as objects. A {@link DataValue} is only built when a tag is read.
+ * <p>
+ * The table has a fixed capacity. Updates to a tag are atomic with respect to reads of it; different tags can be
+ * updated and read concurrently.
+ * <pre>
+ * TagTable table = new TagTable(500000);
+ * int handle = table.add(0.0);
+ *
+ * table.setDouble(handle, 42.0, System.currentTimeMillis());
+ * DataValue value = table.get(handle, TimestampsToReturn.Both);
+ * </pre>
+ */
+public class TagTable {
+
+    private static final byte TypeNull = 0;
+    private static final byte TypeBoolean = 1;
+    private static final byte TypeByte = 2;
+    private static final byte TypeShort = 3;
+    private static final byte TypeInt = 4;
+    private static final byte TypeLong = 5;
+    private static final byte TypeFloat = 6;
+    private static final byte TypeDouble = 7;
+    private static final byte TypeUnsignedShort = 8;
+    private static final byte TypeUnsignedInteger = 9;
+    private static final byte TypeObject = 10;
+
+    private static final long NoTime = Long.MIN_VALUE;
+
+    private static final int Stripes = 64;
+
+    private final Object[] locks = new Object[Stripes];
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    private final byte[] types;
+    private final long[] bits;
+    private final Object[] objects;
+    private final int[] statusCodes;
+    private final long[] sourceTimes;
+    private final long[] serverTimes;
+
+    private final int capacity;
+
+    /**
+     * @param capacity the maximum number of tags this table can hold.
+     */
+    public TagTable(int capacity) {
+        this.capacity = capacity;
+
+        types = new byte[capacity];
+        bits = new long[capacity];
+        objects = new Object[capacity];
+        statusCodes = new int[capacity];
+        sourceTimes = new long[capacity];
+        serverTimes = new long[capacity];
+
+        for (int i = 0; i < Stripes; i++) locks[i] = new Object();
+    }
+
+    /**
+     * Add a tag with a Good initial value.
+     *
+     * @param initialValue the tag's initial value; may be {@code null}.
+     * @return the new tag's handle.
+     * @throws IllegalStateException if the table is full.
+     */
+    public int add(Object initialValue) {
+        int handle = size.getAndIncrement();
+
+        if (handle >= capacity) {
+            size.decrementAndGet();
+            throw new IllegalStateException("tag table full; capacity=" + capacity);
+        }
+
+        setValue(handle, initialValue, System.currentTimeMillis());
+
+        return handle;
+    }
+
+    /**
+     * @return the number of tags in this table.
+     */
+    public int size() {
+        return Math.min(size.get(), capacity);
+    }
+
+    /**
+     * @return the maximum number of tags this table can hold.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setBoolean(int handle, boolean value, long sourceTime) {
+        setBits(handle, TypeBoolean, value ? 1L : 0L, sourceTime);
+    }
+
+    public void setInt(int handle, int value, long sourceTime) {
+        setBits(handle, TypeInt, value, sourceTime);
+    }
+
+    public void setLong(int handle, long value, long sourceTime) {
+        setBits(handle, TypeLong, value, sourceTime);
+    }
+
+    public void setFloat(int handle, float value, long sourceTime) {
+        setBits(handle, TypeFloat, Float.floatToRawIntBits(value), sourceTime);
+    }
+
+    public void setDouble(int handle, double value, long sourceTime) {
+        setBits(handle, TypeDouble, Double.doubleToRawLongBits(value), sourceTime);
+    }
+
+    /**
+     * Set a tag's value with a Good status. Boxed primitives are unboxed into primitive storage.
+     *
+     * @param handle     the tag's handle.
+     * @param value      the new value; may be {@code null}.
+     * @param sourceTime the source timestamp, in Java time (milliseconds since the epoch).
+     */
+    public void setValue(int handle, Object value, long sourceTime) {
+        set(handle, value, StatusCode.GOOD, sourceTime);
+    }
+
+    /**
+     * Set a tag's status, leaving its value as it was; e.g. to mark it Bad when its device stops responding.
+     *
+     * @param handle     the tag's handle.
+     * @param status     the new {@link StatusCode}.
+     * @param sourceTime the source timestamp, in Java time (milliseconds since the epoch).
+     */
+    public void setStatus(int handle, StatusCode status, long sourceTime) {
+        checkHandle(handle);
+
+        synchronized (lock(handle)) {
+            statusCodes[handle] = status.getValue().intValue();
+            sourceTimes[handle] = sourceTime;
+            serverTimes[handle] = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Set a tag from a {@link DataValue}, e.g. one received in a Write. A missing source timestamp stays missing.
+     *
+     * @param handle the tag's handle.
+     * @param value  the new {@link DataValue}.
+     */
+    public void set(int handle, DataValue value) {
+        Variant variant = value.getValue();
+        StatusCode status = value.getStatusCode() != null ? value.getStatusCode() : StatusCode.GOOD;
+        DateTime sourceTime = value.getSourceTimestamp();
+
+        set(handle,
+                variant != null ? variant.getValue() : null,
+                status,
+                sourceTime != null ? sourceTime.getMilliSeconds() : NoTime);
+    }
+
+    /**
+     * Set a tag's value and status.
+     *
+     * @param handle     the tag's handle.
+     * @param value      the new value; may be {@code null}.
+     * @param status     the new {@link StatusCode}.
+     * @param sourceTime the source timestamp, in Java time (milliseconds since the epoch).
+     */
+    public void set(int handle, Object value, StatusCode status, long sourceTime) {
+        checkHandle(handle);
+
+        byte type;
+        long b = 0L;
+        Object o = null;
+
+        if (value == null) {
+            type = TypeNull;
+        } else if (value instanceof Boolean) {
+            type = TypeBoolean;
+            b = (Boolean) value ? 1L : 0L;
+        } else if (value instanceof Byte) {
+            type = TypeByte;
+            b = (Byte) value;
+        } else if (value instanceof Short) {
+            type = TypeShort;
+            b = (Short) value;
+        } else if (value instanceof Integer) {
+            type = TypeInt;
+            b = (Integer) value;
+        } else if (value instanceof Long) {
+            type = TypeLong;
+            b = (Long) value;
+        } else if (value instanceof Float) {
+            type = TypeFloat;
+            b = Float.floatToRawIntBits((Float) value);
+        } else if (value instanceof Double) {
+            type = TypeDouble;
+            b = Double.doubleToRawLongBits((Double) value);
+        } else if (value instanceof UnsignedShort) {
+            type = TypeUnsignedShort;
+            b = ((UnsignedShort) value).intValue();
+        } else if (value instanceof UnsignedInteger) {
+            type = TypeUnsignedInteger;
+            b = ((UnsignedInteger) value).longValue();
+        } else {
+            type = TypeObject;
+            o = value;
+        }
+
+        synchronized (lock(handle)) {
+            types[handle] = type;
+            bits[handle] = b;
+            objects[handle] = o;
+            statusCodes[handle] = status.getValue().intValue();
+            sourceTimes[handle] = sourceTime;
+            serverTimes[handle] = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Read a tag's numeric value without building a {@link DataValue}.
+     *
+     * @param handle the tag's handle.
+     * @return the tag's value as a double, or {@code NaN} if it isn't numeric.
+     */
+    public double getDouble(int handle) {
+        checkHandle(handle);
+
+        synchronized (lock(handle)) {
+            long b = bits[handle];
+
+            switch (types[handle]) {
+                case TypeBoolean:
+                case TypeByte:
+                case TypeShort:
+                case TypeInt:
+                case TypeLong:
+                case TypeUnsignedShort:
+                case TypeUnsignedInteger:
+                    return b;
+                case TypeFloat:
+                    return Float.intBitsToFloat((int) b);
+                case TypeDouble:
+                    return Double.longBitsToDouble(b);
+                default:
+                    return Double.NaN;
+            }
+        }
+    }
+
+    /**
+     * @param handle the tag's handle.
+     * @return the tag's {@link StatusCode}.
+     */
+    public StatusCode getStatus(int handle) {
+        checkHandle(handle);
+
+        synchronized (lock(handle)) {
+            return new StatusCode(UnsignedInteger.getFromBits(statusCodes[handle]));
+        }
+    }
+
+    /**
+     * Build a {@link DataValue} for a tag, with both timestamps.
+     *
+     * @param handle the tag's handle.
+     * @return the tag's current {@link DataValue}.
+     */
+    public DataValue get(int handle) {
+        return get(handle, TimestampsToReturn.Both);
+    }
+
+    /**
+     * Build a {@link DataValue} for a tag.
+     *
+     * @param handle     the tag's handle.
+     * @param timestamps the timestamps to include.
+     * @return the tag's current {@link DataValue}.
+     */
+    public DataValue get(int handle, TimestampsToReturn timestamps) {
+        checkHandle(handle);
+
+        byte type;
+        long b;
+        Object o;
+        int status;
+        long sourceTime;
+        long serverTime;
+
+        synchronized (lock(handle)) {
+            type = types[handle];
+            b = bits[handle];
+            o = objects[handle];
+            status = statusCodes[handle];
+            sourceTime = sourceTimes[handle];
+            serverTime = serverTimes[handle];
+        }
+
+        boolean source = timestamps == TimestampsToReturn.Source || timestamps == TimestampsToReturn.Both;
+        boolean server = timestamps == TimestampsToReturn.Server || timestamps == TimestampsToReturn.Both;
+
+        return new DataValue(
+                new Variant(value(type, b, o)),
+                new StatusCode(UnsignedInteger.getFromBits(status)),
+                source && sourceTime != NoTime ? DateTime.fromMillis(sourceTime) : null,
+                server && serverTime != NoTime ? DateTime.fromMillis(serverTime) : null
+        );
+    }
+
+    private void setBits(int handle, byte type, long b, long sourceTime) {
+        checkHandle(handle);
+
+        int good = StatusCode.GOOD.getValue().intValue();
+
+        synchronized (lock(handle)) {
+            types[handle] = type;
+            bits[handle] = b;
+            objects[handle] = null;
+            statusCodes[handle] = good;
+            sourceTimes[handle] = sourceTime;
+            serverTimes[handle] = System.currentTimeMillis();
+        }
+    }
+
+    private Object lock(int handle) {
+        return locks[handle & (Stripes - 1)];
+    }
+
+    private void checkHandle(int handle) {
+        if (handle < 0 || handle >= size()) {
+            throw new IndexOutOfBoundsException("handle=" + handle + ", size=" + size());
+        }
+    }
+
+    private static Object value(byte type, long b, Object o) {
+        switch (type) {
+            case TypeBoolean:
+                return b != 0L;
+            case TypeByte:
+                return (byte) b;
+            case TypeShort:
+                return (short) b;
+            case TypeInt:
+                return (int) b;
+            case TypeLong:
+                return b;
+            case TypeFloat:
+                return Float.intBitsToFloat((int) b);
+            case TypeDouble:
+                return Double.longBitsToDouble(b);
+            case TypeUnsignedShort:
+                return new UnsignedShort((int) b);
+            case TypeUnsignedInteger:
+                return new UnsignedInteger(b);
+            case TypeObject:
+                return o;
+            default:
+                return null;
+        }
+    }
+
+}
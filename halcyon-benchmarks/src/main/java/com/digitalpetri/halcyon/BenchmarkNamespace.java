@@ -0,0 +1,103 @@
+package com.digitalpetri.halcyon;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.Variant;
+import org.opcfoundation.ua.core.Attributes;
+import org.opcfoundation.ua.core.ReadValueId;
+import org.opcfoundation.ua.core.WriteValue;
+
+/**
+ * Builds a {@link ConnectionNamespace} populated with {@link SyntheticConnection}s, and requests spread evenly across
+ * them, for use as benchmark state.
+ */
+class BenchmarkNamespace {
+
+    static final int NamespaceIndex = 2;
+
+    private final ConnectionNamespace namespace;
+    private final List<NodeId> nodeIds;
+    private final List<NodeId> handleNodeIds;
+
+    BenchmarkNamespace(ExecutorService executor, int connectionCount, int itemsPerConnection) {
+        MetricRegistry metricRegistry = new MetricRegistry();
+        HalcyonConfig halcyonConfig = new HalcyonConfig(ConfigFactory.empty());
+
+        namespace = new ConnectionNamespace(executor, metricRegistry, halcyonConfig, NamespaceIndex);
+        nodeIds = Lists.newArrayListWithCapacity(connectionCount * itemsPerConnection);
+        handleNodeIds = Lists.newArrayListWithCapacity(connectionCount * itemsPerConnection);
+
+        List<ConnectionContext> contexts = Lists.newArrayListWithCapacity(connectionCount);
+
+        for (int i = 0; i < connectionCount; i++) {
+            String name = "connection" + i;
+
+            Config config = ConfigFactory.parseString(
+                    String.format("connection.browse-path = [\"Benchmark\", \"%s\"]", name));
+
+            ConnectionContext context = new ConnectionContext(
+                    name,
+                    config,
+                    new NodeId(NamespaceIndex, String.format("[%s]", name)),
+                    executor,
+                    metricRegistry,
+                    NamespaceIndex,
+                    namespace.slot(name)
+            );
+
+            contexts.add(context);
+
+            namespace.addConnection(new SyntheticConnection(context));
+        }
+
+        // Interleave the items so every request touches every connection.
+        for (int j = 0; j < itemsPerConnection; j++) {
+            for (int i = 0; i < connectionCount; i++) {
+                nodeIds.add(new NodeId(NamespaceIndex, String.format("[connection%d]Tag%d", i, j)));
+
+                // Only the first ConnectionIndex.MaxSlots connections get a slot for handle NodeIds.
+                if (i < ConnectionIndex.MaxSlots) handleNodeIds.add(contexts.get(i).handleNodeId(j));
+            }
+        }
+    }
+
+    ConnectionNamespace getNamespace() {
+        return namespace;
+    }
+
+    List<NodeId> getNodeIds() {
+        return nodeIds;
+    }
+
+    List<NodeId> getHandleNodeIds() {
+        return handleNodeIds;
+    }
+
+    List<ReadValueId> readValueIds() {
+        List<ReadValueId> readValueIds = Lists.newArrayListWithCapacity(nodeIds.size());
+
+        for (NodeId nodeId : nodeIds) {
+            readValueIds.add(new ReadValueId(nodeId, Attributes.Value, null, null));
+        }
+
+        return readValueIds;
+    }
+
+    List<WriteValue> writeValues() {
+        List<WriteValue> writeValues = Lists.newArrayListWithCapacity(nodeIds.size());
+
+        for (NodeId nodeId : nodeIds) {
+            writeValues.add(new WriteValue(nodeId, Attributes.Value, null, new DataValue(new Variant(42))));
+        }
+
+        return writeValues;
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.digitalpetri.halcyon;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.digitalpetri.halcyon.api.Connection;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.core.ReadValueId;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures resolving the owning {@link Connection} of a {@link NodeId}, for both "[name]"-prefixed string NodeIds and
+ * numeric handle NodeIds, and the grouping by connection that precedes
+ * every read, write and monitored item dispatch.
+ * <p>
+ * Monitored item grouping runs through the same {@link ConnectionNamespace#byConnection} as reads; it is measured here
+ * with {@link ReadValueId}s since that is all the grouping looks at.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ConnectionRoutingBenchmark {
+
+    @Param({"1", "100", "5000"})
+    public int connections;
+
+    private ExecutorService executor;
+    private ConnectionNamespace namespace;
+    private List<NodeId> nodeIds;
+    private List<NodeId> handleNodeIds;
+    private List<ReadValueId> readValueIds;
+
+    @Setup
+    public void setup() {
+        executor = Executors.newSingleThreadExecutor();
+
+        BenchmarkNamespace bn = new BenchmarkNamespace(executor, connections, 1);
+
+        namespace = bn.getNamespace();
+        nodeIds = bn.getNodeIds();
+        handleNodeIds = bn.getHandleNodeIds();
+        readValueIds = bn.readValueIds();
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1000)
+    public void connection(Blackhole blackhole) {
+        int size = nodeIds.size();
+
+        for (int i = 0; i < 1000; i++) {
+            blackhole.consume(namespace.connection(nodeIds.get(i % size)));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1000)
+    public void connectionByHandle(Blackhole blackhole) {
+        int size = handleNodeIds.size();
+
+        for (int i = 0; i < 1000; i++) {
+            blackhole.consume(namespace.connection(handleNodeIds.get(i % size)));
+        }
+    }
+
+    @Benchmark
+    public Map<Optional<Connection>, List<ReadValueId>> byConnection() {
+        return namespace.byConnection(readValueIds, ReadValueId::getNodeId);
+    }
+
+}
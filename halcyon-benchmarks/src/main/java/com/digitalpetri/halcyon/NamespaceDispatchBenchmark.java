@@ -0,0 +1,73 @@
+package com.digitalpetri.halcyon;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.core.ReadValueId;
+import org.opcfoundation.ua.core.TimestampsToReturn;
+import org.opcfoundation.ua.core.WriteValue;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures {@link ConnectionNamespace#read} and {@link ConnectionNamespace#write} fanning a single request out across
+ * 1..N connections, including the executor hand-offs and the final aggregation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class NamespaceDispatchBenchmark {
+
+    @Param({"1", "4", "16", "64"})
+    public int connections;
+
+    @Param({"1", "10", "100"})
+    public int itemsPerConnection;
+
+    private ExecutorService executor;
+    private ConnectionNamespace namespace;
+    private List<ReadValueId> readValueIds;
+    private List<WriteValue> writeValues;
+
+    @Setup
+    public void setup() {
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+        BenchmarkNamespace bn = new BenchmarkNamespace(executor, connections, itemsPerConnection);
+
+        namespace = bn.getNamespace();
+        readValueIds = bn.readValueIds();
+        writeValues = bn.writeValues();
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public List<DataValue> read() throws Exception {
+        CompletableFuture<List<DataValue>> future = new CompletableFuture<>();
+
+        namespace.read(readValueIds, 0.0, TimestampsToReturn.Both, future);
+
+        return future.get();
+    }
+
+    @Benchmark
+    public List<StatusCode> write() throws Exception {
+        CompletableFuture<List<StatusCode>> future = new CompletableFuture<>();
+
+        namespace.write(writeValues, future);
+
+        return future.get();
+    }
+
+}
@@ -0,0 +1,70 @@
+package com.digitalpetri.halcyon;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import com.digitalpetri.opcua.server.util.Pending;
+import com.digitalpetri.opcua.server.util.PendingRead;
+import com.google.common.collect.Lists;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.Variant;
+import org.opcfoundation.ua.core.Attributes;
+import org.opcfoundation.ua.core.ReadValueId;
+import org.openjdk.jmh.annotations.*;
+
+import static com.digitalpetri.opcua.server.util.FutureUtils.sequence;
+
+/**
+ * Measures the per-item future plumbing every read pays for: creating {@link PendingRead}s, completing them through
+ * {@link Pending#callback(List)} and aggregating them again with {@code sequence}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class PendingBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    public int items;
+
+    private List<ReadValueId> readValueIds;
+    private List<DataValue> values;
+
+    @Setup
+    public void setup() {
+        readValueIds = Lists.newArrayListWithCapacity(items);
+
+        for (int i = 0; i < items; i++) {
+            NodeId nodeId = new NodeId(BenchmarkNamespace.NamespaceIndex, "[connection0]Tag" + i);
+            readValueIds.add(new ReadValueId(nodeId, Attributes.Value, null, null));
+        }
+
+        values = Collections.nCopies(items, new DataValue(new Variant(42)));
+    }
+
+    @Benchmark
+    public List<DataValue> callbackAndSequence() throws Exception {
+        List<PendingRead> pending = readValueIds.stream()
+                .map(PendingRead::new)
+                .collect(Collectors.toList());
+
+        CompletableFuture<List<DataValue>> callback = Pending.callback(pending);
+
+        List<CompletableFuture<DataValue>> futures = pending.stream()
+                .map(PendingRead::getFuture)
+                .collect(Collectors.toList());
+
+        CompletableFuture<List<DataValue>> sequenced = sequence(futures);
+
+        callback.complete(values);
+
+        return sequenced.get();
+    }
+
+}
@@ -0,0 +1,87 @@
+package com.digitalpetri.halcyon;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import com.digitalpetri.halcyon.api.Connection;
+import com.digitalpetri.halcyon.api.ConnectionContext;
+import com.digitalpetri.opcua.server.api.MonitoredItem;
+import com.digitalpetri.opcua.server.api.Reference;
+import com.digitalpetri.opcua.server.api.nodes.Node;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.Variant;
+import org.opcfoundation.ua.core.ReadValueId;
+import org.opcfoundation.ua.core.TimestampsToReturn;
+import org.opcfoundation.ua.core.WriteValue;
+
+/**
+ * A {@link Connection} with no address space that completes every read and write synchronously from memory, so the
+ * benchmarks measure the dispatch overhead in {@link ConnectionNamespace} rather than a driver.
+ */
+class SyntheticConnection implements Connection {
+
+    private static final DataValue Value =
+            new DataValue(new Variant(42), StatusCode.GOOD, DateTime.currentTime(), DateTime.currentTime());
+
+    private final ConnectionContext context;
+
+    SyntheticConnection(ConnectionContext context) {
+        this.context = context;
+    }
+
+    @Override
+    public ConnectionContext getContext() {
+        return context;
+    }
+
+    @Override
+    public boolean containsNodeId(NodeId nodeId) {
+        return false;
+    }
+
+    @Override
+    public Optional<Node> getNode(NodeId nodeId) {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<List<Reference>> getReferences(NodeId nodeId) {
+        return Optional.empty();
+    }
+
+    @Override
+    public void read(List<ReadValueId> readValueIds,
+                     Double maxAge,
+                     TimestampsToReturn timestamps,
+                     CompletableFuture<List<DataValue>> future) {
+
+        future.complete(Collections.nCopies(readValueIds.size(), Value));
+    }
+
+    @Override
+    public void write(List<WriteValue> writeValues, CompletableFuture<List<StatusCode>> future) {
+        future.complete(Collections.nCopies(writeValues.size(), StatusCode.GOOD));
+    }
+
+    @Override
+    public void onMonitoredItemsCreated(List<MonitoredItem> monitoredItems) {
+    }
+
+    @Override
+    public void onMonitoredItemsModified(List<MonitoredItem> monitoredItems) {
+    }
+
+    @Override
+    public void onMonitoredItemsDeleted(List<MonitoredItem> monitoredItems) {
+    }
+
+    @Override
+    public void onMonitoringModeChanged(List<MonitoredItem> monitoredItems) {
+    }
+
+}
@@ -5,6 +5,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 
+import com.digitalpetri.halcyon.api.AddressSpaceSnapshot;
 import com.digitalpetri.halcyon.api.Connection;
 import com.digitalpetri.halcyon.api.ConnectionContext;
 import com.digitalpetri.opcua.server.api.MonitoredItem;
@@ -13,7 +14,6 @@ import com.digitalpetri.opcua.server.api.nodes.Node;
 import com.digitalpetri.opcua.server.api.nodes.UaNode;
 import com.digitalpetri.opcua.server.api.nodes.UaObjectNode;
 import com.digitalpetri.opcua.server.api.nodes.UaVariableNode;
-import com.digitalpetri.opcua.server.util.SubscriptionModel;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.typesafe.config.Config;
@@ -58,17 +58,35 @@ public class ExampleConnection implements Connection {
 
     private final Map<NodeId, UaNode> nodes = Maps.newConcurrentMap();
 
-    private final SubscriptionModel subscriptionModel;
     private final ConnectionContext context;
 
     public ExampleConnection(ConnectionContext context, Config config) {
         this.context = context;
 
-        subscriptionModel = new SubscriptionModel(this, context.getExecutorService());
-
         int myExampleProperty = config.getInt("example.my-example-property");
         logger.info("my-example-property={}", myExampleProperty);
 
+        /*
+         * Restore the nodes from the last run's snapshot if there is one. Their structure depends only on the
+         * configuration, which the snapshot is keyed on, but the snapshot also holds whatever values clients had
+         * written when it was taken; reset those so a restored connection starts out the same as a new one.
+         */
+
+        Optional<AddressSpaceSnapshot> snapshot = context.getSnapshot();
+
+        if (snapshot.isPresent()) {
+            snapshot.get().forEach(node -> nodes.put(node.getNodeId(), node));
+
+            for (int i = 0; i < InitialValues.length; i++) {
+                UaNode node = nodes.get(context.nodeId("Node" + i));
+
+                if (node instanceof UaVariableNode) {
+                    ((UaVariableNode) node).setValue(InitialValues[i]);
+                }
+            }
+            return;
+        }
+
         /*
          * Create and add the root folder.
          */
@@ -119,6 +137,16 @@ public class ExampleConnection implements Connection {
         return context;
     }
 
+    @Override
+    public boolean isNonBlocking() {
+        return true;
+    }
+
+    @Override
+    public boolean isSampledByServer() {
+        return true;
+    }
+
     @Override
     public boolean containsNodeId(NodeId nodeId) {
         return nodes.containsKey(nodeId);
@@ -188,7 +216,6 @@ public class ExampleConnection implements Connection {
         });
 
         logger.info("onMonitoredItemsCreated({} items)", monitoredItems.size());
-        subscriptionModel.onMonitoredItemsCreated(monitoredItems);
     }
 
     @Override
@@ -198,19 +225,16 @@ public class ExampleConnection implements Connection {
         });
 
         logger.info("onMonitoredItemsModified({} items)", monitoredItems.size());
-        subscriptionModel.onMonitoredItemsModified(monitoredItems);
     }
 
     @Override
     public void onMonitoredItemsDeleted(List<MonitoredItem> monitoredItems) {
         logger.info("onMonitoredItemsDeleted({} items)", monitoredItems.size());
-        subscriptionModel.onMonitoredItemsDeleted(monitoredItems);
     }
 
     @Override
     public void onMonitoringModeChanged(List<MonitoredItem> monitoredItems) {
         logger.info("onMonitoringModeChanged({} items)", monitoredItems.size());
-        subscriptionModel.onMonitoringModeChanged(monitoredItems);
     }
 
 }
@@ -0,0 +1,480 @@
+package com.digitalpetri.halcyon.examples;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.digitalpetri.halcyon.api.AsyncConnection;
+import com.digitalpetri.halcyon.api.ConnectionContext;
+import com.digitalpetri.halcyon.api.LazyNodeConnection;
+import com.digitalpetri.halcyon.api.TagTable;
+import com.digitalpetri.opcua.server.api.MonitoredItem;
+import com.digitalpetri.opcua.server.api.Reference;
+import com.digitalpetri.opcua.server.api.nodes.UaNode;
+import com.digitalpetri.opcua.server.api.nodes.UaObjectNode;
+import com.digitalpetri.opcua.server.api.nodes.UaVariableNode;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.typesafe.config.Config;
+import org.opcfoundation.ua.builtintypes.*;
+import org.opcfoundation.ua.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Simulates a device with {@code folders} x {@code tags-per-folder} tags, for capacity testing.
+ * <p>
+ * Values live in a {@link TagTable} and tags have handle NodeIds, so a million tags cost tens of megabytes; nodes are
+ * only built when browsed. Tags cycle through the configured data types and a fraction of them change every update
+ * interval, following a sine, ramp, square or random pattern.
+ * <p>
+ * Reads and writes behave like requests to a PLC: the server splits them into requests of at most
+ * {@code max-items-per-request} items with at most {@code max-in-flight} outstanding, each answered after the
+ * configured latency, and failed as a whole with Bad_CommunicationError at the configured error rate. A write whose
+ * value isn't of the tag's data type fails with Bad_TypeMismatch.
+ *
+ * @see SimulatorConnectionType
+ */
+public class SimulatorConnection implements LazyNodeConnection, AsyncConnection {
+
+    private static final Map<String, NodeId> DataTypes = ImmutableMap.<String, NodeId>builder()
+            .put("Boolean", Identifiers.Boolean)
+            .put("Int32", Identifiers.Int32)
+            .put("Int64", Identifiers.Int64)
+            .put("Float", Identifiers.Float)
+            .put("Double", Identifiers.Double)
+            .put("String", Identifiers.String)
+            .build();
+
+    /**
+     * The class a written value must be for each data type; anything else is Bad_TypeMismatch.
+     */
+    private static final Map<NodeId, Class<?>> ValueClasses = ImmutableMap.<NodeId, Class<?>>builder()
+            .put(Identifiers.Boolean, Boolean.class)
+            .put(Identifiers.Int32, Integer.class)
+            .put(Identifiers.Int64, Long.class)
+            .put(Identifiers.Float, Float.class)
+            .put(Identifiers.Double, Double.class)
+            .put(Identifiers.String, String.class)
+            .build();
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final AtomicBoolean updating = new AtomicBoolean(false);
+    private int cursor = 0;
+
+    private final Map<NodeId, Integer> folderIds = Maps.newHashMap();
+
+    private final TagTable table;
+    private final NodeId[] dataTypes;
+    private final ScheduledFuture<?> updates;
+
+    private final int folders;
+    private final int tagsPerFolder;
+
+    private final double changeFraction;
+    private final String pattern;
+    private final long period;
+    private final double amplitude;
+
+    private final long readLatency;
+    private final long writeLatency;
+    private final long latencyJitter;
+    private final double readErrorRate;
+    private final double writeErrorRate;
+
+    private final int maxItemsPerRequest;
+    private final int maxInFlight;
+    private final double minSamplingInterval;
+
+    private final ConnectionContext context;
+
+    public SimulatorConnection(ConnectionContext context, Config config) {
+        this.context = context;
+
+        folders = config.getInt("simulator.folders");
+        tagsPerFolder = config.getInt("simulator.tags-per-folder");
+
+        if (folders < 1 || tagsPerFolder < 1 || (long) folders * tagsPerFolder > ConnectionContext.MAX_HANDLE + 1L) {
+            throw new IllegalArgumentException(String.format(
+                    "folders x tags-per-folder must be between 1 and %d; folders=%d, tags-per-folder=%d",
+                    ConnectionContext.MAX_HANDLE + 1, folders, tagsPerFolder));
+        }
+
+        List<String> typeNames = config.getStringList("simulator.data-types");
+        dataTypes = new NodeId[typeNames.size()];
+
+        for (int i = 0; i < dataTypes.length; i++) {
+            dataTypes[i] = DataTypes.get(typeNames.get(i));
+
+            if (dataTypes[i] == null) {
+                throw new IllegalArgumentException(String.format(
+                        "unknown data type \"%s\"; expected one of %s", typeNames.get(i), DataTypes.keySet()));
+            }
+        }
+
+        if (dataTypes.length == 0) throw new IllegalArgumentException("data-types must not be empty");
+
+        long updateInterval = config.getMilliseconds("simulator.update.interval");
+        changeFraction = config.getDouble("simulator.update.fraction");
+        pattern = config.getString("simulator.update.pattern");
+        period = Math.max(1L, config.getMilliseconds("simulator.update.period"));
+        amplitude = config.getDouble("simulator.update.amplitude");
+
+        if (!pattern.equals("sine") && !pattern.equals("ramp") &&
+                !pattern.equals("square") && !pattern.equals("random")) {
+
+            throw new IllegalArgumentException(String.format(
+                    "unknown pattern \"%s\"; expected sine, ramp, square or random", pattern));
+        }
+
+        readLatency = config.getMilliseconds("simulator.latency.read");
+        writeLatency = config.getMilliseconds("simulator.latency.write");
+        latencyJitter = config.getMilliseconds("simulator.latency.jitter");
+        readErrorRate = config.getDouble("simulator.error-rate.read");
+        writeErrorRate = config.getDouble("simulator.error-rate.write");
+
+        maxItemsPerRequest = config.getInt("simulator.max-items-per-request");
+        maxInFlight = config.getInt("simulator.max-in-flight");
+
+        if (maxItemsPerRequest < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "max-items-per-request and max-in-flight must be at least 1; " +
+                            "max-items-per-request=%d, max-in-flight=%d", maxItemsPerRequest, maxInFlight));
+        }
+
+        minSamplingInterval = config.getMilliseconds("simulator.min-sampling-interval");
+
+        /*
+         * Create the tags. Handles are assigned folder by folder, so a tag's folder is handle / tagsPerFolder.
+         */
+
+        int tags = folders * tagsPerFolder;
+        table = new TagTable(tags);
+
+        for (int handle = 0; handle < tags; handle++) {
+            table.add(value(dataType(handle), 0L, handle));
+        }
+
+        for (int i = 0; i < folders; i++) {
+            folderIds.put(context.nodeId("Folder" + i), i);
+        }
+
+        updates = updateInterval > 0 && changeFraction > 0 ?
+                context.getScheduledExecutorService().scheduleAtFixedRate(
+                        () -> context.getExecutorService().execute(this::update),
+                        updateInterval, updateInterval, TimeUnit.MILLISECONDS) : null;
+
+        logger.info("Simulating {} folders x {} tags ({} tags), changing {}% every {}ms.",
+                folders, tagsPerFolder, tags, changeFraction * 100, updateInterval);
+    }
+
+    /**
+     * Change the next {@code fraction} of tags, round-robin. Skipped if the previous update is still running.
+     */
+    private void update() {
+        if (!updating.compareAndSet(false, true)) return;
+
+        try {
+            int size = table.size();
+            int count = (int) Math.min(size, Math.round(size * changeFraction));
+            long now = System.currentTimeMillis();
+
+            for (int i = 0; i < count; i++) {
+                int handle = cursor;
+                cursor = cursor + 1 < size ? cursor + 1 : 0;
+
+                NodeId dataType = dataType(handle);
+                double v = amplitude * pattern(now, handle);
+
+                if (dataType == Identifiers.Boolean) {
+                    table.setBoolean(handle, v >= amplitude / 2, now);
+                } else if (dataType == Identifiers.Int32) {
+                    table.setInt(handle, (int) Math.round(v), now);
+                } else if (dataType == Identifiers.Int64) {
+                    table.setLong(handle, Math.round(v), now);
+                } else if (dataType == Identifiers.Float) {
+                    table.setFloat(handle, (float) v, now);
+                } else if (dataType == Identifiers.Double) {
+                    table.setDouble(handle, v, now);
+                } else {
+                    table.setValue(handle, value(dataType, now, handle), now);
+                }
+            }
+        } catch (Throwable t) {
+            logger.error("Error updating simulated tags.", t);
+        } finally {
+            updating.set(false);
+        }
+    }
+
+    /**
+     * @return the pattern's value for {@code handle} at {@code time}, between 0 and 1. Each tag is offset in phase so
+     * they don't all change in step.
+     */
+    private double pattern(long time, int handle) {
+        double phase = (double) (time % period) / period + handle * 0.6180339887;
+        phase -= Math.floor(phase);
+
+        switch (pattern) {
+            case "ramp":
+                return phase;
+            case "square":
+                return phase < 0.5 ? 0.0 : 1.0;
+            case "random":
+                return ThreadLocalRandom.current().nextDouble();
+            default:
+                return 0.5 + 0.5 * Math.sin(2 * Math.PI * phase);
+        }
+    }
+
+    private Object value(NodeId dataType, long time, int handle) {
+        double v = amplitude * pattern(time, handle);
+
+        if (dataType == Identifiers.Boolean) return v >= amplitude / 2;
+        if (dataType == Identifiers.Int32) return (int) Math.round(v);
+        if (dataType == Identifiers.Int64) return Math.round(v);
+        if (dataType == Identifiers.Float) return (float) v;
+        if (dataType == Identifiers.Double) return v;
+
+        return Long.toString(Math.round(v));
+    }
+
+    private NodeId dataType(int handle) {
+        return dataTypes[handle % dataTypes.length];
+    }
+
+    /**
+     * @return {@code true} if {@code value} holds a value of {@code dataType}, as a device would check a write against
+     * the tag's type.
+     */
+    private static boolean isInstance(NodeId dataType, DataValue value) {
+        Object v = value != null && value.getValue() != null ? value.getValue().getValue() : null;
+        Class<?> valueClass = ValueClasses.get(dataType);
+
+        return valueClass != null && valueClass.isInstance(v);
+    }
+
+    @Override
+    public ConnectionContext getContext() {
+        return context;
+    }
+
+    @Override
+    public boolean isSampledByServer() {
+        return true;
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return maxItemsPerRequest;
+    }
+
+    @Override
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    @Override
+    public Optional<UaNode> createNode(NodeId nodeId) {
+        if (nodeId.equals(context.getRootNodeId())) {
+            return Optional.of(rootFolder());
+        }
+
+        int handle = context.handle(nodeId);
+
+        if (handle >= 0) {
+            return handle < table.size() ? Optional.of(tagNode(handle)) : Optional.empty();
+        }
+
+        Integer folder = folderIds.get(nodeId);
+
+        return folder != null ? Optional.of(folderNode(folder)) : Optional.empty();
+    }
+
+    private UaObjectNode rootFolder() {
+        UaObjectNode rootFolder = folder(context.getRootNodeId(), context.getName());
+
+        for (int i = 0; i < folders; i++) {
+            organizes(rootFolder, context.nodeId("Folder" + i), NodeClass.Object);
+        }
+
+        return rootFolder;
+    }
+
+    private UaObjectNode folderNode(int folder) {
+        UaObjectNode folderNode = folder(context.nodeId("Folder" + folder), "Folder" + folder);
+
+        for (int i = 0; i < tagsPerFolder; i++) {
+            organizes(folderNode, context.handleNodeId(folder * tagsPerFolder + i), NodeClass.Variable);
+        }
+
+        return folderNode;
+    }
+
+    private UaVariableNode tagNode(int handle) {
+        String name = "Tag" + (handle % tagsPerFolder);
+
+        return UaVariableNode.builder()
+                .setNodeId(context.handleNodeId(handle))
+                .setBrowseName(context.qualifiedName(name))
+                .setDisplayName(LocalizedText.english(name))
+                .setDataType(dataType(handle))
+                .setValue(table.get(handle))
+                .setAccessLevel(AccessLevel.getMask(AccessLevel.READWRITE))
+                .setUserAccessLevel(AccessLevel.getMask(AccessLevel.READWRITE))
+                .setMinimumSamplingInterval(minSamplingInterval)
+                .build();
+    }
+
+    private UaObjectNode folder(NodeId nodeId, String name) {
+        return UaObjectNode.builder()
+                .setNodeId(nodeId)
+                .setBrowseName(context.qualifiedName(name))
+                .setDisplayName(LocalizedText.english(name))
+                .setTypeDefinition(Identifiers.FolderType)
+                .build();
+    }
+
+    private static void organizes(UaObjectNode folder, NodeId target, NodeClass targetClass) {
+        folder.addReference(new Reference(
+                folder.getNodeId(),
+                Identifiers.Organizes,
+                new ExpandedNodeId(target),
+                targetClass,
+                true
+        ));
+    }
+
+    @Override
+    public CompletionStage<List<DataValue>> readAsync(List<ReadValueId> readValueIds,
+                                                      Double maxAge,
+                                                      TimestampsToReturn timestamps) {
+
+        return simulate(readValueIds.size(), readLatency, readErrorRate, DataValue::new, () -> {
+            List<DataValue> results = Lists.newArrayListWithCapacity(readValueIds.size());
+
+            for (ReadValueId id : readValueIds) {
+                int handle = context.handle(id.getNodeId());
+
+                if (handle >= 0 && handle < table.size() && id.getAttributeId().equals(Attributes.Value)) {
+                    results.add(table.get(handle, timestamps));
+                } else {
+                    results.add(createNode(id.getNodeId())
+                            .map(node -> node.readAttribute(id.getAttributeId()))
+                            .orElse(new DataValue(new StatusCode(StatusCodes.Bad_NodeIdUnknown))));
+                }
+            }
+
+            return results;
+        });
+    }
+
+    @Override
+    public CompletionStage<List<StatusCode>> writeAsync(List<WriteValue> writeValues) {
+        return simulate(writeValues.size(), writeLatency, writeErrorRate, Function.identity(), () -> {
+            List<StatusCode> results = Lists.newArrayListWithCapacity(writeValues.size());
+
+            for (WriteValue value : writeValues) {
+                int handle = context.handle(value.getNodeId());
+
+                if (handle >= 0 && handle < table.size()) {
+                    if (!value.getAttributeId().equals(Attributes.Value)) {
+                        results.add(new StatusCode(StatusCodes.Bad_NotWritable));
+                    } else if (!isInstance(dataType(handle), value.getValue())) {
+                        results.add(new StatusCode(StatusCodes.Bad_TypeMismatch));
+                    } else {
+                        table.set(handle, value.getValue());
+                        results.add(StatusCode.GOOD);
+                    }
+                } else if (createNode(value.getNodeId()).isPresent()) {
+                    results.add(new StatusCode(StatusCodes.Bad_NotWritable));
+                } else {
+                    results.add(new StatusCode(StatusCodes.Bad_NodeIdUnknown));
+                }
+            }
+
+            return results;
+        });
+    }
+
+    /**
+     * Answer a request of {@code items} items with {@code response} after the configured latency, or fail every item
+     * with Bad_CommunicationError at {@code errorRate}. Requests over {@code max-items-per-request} fail with
+     * Bad_TooManyOperations, as a device would reject an oversized PDU.
+     */
+    private <T> CompletionStage<List<T>> simulate(int items,
+                                                  long latency,
+                                                  double errorRate,
+                                                  Function<StatusCode, T> error,
+                                                  Supplier<List<T>> response) {
+
+        CompletableFuture<List<T>> future = new CompletableFuture<>();
+
+        if (items > maxItemsPerRequest) {
+            future.complete(Collections.nCopies(items, error.apply(new StatusCode(StatusCodes.Bad_TooManyOperations))));
+            return future;
+        }
+
+        Runnable respond = () -> {
+            try {
+                if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                    StatusCode status = new StatusCode(StatusCodes.Bad_CommunicationError);
+                    future.complete(Collections.nCopies(items, error.apply(status)));
+                } else {
+                    future.complete(response.get());
+                }
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        };
+
+        long delay = latency + (latencyJitter > 0 ? ThreadLocalRandom.current().nextLong(latencyJitter + 1) : 0L);
+
+        if (delay > 0) {
+            context.getWheelTimer().newTimeout(
+                    timeout -> context.getExecutorService().execute(respond),
+                    delay, TimeUnit.MILLISECONDS);
+        } else {
+            respond.run();
+        }
+
+        return future;
+    }
+
+    @Override
+    public void onMonitoredItemsCreated(List<MonitoredItem> monitoredItems) {
+        monitoredItems.forEach(item -> {
+            if (item.getSamplingInterval() < minSamplingInterval) item.setSamplingInterval(minSamplingInterval);
+        });
+    }
+
+    @Override
+    public void onMonitoredItemsModified(List<MonitoredItem> monitoredItems) {
+        onMonitoredItemsCreated(monitoredItems);
+    }
+
+    @Override
+    public void onMonitoredItemsDeleted(List<MonitoredItem> monitoredItems) {
+    }
+
+    @Override
+    public void onMonitoringModeChanged(List<MonitoredItem> monitoredItems) {
+    }
+
+    @Override
+    public void shutdown() {
+        if (updates != null) updates.cancel(false);
+    }
+
+}
@@ -1,5 +1,6 @@
 package com.digitalpetri.halcyon;
 
+import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -7,12 +8,17 @@ import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.codahale.metrics.MetricRegistry;
+import com.digitalpetri.halcyon.api.AddressSpaceSnapshot;
+import com.digitalpetri.halcyon.util.VirtualThreads;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.typesafe.config.Config;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.util.HashedWheelTimer;
 import org.opcfoundation.ua.builtintypes.NodeId;
 import org.opcfoundation.ua.builtintypes.QualifiedName;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
 
 public class ConnectionContext implements com.digitalpetri.halcyon.api.ConnectionContext {
 
@@ -34,13 +40,51 @@ public class ConnectionContext implements com.digitalpetri.halcyon.api.Connectio
     private static final HashedWheelTimer WheelTimer = new HashedWheelTimer();
 
 
+    /**
+     * @return the {@link ScheduledExecutorService} shared by all connections, for server components that need one too.
+     */
+    static ScheduledExecutorService sharedScheduledExecutor() {
+        return ScheduledExecutor;
+    }
+
+    /**
+     * @return the {@link EventLoopGroup} shared by all connections, for server components that need one too.
+     */
+    static EventLoopGroup sharedEventLoop() {
+        return EventLoop;
+    }
+
+    /**
+     * @return {@code true} if {@code config} opts its connection into virtual threads and the JDK supports them.
+     */
+    static boolean useVirtualThreads(Config config) {
+        boolean requested = config.hasPath("connection.executor.virtual-threads") &&
+                config.getBoolean("connection.executor.virtual-threads");
+
+        return requested && VirtualThreads.isAvailable();
+    }
+
+    /*
+     * Canonical NodeIds and QualifiedNames, keyed by the value they were created from, so the same identifier isn't
+     * rebuilt for every node, reference and monitored item. Entries go away once nothing else holds the instance.
+     */
+    private final Cache<Object, NodeId> nodeIds = CacheBuilder.newBuilder().weakValues().build();
+    private final Cache<String, QualifiedName> qualifiedNames = CacheBuilder.newBuilder().weakValues().build();
+
+    private final String prefix;
     private final String name;
     private final Config config;
     private final NodeId rootNodeId;
     private final ExecutorService executor;
+    private final ScheduledExecutorService scheduledExecutor;
     private final MetricRegistry metricRegistry;
     private final int namespaceIndex;
+    private final int slot;
+    private final AddressSpaceSnapshot snapshot;
 
+    /**
+     * Create a context without a slot; {@link #handleNodeId(int)} isn't available to its connection.
+     */
     public ConnectionContext(String name,
                              Config config,
                              NodeId rootNodeId,
@@ -48,22 +92,122 @@ public class ConnectionContext implements com.digitalpetri.halcyon.api.Connectio
                              MetricRegistry metricRegistry,
                              int namespaceIndex) {
 
+        this(name, config, rootNodeId, executor, metricRegistry, namespaceIndex, -1);
+    }
+
+    /**
+     * @param slot the connection's slot for handle NodeIds, from {@link ConnectionNamespace#slot(String)}, or -1 if it
+     *             has none.
+     */
+    public ConnectionContext(String name,
+                             Config config,
+                             NodeId rootNodeId,
+                             ExecutorService executor,
+                             MetricRegistry metricRegistry,
+                             int namespaceIndex,
+                             int slot) {
+
+        this(name, config, rootNodeId, executor, ScheduledExecutor, metricRegistry, namespaceIndex, slot);
+    }
+
+    /**
+     * @param scheduledExecutor the {@link ScheduledExecutorService} handed to this connection, e.g. one running on
+     *                          virtual threads.
+     */
+    public ConnectionContext(String name,
+                             Config config,
+                             NodeId rootNodeId,
+                             ExecutorService executor,
+                             ScheduledExecutorService scheduledExecutor,
+                             MetricRegistry metricRegistry,
+                             int namespaceIndex,
+                             int slot) {
+
+        this(name, config, rootNodeId, executor, scheduledExecutor, metricRegistry, namespaceIndex, slot, null);
+    }
+
+    /**
+     * @param snapshot the {@link AddressSpaceSnapshot} to restore this connection from, or {@code null} if there is
+     *                 none.
+     */
+    public ConnectionContext(String name,
+                             Config config,
+                             NodeId rootNodeId,
+                             ExecutorService executor,
+                             ScheduledExecutorService scheduledExecutor,
+                             MetricRegistry metricRegistry,
+                             int namespaceIndex,
+                             int slot,
+                             AddressSpaceSnapshot snapshot) {
+
         this.name = name;
         this.config = config;
         this.rootNodeId = rootNodeId;
         this.executor = executor;
+        this.scheduledExecutor = scheduledExecutor;
         this.metricRegistry = metricRegistry;
         this.namespaceIndex = namespaceIndex;
+        this.slot = slot;
+        this.snapshot = snapshot;
+
+        prefix = "[" + name + "]";
     }
 
     @Override
     public NodeId nodeId(Object value) {
-        return new NodeId(getNamespaceIndex(), String.format("[%s]%s", getName(), value));
+        // The cache doesn't take null keys; null has always produced "[name]null", the same as "null".
+        Object key = value != null ? value : "null";
+
+        NodeId nodeId = nodeIds.getIfPresent(key);
+
+        if (nodeId == null) {
+            String s = String.valueOf(key);
+            String id = new StringBuilder(prefix.length() + s.length()).append(prefix).append(s).toString();
+
+            nodeId = nodeIds.asMap().computeIfAbsent(key, v -> new NodeId(namespaceIndex, id));
+        }
+
+        return nodeId;
+    }
+
+    @Override
+    public NodeId handleNodeId(int handle) {
+        if (slot < 0) {
+            throw new IllegalStateException("no slot available for handle NodeIds; connection=" + name);
+        }
+        if (handle < 0 || handle > MAX_HANDLE) {
+            throw new IllegalArgumentException("handle out of range: " + handle);
+        }
+
+        long value = ((long) slot << HANDLE_BITS) | handle;
+
+        return new NodeId(namespaceIndex, new UnsignedInteger(value));
+    }
+
+    @Override
+    public int handle(NodeId nodeId) {
+        Object value = nodeId.getValue();
+
+        if (slot < 0 || nodeId.getNamespaceIndex() != namespaceIndex || !(value instanceof UnsignedInteger)) {
+            return -1;
+        }
+
+        int bits = ((UnsignedInteger) value).intValue();
+
+        return (bits >>> HANDLE_BITS) == slot ? bits & MAX_HANDLE : -1;
     }
 
     @Override
     public QualifiedName qualifiedName(String s) {
-        return new QualifiedName(namespaceIndex, s);
+        if (s == null) return new QualifiedName(namespaceIndex, null);
+
+        QualifiedName qualifiedName = qualifiedNames.getIfPresent(s);
+
+        if (qualifiedName == null) {
+            qualifiedName = qualifiedNames.asMap().computeIfAbsent(s, v -> new QualifiedName(namespaceIndex, v));
+        }
+
+        return qualifiedName;
     }
 
     //region Getters
@@ -94,7 +238,7 @@ public class ConnectionContext implements com.digitalpetri.halcyon.api.Connectio
 
     @Override
     public ScheduledExecutorService getScheduledExecutorService() {
-        return ScheduledExecutor;
+        return scheduledExecutor;
     }
 
     @Override
@@ -111,6 +255,18 @@ public class ConnectionContext implements com.digitalpetri.halcyon.api.Connectio
     public int getNamespaceIndex() {
         return namespaceIndex;
     }
+
+    @Override
+    public Optional<AddressSpaceSnapshot> getSnapshot() {
+        return Optional.ofNullable(snapshot);
+    }
+
+    /**
+     * @return the connection's slot for handle NodeIds, or -1 if it has none.
+     */
+    int getSlot() {
+        return slot;
+    }
     //endregion
 
 }
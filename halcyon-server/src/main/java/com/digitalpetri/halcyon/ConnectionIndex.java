@@ -0,0 +1,290 @@
+package com.digitalpetri.halcyon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+
+import com.digitalpetri.halcyon.api.Connection;
+import com.google.common.collect.Maps;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.digitalpetri.halcyon.api.ConnectionContext.HANDLE_BITS;
+
+/**
+ * Routes {@link NodeId}s to the {@link Connection} that owns them.
+ * <p>
+ * Connection names are stored in a character trie, so resolving the "[name]" prefix of a NodeId walks the identifier
+ * once without a regex match or any substring allocation. Lookups are lock-free against an immutable snapshot of the
+ * trie; {@link #add(String, Connection)} and {@link #remove(String)} copy the path they modify and publish a new root.
+ * <p>
+ * Matching semantics are the same as {@link com.digitalpetri.halcyon.api.ConnectionContext#CONNECTION_PREFIX_PATTERN}:
+ * the name is the shortest non-empty run of characters following '[' and terminated by ']'.
+ * <p>
+ * Numeric handle NodeIds in the connection namespace carry the owning connection's slot in their high bits, and are
+ * routed by indexing an array of connections by slot. A name keeps its slot after its connection is removed, so a
+ * reloaded connection gets the same slot back and NodeIds held by clients stay valid. Given a slots file, assignments
+ * are also saved there and loaded again on the next start, so a handle NodeId never routes to a different connection
+ * after a restart; slots are never reused.
+ */
+class ConnectionIndex {
+
+    static final int MaxSlots = 1 << (32 - HANDLE_BITS);
+
+    @SuppressWarnings("unchecked")
+    private static final Optional<Connection>[] NoSlots = new Optional[0];
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Map<String, Integer> slotsByName = Maps.newHashMap();
+    private int nextSlot = 0;
+
+    private volatile TrieNode root = new TrieNode();
+    private volatile Optional<Connection>[] slots = NoSlots;
+
+    private final int namespaceIndex;
+    private final Path slotsFile;
+
+    /**
+     * @param namespaceIndex the index of the connection namespace; handle NodeIds in other namespaces aren't routed.
+     */
+    ConnectionIndex(int namespaceIndex) {
+        this(namespaceIndex, null);
+    }
+
+    /**
+     * @param namespaceIndex the index of the connection namespace; handle NodeIds in other namespaces aren't routed.
+     * @param slotsFile      the file slot assignments are loaded from and saved to, or {@code null} to keep them in
+     *                       memory only.
+     */
+    ConnectionIndex(int namespaceIndex, Path slotsFile) {
+        this.namespaceIndex = namespaceIndex;
+        this.slotsFile = slotsFile;
+
+        if (slotsFile != null && Files.exists(slotsFile)) loadSlots();
+    }
+
+    /**
+     * Resolve the {@link Connection} owning {@code nodeId}, if any.
+     *
+     * @param nodeId the {@link NodeId} to route.
+     * @return the owning {@link Connection}, or {@link Optional#empty()}.
+     */
+    Optional<Connection> get(NodeId nodeId) {
+        Object value = nodeId.getValue();
+
+        if (value instanceof String) {
+            return get((String) value);
+        } else if (value instanceof UnsignedInteger) {
+            // Numeric NodeIds are common in other namespaces; only ours carry a slot.
+            if (nodeId.getNamespaceIndex() != namespaceIndex) return Optional.empty();
+
+            return bySlot(((UnsignedInteger) value).intValue() >>> HANDLE_BITS);
+        } else {
+            return Optional.empty();
+        }
+    }
+
+    Optional<Connection> bySlot(int slot) {
+        Optional<Connection>[] s = slots;
+
+        return slot < s.length ? s[slot] : Optional.empty();
+    }
+
+    Optional<Connection> get(String id) {
+        int length = id.length();
+
+        if (length < 3 || id.charAt(0) != '[') return Optional.empty();
+
+        // The first character of the name is consumed unconditionally; the name must be non-empty.
+        TrieNode node = root.child(id.charAt(1));
+
+        for (int i = 2; node != null && i < length; i++) {
+            char c = id.charAt(i);
+
+            if (c == ']') {
+                return node.connection;
+            }
+
+            node = node.child(c);
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * @param name a connection name, without brackets.
+     * @return the {@link Connection} registered under {@code name}, or {@link Optional#empty()}.
+     */
+    Optional<Connection> byName(String name) {
+        TrieNode node = root;
+
+        for (int i = 0; node != null && i < name.length(); i++) {
+            node = node.child(name.charAt(i));
+        }
+
+        return node != null ? node.connection : Optional.empty();
+    }
+
+    /**
+     * Get the slot assigned to {@code name}, assigning the next free one if it has none yet.
+     *
+     * @param name a connection name, without brackets.
+     * @return the slot, or -1 if all {@link #MaxSlots} slots have been assigned.
+     */
+    synchronized int slot(String name) {
+        Integer slot = slotsByName.get(name);
+
+        if (slot == null) {
+            if (nextSlot >= MaxSlots) return -1;
+
+            slot = nextSlot++;
+            slotsByName.put(name, slot);
+
+            if (slotsFile != null) saveSlots();
+        }
+
+        return slot;
+    }
+
+    synchronized void add(String name, Connection connection) {
+        root = put(root, name, 0, Optional.of(connection));
+        setSlot(name, Optional.of(connection));
+    }
+
+    synchronized void remove(String name) {
+        root = put(root, name, 0, Optional.empty());
+        setSlot(name, Optional.empty());
+    }
+
+    private void setSlot(String name, Optional<Connection> connection) {
+        Integer slot = slotsByName.get(name);
+
+        if (slot == null) return;
+
+        Optional<Connection>[] copy = Arrays.copyOf(slots, Math.max(slots.length, slot + 1));
+
+        for (int i = slots.length; i < copy.length; i++) copy[i] = Optional.empty();
+
+        copy[slot] = connection;
+        slots = copy;
+    }
+
+    private void loadSlots() {
+        Properties properties = new Properties();
+
+        try (InputStream input = Files.newInputStream(slotsFile)) {
+            properties.load(input);
+        } catch (IOException e) {
+            logger.error("Could not load connection slots from {}; handle NodeIds from before the restart may " +
+                    "route to the wrong connection.", slotsFile, e);
+            return;
+        }
+
+        for (String name : properties.stringPropertyNames()) {
+            try {
+                int slot = Integer.parseInt(properties.getProperty(name).trim());
+
+                if (slot >= 0 && slot < MaxSlots) {
+                    slotsByName.put(name, slot);
+                    nextSlot = Math.max(nextSlot, slot + 1);
+                }
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring invalid slot for connection '{}' in {}.", name, slotsFile);
+            }
+        }
+    }
+
+    private void saveSlots() {
+        Properties properties = new Properties();
+        slotsByName.forEach((name, slot) -> properties.setProperty(name, String.valueOf(slot)));
+
+        try {
+            Path parent = slotsFile.toAbsolutePath().getParent();
+            if (parent != null) Files.createDirectories(parent);
+
+            Path temp = slotsFile.resolveSibling(slotsFile.getFileName() + ".tmp");
+
+            try (OutputStream output = Files.newOutputStream(temp)) {
+                properties.store(output, "Connection slots for handle NodeIds. Don't edit while the server is running.");
+            }
+
+            Files.move(temp, slotsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("Could not save connection slots to {}.", slotsFile, e);
+        }
+    }
+
+    private static TrieNode put(TrieNode node, String name, int index, Optional<Connection> connection) {
+        TrieNode copy = node.copy();
+
+        if (index == name.length()) {
+            copy.connection = connection;
+        } else {
+            char c = name.charAt(index);
+            TrieNode child = node.child(c);
+
+            copy.setChild(c, put(child != null ? child : new TrieNode(), name, index + 1, connection));
+        }
+
+        return copy;
+    }
+
+    private static class TrieNode {
+
+        private static final char[] NoKeys = new char[0];
+        private static final TrieNode[] NoChildren = new TrieNode[0];
+
+        private char[] keys = NoKeys;
+        private TrieNode[] children = NoChildren;
+        private Optional<Connection> connection = Optional.empty();
+
+        TrieNode child(char c) {
+            int i = Arrays.binarySearch(keys, c);
+
+            return i >= 0 ? children[i] : null;
+        }
+
+        void setChild(char c, TrieNode child) {
+            int i = Arrays.binarySearch(keys, c);
+
+            if (i >= 0) {
+                children[i] = child;
+            } else {
+                int insertion = -(i + 1);
+
+                char[] newKeys = new char[keys.length + 1];
+                TrieNode[] newChildren = new TrieNode[children.length + 1];
+
+                System.arraycopy(keys, 0, newKeys, 0, insertion);
+                System.arraycopy(children, 0, newChildren, 0, insertion);
+                newKeys[insertion] = c;
+                newChildren[insertion] = child;
+                System.arraycopy(keys, insertion, newKeys, insertion + 1, keys.length - insertion);
+                System.arraycopy(children, insertion, newChildren, insertion + 1, children.length - insertion);
+
+                keys = newKeys;
+                children = newChildren;
+            }
+        }
+
+        TrieNode copy() {
+            TrieNode copy = new TrieNode();
+            copy.keys = keys.clone();
+            copy.children = children.clone();
+            copy.connection = connection;
+            return copy;
+        }
+
+    }
+
+}
@@ -0,0 +1,233 @@
+package com.digitalpetri.halcyon;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.digitalpetri.halcyon.api.Connection;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bulkhead in front of the shared {@link ExecutorService} for a single {@link Connection}.
+ * <p>
+ * At most {@code max-concurrency} tasks from a lane occupy threads of the shared executor at a time, and at most
+ * {@code max-queue-depth} tasks may wait behind them. A connection whose driver blocks therefore only delays its own
+ * requests; once its queue is full new work is rejected rather than piling up on the shared pool.
+ * <p>
+ * Configured per connection:
+ * <pre>
+ * connection.executor {
+ *     max-concurrency = 2
+ *     max-queue-depth = 1024
+ * }
+ * </pre>
+ * Both are at least 1; every task passes through the queue, so a depth of 0 would reject everything.
+ * <p>
+ * A lane runs on its connection's {@link com.digitalpetri.halcyon.api.ConnectionContext#getExecutorService()}. For a
+ * connection using virtual threads that executor is virtual-thread-per-task, and {@code max-concurrency} defaults to
+ * {@value #DefaultVirtualMaxConcurrency} instead, since a blocked task no longer holds on to a platform thread; the
+ * limit still bounds how many calls the connection's driver and device see at once.
+ */
+class ConnectionLane {
+
+    static final int DefaultMaxConcurrency = 2;
+    static final int DefaultVirtualMaxConcurrency = 32;
+    static final int DefaultMaxQueueDepth = 1024;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Queue<QueuedTask> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final AtomicInteger running = new AtomicInteger(0);
+
+    private final Timer waitTimer;
+    private final Meter rejectedMeter;
+
+    private final String name;
+    private final ExecutorService executor;
+    private final MetricRegistry metricRegistry;
+    private final int maxConcurrency;
+    private final int maxQueueDepth;
+
+    private volatile boolean closed = false;
+
+    ConnectionLane(String name,
+                   ExecutorService executor,
+                   MetricRegistry metricRegistry,
+                   int maxConcurrency,
+                   int maxQueueDepth) {
+
+        this.name = name;
+        this.executor = executor;
+        this.metricRegistry = metricRegistry;
+        this.maxConcurrency = maxConcurrency;
+        this.maxQueueDepth = maxQueueDepth;
+
+        metricRegistry.register(metricName("queue-depth"), (Gauge<Integer>) queued::get);
+        metricRegistry.register(metricName("running"), (Gauge<Integer>) running::get);
+
+        waitTimer = metricRegistry.timer(metricName("wait-time"));
+        rejectedMeter = metricRegistry.meter(metricName("rejected"));
+    }
+
+    /**
+     * Queue {@code task} for execution on the shared executor.
+     * <p>
+     * If the executor refuses the task once it reaches the front of the queue, e.g. because it has been shut down,
+     * {@code rejected} is run instead, on whichever thread was draining the lane. The same goes for tasks still queued
+     * when the lane is {@link #close() closed}.
+     *
+     * @param task     the task to execute.
+     * @param rejected run in place of {@code task} if the executor rejects it or the lane closes first; should fail
+     *                 whatever {@code task} would have completed.
+     * @return {@code false} if the lane's queue is full or the lane is closed, and the task was rejected.
+     */
+    boolean execute(Runnable task, Runnable rejected) {
+        if (closed) {
+            rejectedMeter.mark();
+            return false;
+        }
+
+        if (queued.incrementAndGet() > maxQueueDepth) {
+            queued.decrementAndGet();
+            rejectedMeter.mark();
+            return false;
+        }
+
+        queue.add(new QueuedTask(task, rejected, System.nanoTime()));
+
+        // Closed while queuing; don't leave the task behind in a lane nothing will drain.
+        if (closed) {
+            discard();
+        } else {
+            drain();
+        }
+
+        return true;
+    }
+
+    /**
+     * Stop accepting tasks, run the {@code rejected} hook of every task still queued instead of the task, and remove
+     * this lane's metrics from the {@link MetricRegistry}.
+     * <p>
+     * Called before the connection is shut down, so nothing queued runs against a connection that's gone. Tasks
+     * already running are left to finish.
+     */
+    void close() {
+        closed = true;
+
+        discard();
+
+        String prefix = MetricRegistry.name("connection", name, "executor");
+
+        metricRegistry.removeMatching((n, m) -> n.startsWith(prefix));
+    }
+
+    private void discard() {
+        QueuedTask task;
+
+        while ((task = queue.poll()) != null) {
+            queued.decrementAndGet();
+            reject(task);
+        }
+    }
+
+    private void drain() {
+        while (!queue.isEmpty()) {
+            int r = running.get();
+
+            if (r >= maxConcurrency) return;
+
+            if (running.compareAndSet(r, r + 1)) {
+                QueuedTask task = queue.poll();
+
+                if (task == null) {
+                    running.decrementAndGet();
+                } else if (closed) {
+                    running.decrementAndGet();
+                    queued.decrementAndGet();
+                    reject(task);
+                } else {
+                    queued.decrementAndGet();
+                    submit(task);
+                }
+            }
+        }
+    }
+
+    private void submit(QueuedTask task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    waitTimer.update(System.nanoTime() - task.queuedNanos, TimeUnit.NANOSECONDS);
+                    task.runnable.run();
+                } finally {
+                    running.decrementAndGet();
+                    drain();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            running.decrementAndGet();
+            reject(task);
+        }
+    }
+
+    private void reject(QueuedTask task) {
+        rejectedMeter.mark();
+
+        try {
+            task.rejected.run();
+        } catch (Throwable t) {
+            logger.error("Error running rejection handler for connection \"{}\".", name, t);
+        }
+    }
+
+    private String metricName(String metric) {
+        return MetricRegistry.name("connection", name, "executor", metric);
+    }
+
+    static ConnectionLane create(Connection connection) {
+        Config config = connection.getContext().getConfig();
+
+        int maxQueueDepth = config.hasPath("connection.executor.max-queue-depth") ?
+                config.getInt("connection.executor.max-queue-depth") : DefaultMaxQueueDepth;
+
+        int defaultMaxConcurrency = ConnectionContext.useVirtualThreads(config) ?
+                DefaultVirtualMaxConcurrency : DefaultMaxConcurrency;
+
+        int maxConcurrency = config.hasPath("connection.executor.max-concurrency") ?
+                config.getInt("connection.executor.max-concurrency") : defaultMaxConcurrency;
+
+        return new ConnectionLane(
+                connection.getContext().getName(),
+                connection.getContext().getExecutorService(),
+                connection.getContext().getMetricRegistry(),
+                Math.max(1, maxConcurrency),
+                Math.max(1, maxQueueDepth)
+        );
+    }
+
+    private static class QueuedTask {
+
+        private final Runnable runnable;
+        private final Runnable rejected;
+        private final long queuedNanos;
+
+        private QueuedTask(Runnable runnable, Runnable rejected, long queuedNanos) {
+            this.runnable = runnable;
+            this.rejected = rejected;
+            this.queuedNanos = queuedNanos;
+        }
+
+    }
+
+}
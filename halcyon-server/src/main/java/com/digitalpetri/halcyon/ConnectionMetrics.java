@@ -0,0 +1,153 @@
+package com.digitalpetri.halcyon;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.digitalpetri.halcyon.api.Connection;
+
+/**
+ * The metrics {@link ConnectionNamespace} records for each {@link Connection}, registered in the shared
+ * {@link MetricRegistry} as {@code connection.<name>.<operation>.<metric>}.
+ * <p>
+ * For every operation: {@code batch-size} is the number of items handed to the connection in one call,
+ * {@code queue-wait} the time spent waiting for the connection's executor lane, {@code service-time} the time from
+ * calling the connection until it completed, and {@code errors} the number of items that failed.
+ * <p>
+ * {@code connection.<name>.monitored-items} is the number of monitored items clients have on the connection.
+ * <p>
+ * {@code connection.<name>.startup-time} is recorded by {@link HalcyonServer} when it loads the connection, but is
+ * removed along with the rest when the connection is.
+ */
+class ConnectionMetrics {
+
+    private final OperationMetrics read;
+    private final OperationMetrics write;
+    private final OperationMetrics monitoredItemsCreated;
+    private final OperationMetrics monitoredItemsModified;
+    private final OperationMetrics monitoredItemsDeleted;
+
+    private final String name;
+    private final MetricRegistry metricRegistry;
+
+    ConnectionMetrics(String name, MetricRegistry metricRegistry, Gauge<Integer> monitoredItemCount) {
+        this.name = name;
+        this.metricRegistry = metricRegistry;
+
+        metricRegistry.register(MetricRegistry.name("connection", name, "monitored-items"), monitoredItemCount);
+
+        read = new OperationMetrics("read");
+        write = new OperationMetrics("write");
+        monitoredItemsCreated = new OperationMetrics("monitored-items-created");
+        monitoredItemsModified = new OperationMetrics("monitored-items-modified");
+        monitoredItemsDeleted = new OperationMetrics("monitored-items-deleted");
+    }
+
+    OperationMetrics getRead() {
+        return read;
+    }
+
+    OperationMetrics getWrite() {
+        return write;
+    }
+
+    OperationMetrics getMonitoredItemsCreated() {
+        return monitoredItemsCreated;
+    }
+
+    OperationMetrics getMonitoredItemsModified() {
+        return monitoredItemsModified;
+    }
+
+    OperationMetrics getMonitoredItemsDeleted() {
+        return monitoredItemsDeleted;
+    }
+
+    /**
+     * Remove every metric registered for this connection's operations, its monitored item count and its startup time.
+     */
+    void close() {
+        for (String operation : new String[]{"read", "write", "monitored-items-created",
+                "monitored-items-modified", "monitored-items-deleted"}) {
+
+            String prefix = MetricRegistry.name("connection", name, operation);
+
+            metricRegistry.removeMatching((n, m) -> n.startsWith(prefix));
+        }
+
+        metricRegistry.remove(MetricRegistry.name("connection", name, "monitored-items"));
+        metricRegistry.remove(MetricRegistry.name("connection", name, "startup-time"));
+    }
+
+    class OperationMetrics {
+
+        private final Histogram batchSize;
+        private final Timer queueWait;
+        private final Timer serviceTime;
+        private final Counter errors;
+
+        private OperationMetrics(String operation) {
+            batchSize = metricRegistry.histogram(MetricRegistry.name("connection", name, operation, "batch-size"));
+            queueWait = metricRegistry.timer(MetricRegistry.name("connection", name, operation, "queue-wait"));
+            serviceTime = metricRegistry.timer(MetricRegistry.name("connection", name, operation, "service-time"));
+            errors = metricRegistry.counter(MetricRegistry.name("connection", name, operation, "errors"));
+        }
+
+        void queued(long queuedNanos) {
+            queueWait.update(System.nanoTime() - queuedNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Record an asynchronous call to the connection that completes {@code future}.
+         *
+         * @param batchSize the number of items in the call.
+         * @param future    the future the connection completes.
+         * @param isError   tests whether an individual result counts as an error.
+         */
+        <T> void record(int batchSize, CompletableFuture<List<T>> future, Predicate<T> isError) {
+            this.batchSize.update(batchSize);
+
+            long startNanos = System.nanoTime();
+
+            future.whenComplete((results, ex) -> {
+                serviceTime.update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+
+                if (results != null) {
+                    long failed = results.stream().filter(isError).count();
+                    if (failed > 0) errors.inc(failed);
+                } else {
+                    errors.inc(batchSize);
+                }
+            });
+        }
+
+        /**
+         * Record a synchronous call to the connection.
+         *
+         * @param batchSize the number of items in the call.
+         * @param call      the call to make.
+         */
+        void record(int batchSize, Runnable call) {
+            this.batchSize.update(batchSize);
+
+            Timer.Context context = serviceTime.time();
+
+            try {
+                call.run();
+            } catch (RuntimeException e) {
+                errors.inc(batchSize);
+                throw e;
+            } finally {
+                context.stop();
+            }
+        }
+
+    }
+
+}
@@ -1,15 +1,27 @@
 package com.digitalpetri.halcyon;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.regex.Matcher;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import com.codahale.metrics.MetricRegistry;
+import com.digitalpetri.halcyon.ConnectionMetrics.OperationMetrics;
+import com.digitalpetri.halcyon.RequestTracer.Leg;
+import com.digitalpetri.halcyon.RequestTracer.Trace;
+import com.digitalpetri.halcyon.api.AsyncConnection;
 import com.digitalpetri.halcyon.api.Connection;
-import com.digitalpetri.halcyon.api.ConnectionContext;
+import com.digitalpetri.halcyon.api.LazyNodeConnection;
+import com.digitalpetri.halcyon.history.HistoryStore;
 import com.digitalpetri.opcua.server.api.MonitoredItem;
 import com.digitalpetri.opcua.server.api.Namespace;
 import com.digitalpetri.opcua.server.api.Reference;
@@ -19,7 +31,6 @@ import com.digitalpetri.opcua.server.api.nodes.UaObjectNode;
 import com.digitalpetri.opcua.server.util.Pending;
 import com.digitalpetri.opcua.server.util.PendingRead;
 import com.digitalpetri.opcua.server.util.PendingWrite;
-import com.digitalpetri.opcua.server.util.SubscriptionModel;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.opcfoundation.ua.builtintypes.*;
@@ -38,19 +49,78 @@ public class ConnectionNamespace implements Namespace {
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     private final Map<NodeId, UaNode> nodes = Maps.newConcurrentMap();
-    private final Map<String, Connection> connections = Maps.newConcurrentMap();
-
-    private final SubscriptionModel subscriptionModel;
+    private final ConnectionIndex connections;
+    private final Map<String, ConnectionLane> lanes = Maps.newConcurrentMap();
+    private final Map<String, ConnectionMetrics> metrics = Maps.newConcurrentMap();
+    private final Map<String, WriteBatcher> writeBatchers = Maps.newConcurrentMap();
+    private final Map<String, WriteJournal> writeJournals = Maps.newConcurrentMap();
+    private final Map<String, ConnectionPipeline> pipelines = Maps.newConcurrentMap();
+    private final Map<String, Set<MonitoredItem>> monitoredItems = Maps.newConcurrentMap();
+
+    private final SamplingEngine samplingEngine;
     private final NodeId connectionsNodeId;
+    private final NodeCache nodeCache;
+    private final ValueCache valueCache;
+    private final InFlightReads inFlightReads;
+    private final HistoryRecorder historyRecorder;
+    private final RequestTracer tracer;
 
-    private final HalcyonServer server;
+    private final ExecutorService executor;
     private final int namespaceIndex;
 
     public ConnectionNamespace(HalcyonServer server, int namespaceIndex) {
-        this.server = server;
+        this(server.getServer().getExecutorService(), server.getMetricRegistry(), server.getConfig(), namespaceIndex);
+
+        try {
+            server.getServer().getUaNamespace().addReference(
+                    Identifiers.ObjectsFolder,
+                    Identifiers.Organizes,
+                    true, ServerTable.DEFAULT.getUri(0),
+                    new ExpandedNodeId(connectionsNodeId), NodeClass.Object);
+        } catch (ServiceResultException e) {
+            logger.error("Error adding reference to Connections folder.", e);
+        }
+    }
+
+    /**
+     * Create a ConnectionNamespace that isn't linked into a server's address space. Used by the benchmarks.
+     */
+    ConnectionNamespace(ExecutorService executor,
+                        MetricRegistry metricRegistry,
+                        HalcyonConfig config,
+                        int namespaceIndex) {
+
+        this.executor = executor;
         this.namespaceIndex = namespaceIndex;
 
-        subscriptionModel = new SubscriptionModel(this, server.getServer().getExecutorService());
+        connections = new ConnectionIndex(namespaceIndex, config.getConnectionSlotsFile().map(Paths::get).orElse(null));
+
+        nodeCache = new NodeCache(config.getNodeCacheMaxSize(), metricRegistry);
+
+        valueCache = config.isReadCacheEnabled() ?
+                new ValueCache(config.getReadCacheMaxSize(), metricRegistry) : null;
+
+        inFlightReads = config.isReadCoalescingEnabled() ?
+                new InFlightReads(metricRegistry) : null;
+
+        samplingEngine = new SamplingEngine(
+                ConnectionContext.sharedScheduledExecutor(),
+                this::sampleRead,
+                nodeId -> connections.get(nodeId).map(c -> c.getContext().getName()),
+                metricRegistry);
+
+        tracer = config.isTracingEnabled() ?
+                new RequestTracer(
+                        config.getTracingSampleRate(),
+                        config.getTracingRingSize(),
+                        config.getTracingSlowThreshold(),
+                        config.getTracingSlowLogInterval(),
+                        metricRegistry) : null;
+
+        historyRecorder = config.isHistoryEnabled() ?
+                createHistoryRecorder(config, metricRegistry) : null;
+
+        if (historyRecorder != null) historyRecorder.start();
 
         connectionsNodeId = new NodeId(namespaceIndex, "Connections");
 
@@ -62,18 +132,55 @@ public class ConnectionNamespace implements Namespace {
                 .build();
 
         nodes.put(folderNode.getNodeId(), folderNode);
+    }
 
+    private HistoryRecorder createHistoryRecorder(HalcyonConfig config, MetricRegistry metricRegistry) {
         try {
-            server.getServer().getUaNamespace().addReference(
-                    Identifiers.ObjectsFolder,
-                    Identifiers.Organizes,
-                    true, ServerTable.DEFAULT.getUri(0),
-                    new ExpandedNodeId(connectionsNodeId), NodeClass.Object);
-        } catch (ServiceResultException e) {
-            logger.error("Error adding reference to Connections folder.", e);
+            HistoryStore store = new HistoryStore(
+                    Paths.get(config.getHistoryDirectory()),
+                    (int) Math.min(Integer.MAX_VALUE, config.getHistorySegmentSize()),
+                    config.getHistoryMaxAge(),
+                    config.getHistoryMaxSize(),
+                    metricRegistry);
+
+            return new HistoryRecorder(
+                    store,
+                    samplingEngine,
+                    ConnectionContext.sharedScheduledExecutor(),
+                    config.getHistoryTags(),
+                    namespaceIndex);
+        } catch (IOException e) {
+            logger.error("Error opening history store; history will not be recorded.", e);
+            return null;
         }
     }
 
+    /**
+     * Stop recording history and flush it to disk.
+     */
+    public void shutdown() {
+        if (historyRecorder != null) historyRecorder.stop();
+    }
+
+    /**
+     * Read the recorded history of {@code nodeId}, e.g. to answer a raw HistoryRead.
+     *
+     * @param nodeId    the {@link NodeId} of a recorded tag.
+     * @param start     the start of the range, inclusive.
+     * @param end       the end of the range, inclusive.
+     * @param maxValues the maximum number of values to return.
+     * @return the recorded values with source timestamps, in time order, or {@link Optional#empty()} if
+     * {@code nodeId} isn't recorded.
+     */
+    public Optional<List<DataValue>> historyReadRaw(NodeId nodeId, DateTime start, DateTime end, int maxValues) {
+        if (historyRecorder == null) return Optional.empty();
+
+        long from = start != null ? start.getMilliSeconds() : Long.MIN_VALUE;
+        long to = end != null ? end.getMilliSeconds() : Long.MAX_VALUE;
+
+        return historyRecorder.readRaw(nodeId, from, to, maxValues > 0 ? maxValues : Integer.MAX_VALUE);
+    }
+
     @Override
     public int getNamespaceIndex() {
         return namespaceIndex;
@@ -96,7 +203,13 @@ public class ConnectionNamespace implements Namespace {
         if (node != null) {
             return Optional.of(node);
         } else {
-            return connection(nodeId).flatMap(c -> c.getNode(nodeId));
+            return connection(nodeId).flatMap(c -> {
+                if (c instanceof LazyNodeConnection) {
+                    return nodeCache.get(nodeId, (LazyNodeConnection) c).map(n -> (Node) n);
+                } else {
+                    return c.getNode(nodeId);
+                }
+            });
         }
     }
 
@@ -107,7 +220,13 @@ public class ConnectionNamespace implements Namespace {
         if (node != null) {
             return Optional.of(node.getReferences());
         } else {
-            return connection(nodeId).flatMap(c -> c.getReferences(nodeId));
+            return connection(nodeId).flatMap(c -> {
+                if (c instanceof LazyNodeConnection) {
+                    return nodeCache.get(nodeId, (LazyNodeConnection) c).map(UaNode::getReferences);
+                } else {
+                    return c.getReferences(nodeId);
+                }
+            });
         }
     }
 
@@ -117,12 +236,59 @@ public class ConnectionNamespace implements Namespace {
                      TimestampsToReturn timestamps,
                      CompletableFuture<List<DataValue>> future) {
 
+        Trace trace = startTrace("Read", readValueIds.size(), future);
+
+        read(readValueIds, maxAge, timestamps, future, trace, true);
+    }
+
+    /**
+     * The read {@link SamplingEngine} samples through.
+     * <p>
+     * Unlike {@link #read(List, Double, TimestampsToReturn, CompletableFuture)} it isn't traced and never looks in the
+     * {@link ValueCache}, so sampling doesn't show up as client Read traffic or skew the cache's hit ratio. It still
+     * shares reads already in flight, and what it reads still refreshes the cache.
+     */
+    private void sampleRead(List<ReadValueId> readValueIds, CompletableFuture<List<DataValue>> future) {
+        read(readValueIds, 0.0, TimestampsToReturn.Both, future, null, false);
+    }
+
+    /**
+     * @param trace  the request's {@link Trace}, or {@code null} if it isn't traced.
+     * @param lookup whether to answer from the {@link ValueCache}.
+     */
+    private void read(List<ReadValueId> readValueIds,
+                      Double maxAge,
+                      TimestampsToReturn timestamps,
+                      CompletableFuture<List<DataValue>> future,
+                      Trace trace,
+                      boolean lookup) {
+
+        /*
+         * Fast path: every item belongs to the same connection, so the connection can complete our future directly
+         * without PendingReads or a second hand-off to aggregate them.
+         */
+
+        Optional<Connection> single = singleConnection(readValueIds, ReadValueId::getNodeId);
+
+        if (single != null) {
+            if (trace != null) trace.grouped();
+
+            if (single.isPresent()) {
+                readFromConnection(single.get(), readValueIds, maxAge, timestamps, future, trace, lookup);
+            } else {
+                future.complete(read(readValueIds));
+            }
+            return;
+        }
+
         List<PendingRead> pendingReads = readValueIds.stream()
                 .map(PendingRead::new)
                 .collect(Collectors.toList());
 
-        Map<Optional<Connection>, List<PendingRead>> byConnection = pendingReads.stream()
-                .collect(Collectors.groupingBy(p -> connection(p.getInput().getNodeId())));
+        Map<Optional<Connection>, List<PendingRead>> byConnection =
+                byConnection(pendingReads, p -> p.getInput().getNodeId());
+
+        if (trace != null) trace.grouped();
 
         byConnection.keySet().forEach(connection -> {
             List<PendingRead> pending = byConnection.get(connection);
@@ -134,8 +300,7 @@ public class ConnectionNamespace implements Namespace {
             CompletableFuture<List<DataValue>> callback = Pending.callback(pending);
 
             if (connection.isPresent()) {
-                server.getServer().getExecutorService().execute(
-                        () -> connection.get().read(ids, maxAge, timestamps, callback));
+                readFromConnection(connection.get(), ids, maxAge, timestamps, callback, trace, lookup);
             } else {
                 callback.complete(read(ids));
             }
@@ -149,7 +314,151 @@ public class ConnectionNamespace implements Namespace {
                 .map(PendingRead::getFuture)
                 .collect(Collectors.toList());
 
-        sequence(futures).thenAcceptAsync(future::complete, server.getServer().getExecutorService());
+        CompletableFuture<List<DataValue>> values = sequence(futures);
+        if (trace != null) values = values.whenComplete((v, ex) -> trace.aggregated());
+
+        values.thenAcceptAsync(future::complete, executor);
+    }
+
+    /**
+     * @param lookup whether to answer from the {@link ValueCache}; when {@code false} every item not already in flight
+     *               is read from the connection.
+     */
+    private void readFromConnection(Connection connection,
+                                    List<ReadValueId> ids,
+                                    Double maxAge,
+                                    TimestampsToReturn timestamps,
+                                    CompletableFuture<List<DataValue>> callback,
+                                    Trace trace,
+                                    boolean lookup) {
+
+        if (valueCache == null && inFlightReads == null) {
+            dispatchRead(connection, ids, maxAge, timestamps, callback, trace);
+            return;
+        }
+
+        /*
+         * Answer what we can from the cache, share reads of the same value already in flight, and only send the
+         * remainder to the connection. The remainder is always read with both timestamps so the values can be cached
+         * and shared; each request gets back only the timestamps it asked for.
+         */
+
+        double age = maxAge != null ? maxAge : 0.0;
+
+        DataValue[] results = new DataValue[ids.size()];
+        List<Integer> staleIndices = Lists.newArrayList();
+        List<ReadValueId> staleIds = Lists.newArrayList();
+        List<Long> staleVersions = Lists.newArrayList();
+        List<CompletableFuture<DataValue>> flights = Lists.newArrayList();
+        List<CompletableFuture<?>> completions = Lists.newArrayList();
+
+        for (int i = 0; i < ids.size(); i++) {
+            ReadValueId id = ids.get(i);
+
+            Optional<DataValue> cached = (valueCache != null && lookup) ?
+                    valueCache.get(id, age) : Optional.empty();
+
+            if (cached.isPresent()) {
+                results[i] = ValueCache.withTimestamps(cached.get(), timestamps);
+                continue;
+            }
+
+            if (inFlightReads != null) {
+                CompletableFuture<DataValue> flight = new CompletableFuture<>();
+                CompletableFuture<DataValue> existing = inFlightReads.join(id, flight);
+
+                if (existing != null) {
+                    int index = i;
+
+                    completions.add(existing.handle((value, ex) -> {
+                        results[index] = (value != null) ?
+                                ValueCache.withTimestamps(value, timestamps) :
+                                new DataValue(new StatusCode(StatusCodes.Bad_InternalError));
+                        return null;
+                    }));
+
+                    continue;
+                }
+
+                flights.add(flight);
+            }
+
+            staleIndices.add(i);
+            staleIds.add(id);
+            if (valueCache != null) staleVersions.add(valueCache.version(id));
+        }
+
+        if (!staleIds.isEmpty()) {
+            CompletableFuture<List<DataValue>> staleFuture = new CompletableFuture<>();
+
+            completions.add(staleFuture.whenComplete((values, ex) -> {
+                // A connection that answers with the wrong number of values fails the items it left out.
+                boolean complete = values != null && values.size() == staleIds.size();
+
+                for (int i = 0; i < staleIds.size(); i++) {
+                    ReadValueId id = staleIds.get(i);
+
+                    if (values != null) {
+                        DataValue value = i < values.size() ?
+                                values.get(i) : new DataValue(new StatusCode(StatusCodes.Bad_InternalError));
+
+                        if (valueCache != null && complete) valueCache.put(id, value, staleVersions.get(i));
+                        if (inFlightReads != null) inFlightReads.complete(id, flights.get(i), value);
+
+                        results[staleIndices.get(i)] = ValueCache.withTimestamps(value, timestamps);
+                    } else if (inFlightReads != null) {
+                        inFlightReads.fail(id, flights.get(i), ex);
+                    }
+                }
+            }));
+
+            dispatchRead(connection, staleIds, maxAge, TimestampsToReturn.Both, staleFuture, trace);
+        }
+
+        CompletableFuture.allOf(completions.toArray(new CompletableFuture[completions.size()]))
+                .whenComplete((v, ex) -> {
+                    if (ex != null) {
+                        callback.completeExceptionally(ex);
+                    } else {
+                        callback.complete(Arrays.asList(results));
+                    }
+                });
+    }
+
+    private void dispatchRead(Connection connection,
+                              List<ReadValueId> ids,
+                              Double maxAge,
+                              TimestampsToReturn timestamps,
+                              CompletableFuture<List<DataValue>> callback,
+                              Trace trace) {
+
+        OperationMetrics readMetrics = metrics(connection).getRead();
+        ConnectionPipeline pipeline = pipelines.get(connection.getContext().getName());
+        Leg leg = leg(trace, connection, callback);
+
+        if (pipeline != null) {
+            readMetrics.record(ids.size(), callback, v -> v.getStatusCode().isBad());
+            pipeline.read(ids, maxAge, timestamps, callback);
+        } else if (connection.isNonBlocking()) {
+            readMetrics.record(ids.size(), callback, v -> v.getStatusCode().isBad());
+            connection.read(ids, maxAge, timestamps, callback);
+        } else {
+            long queuedNanos = System.nanoTime();
+
+            Runnable unavailable = () -> {
+                DataValue value = new DataValue(new StatusCode(StatusCodes.Bad_ResourceUnavailable));
+                callback.complete(Collections.nCopies(ids.size(), value));
+            };
+
+            boolean queued = execute(connection, () -> {
+                if (leg != null) leg.dequeued();
+                readMetrics.queued(queuedNanos);
+                readMetrics.record(ids.size(), callback, v -> v.getStatusCode().isBad());
+                connection.read(ids, maxAge, timestamps, callback);
+            }, unavailable);
+
+            if (!queued) unavailable.run();
+        }
     }
 
     private List<DataValue> read(List<ReadValueId> readValueIds) {
@@ -167,12 +476,29 @@ public class ConnectionNamespace implements Namespace {
 
     @Override
     public void write(List<WriteValue> writeValues, CompletableFuture<List<StatusCode>> future) {
+        Trace trace = startTrace("Write", writeValues.size(), future);
+
+        Optional<Connection> single = singleConnection(writeValues, WriteValue::getNodeId);
+
+        if (single != null) {
+            if (trace != null) trace.grouped();
+
+            if (single.isPresent()) {
+                writeToConnection(single.get(), writeValues, future, trace);
+            } else {
+                future.complete(write(writeValues));
+            }
+            return;
+        }
+
         List<PendingWrite> pendingWrites = writeValues.stream()
                 .map(PendingWrite::new)
                 .collect(Collectors.toList());
 
-        Map<Optional<Connection>, List<PendingWrite>> byConnection = pendingWrites.stream()
-                .collect(Collectors.groupingBy(p -> connection(p.getInput().getNodeId())));
+        Map<Optional<Connection>, List<PendingWrite>> byConnection =
+                byConnection(pendingWrites, p -> p.getInput().getNodeId());
+
+        if (trace != null) trace.grouped();
 
         byConnection.keySet().forEach(connection -> {
             List<PendingWrite> pending = byConnection.get(connection);
@@ -184,8 +510,7 @@ public class ConnectionNamespace implements Namespace {
             CompletableFuture<List<StatusCode>> callback = Pending.callback(pending);
 
             if (connection.isPresent()) {
-                server.getServer().getExecutorService().execute(
-                        () -> connection.get().write(values, callback));
+                writeToConnection(connection.get(), values, callback, trace);
             } else {
                 callback.complete(write(values));
             }
@@ -195,7 +520,73 @@ public class ConnectionNamespace implements Namespace {
                 .map(PendingWrite::getFuture)
                 .collect(Collectors.toList());
 
-        sequence(futures).thenAcceptAsync(future::complete, server.getServer().getExecutorService());
+        CompletableFuture<List<StatusCode>> statusCodes = sequence(futures);
+        if (trace != null) statusCodes = statusCodes.whenComplete((v, ex) -> trace.aggregated());
+
+        statusCodes.thenAcceptAsync(future::complete, executor);
+    }
+
+    private void writeToConnection(Connection connection,
+                                   List<WriteValue> values,
+                                   CompletableFuture<List<StatusCode>> callback,
+                                   Trace trace) {
+
+        if (valueCache != null) {
+            // Invalidate before the write so nothing reads the old value back, and again after in case a read that
+            // was already in flight re-populated it.
+            values.forEach(v -> valueCache.invalidate(v.getNodeId(), v.getAttributeId()));
+
+            callback.whenComplete((statusCodes, ex) ->
+                    values.forEach(v -> valueCache.invalidate(v.getNodeId(), v.getAttributeId())));
+        }
+
+        String name = connection.getContext().getName();
+
+        WriteJournal journal = writeJournals.get(name);
+        if (journal != null && journal.offer(values, callback)) return;
+
+        WriteBatcher batcher = writeBatchers.get(name);
+
+        // Batched and journaled writes are sent later, as part of other batches; their traces end here.
+        if (batcher != null) {
+            batcher.write(values, callback);
+        } else {
+            dispatchWrite(connection, values, callback, trace);
+        }
+    }
+
+    private void dispatchWrite(Connection connection,
+                               List<WriteValue> values,
+                               CompletableFuture<List<StatusCode>> callback,
+                               Trace trace) {
+
+        OperationMetrics writeMetrics = metrics(connection).getWrite();
+        ConnectionPipeline pipeline = pipelines.get(connection.getContext().getName());
+        Leg leg = leg(trace, connection, callback);
+
+        if (pipeline != null) {
+            writeMetrics.record(values.size(), callback, StatusCode::isBad);
+            pipeline.write(values, callback);
+        } else if (connection.isNonBlocking()) {
+            writeMetrics.record(values.size(), callback, StatusCode::isBad);
+            connection.write(values, callback);
+        } else {
+            long queuedNanos = System.nanoTime();
+
+            Runnable unavailable = () -> {
+                StatusCode status = new StatusCode(StatusCodes.Bad_ResourceUnavailable);
+                callback.complete(Collections.nCopies(values.size(), status));
+            };
+
+            boolean queued = execute(connection, () -> {
+                if (leg != null) leg.dequeued();
+                writeMetrics.queued(queuedNanos);
+                writeMetrics.record(values.size(), callback, StatusCode::isBad);
+                connection.write(values, callback);
+            }, unavailable);
+
+            if (!queued) unavailable.run();
+        }
     }
 
     private List<StatusCode> write(List<WriteValue> values) {
@@ -204,79 +595,287 @@ public class ConnectionNamespace implements Namespace {
 
     @Override
     public void onMonitoredItemsCreated(List<MonitoredItem> monitoredItems) {
-        Map<Optional<Connection>, List<MonitoredItem>> byConnection = monitoredItems.stream()
-                .collect(Collectors.groupingBy(item -> connection(item.getReadValueId().getNodeId())));
+        Map<Optional<Connection>, List<MonitoredItem>> byConnection =
+                byConnection(monitoredItems, item -> item.getReadValueId().getNodeId());
 
         byConnection.keySet().forEach(connection -> {
             List<MonitoredItem> items = byConnection.get(connection);
 
             if (connection.isPresent()) {
-                connection.get().onMonitoredItemsCreated(items);
+                Connection c = connection.get();
+
+                monitoredItems(c).addAll(items);
+                monitoredItemsCreated(c, items);
             } else {
-                subscriptionModel.onMonitoredItemsCreated(items);
+                items.forEach(this::sample);
             }
         });
     }
 
     @Override
     public void onMonitoredItemsModified(List<MonitoredItem> monitoredItems) {
-        Map<Optional<Connection>, List<MonitoredItem>> byConnection = monitoredItems.stream()
-                .collect(Collectors.groupingBy(item -> connection(item.getReadValueId().getNodeId())));
+        Map<Optional<Connection>, List<MonitoredItem>> byConnection =
+                byConnection(monitoredItems, item -> item.getReadValueId().getNodeId());
 
         byConnection.keySet().forEach(connection -> {
             List<MonitoredItem> items = byConnection.get(connection);
 
             if (connection.isPresent()) {
-                connection.get().onMonitoredItemsModified(items);
+                Connection c = connection.get();
+
+                metrics(c).getMonitoredItemsModified().record(items.size(), () -> c.onMonitoredItemsModified(items));
+
+                if (c.isSampledByServer()) {
+                    items.forEach(this::resample);
+                }
             } else {
-                subscriptionModel.onMonitoredItemsModified(items);
+                items.forEach(this::resample);
             }
         });
     }
 
     @Override
     public void onMonitoredItemsDeleted(List<MonitoredItem> monitoredItems) {
-        Map<Optional<Connection>, List<MonitoredItem>> byConnection = monitoredItems.stream()
-                .collect(Collectors.groupingBy(item -> connection(item.getReadValueId().getNodeId())));
+        Map<Optional<Connection>, List<MonitoredItem>> byConnection =
+                byConnection(monitoredItems, item -> item.getReadValueId().getNodeId());
 
         byConnection.keySet().forEach(connection -> {
             List<MonitoredItem> items = byConnection.get(connection);
 
             if (connection.isPresent()) {
-                connection.get().onMonitoredItemsDeleted(items);
+                Connection c = connection.get();
+
+                monitoredItems(c).removeAll(items);
+                monitoredItemsDeleted(c, items);
             } else {
-                subscriptionModel.onMonitoredItemsDeleted(items);
+                items.forEach(item -> samplingEngine.remove(new MonitoredItemSampler(item)));
             }
         });
     }
 
     @Override
     public void onMonitoringModeChanged(List<MonitoredItem> monitoredItems) {
-        Map<Optional<Connection>, List<MonitoredItem>> byConnection = monitoredItems.stream()
-                .collect(Collectors.groupingBy(item -> connection(item.getReadValueId().getNodeId())));
+        Map<Optional<Connection>, List<MonitoredItem>> byConnection =
+                byConnection(monitoredItems, item -> item.getReadValueId().getNodeId());
 
         byConnection.keySet().forEach(connection -> {
             List<MonitoredItem> items = byConnection.get(connection);
 
-            if (connection.isPresent()) {
-                connection.get().onMonitoringModeChanged(items);
-            } else {
-                subscriptionModel.onMonitoringModeChanged(items);
-            }
+            // Items sampled by the engine are checked for being enabled on every tick; nothing to do for them here.
+            connection.ifPresent(c -> c.onMonitoringModeChanged(items));
         });
     }
 
-    private Optional<Connection> connection(NodeId nodeId) {
-        String id = nodeId.getValue().toString();
-        Matcher matcher = ConnectionContext.CONNECTION_PREFIX_PATTERN.matcher(id);
-        boolean matches = matcher.matches();
+    private void monitoredItemsCreated(Connection connection, List<MonitoredItem> items) {
+        metrics(connection).getMonitoredItemsCreated().record(
+                items.size(), () -> connection.onMonitoredItemsCreated(items));
+
+        // Sampling intervals may have been revised by the connection, so bucket the items only afterwards.
+        if (connection.isSampledByServer()) {
+            items.forEach(this::sample);
+        }
+    }
+
+    /**
+     * Replace an item's sampler after it was modified; both its sampling interval and its filter may have changed.
+     */
+    private void resample(MonitoredItem item) {
+        samplingEngine.remove(new MonitoredItemSampler(item));
+        sample(item);
+    }
+
+    /**
+     * Start sampling {@code item}, unless its filter can't be applied to its node; the item then gets a single value
+     * with the filter's Bad status instead, since the Namespace callbacks can't fail the item itself.
+     */
+    private void sample(MonitoredItem item) {
+        NodeId nodeId = item.getReadValueId().getNodeId();
+
+        try {
+            DataChangeDetector detector = DataChangeDetector.create(item.getFilter(), euRange(nodeId));
+
+            samplingEngine.add(new MonitoredItemSampler(item, detector));
+        } catch (ServiceResultException e) {
+            logger.debug("Not sampling {}: filter refused with {}.", nodeId, e.getStatusCode());
+
+            item.setValue(new DataValue(e.getStatusCode()));
+        }
+    }
+
+    /**
+     * Find the value of the EURange property of {@code nodeId}, if it has one.
+     */
+    private Optional<Range> euRange(NodeId nodeId) {
+        List<Reference> references = getReferences(nodeId).orElse(Collections.emptyList());
+
+        for (Reference reference : references) {
+            if (!reference.isForward() || !reference.getReferenceTypeId().equals(Identifiers.HasProperty)) continue;
+
+            ExpandedNodeId target = reference.getTargetNodeId();
+            Object id = target.getValue();
+
+            NodeId propertyId = (id instanceof UnsignedInteger) ?
+                    new NodeId(target.getNamespaceIndex(), (UnsignedInteger) id) :
+                    new NodeId(target.getNamespaceIndex(), String.valueOf(id));
+
+            Optional<Node> property = getNode(propertyId);
+
+            if (property.isPresent() && "EURange".equals(property.get().getBrowseName().getName())) {
+                DataValue value = ((UaNode) property.get()).readAttribute(Attributes.Value);
+                Object range = value.getValue() != null ? value.getValue().getValue() : null;
+
+                if (range instanceof Range) return Optional.of((Range) range);
+            }
+        }
+
+        return Optional.empty();
+    }
+
+    private void monitoredItemsDeleted(Connection connection, List<MonitoredItem> items) {
+        if (connection.isSampledByServer()) {
+            items.forEach(item -> samplingEngine.remove(new MonitoredItemSampler(item)));
+        }
+
+        metrics(connection).getMonitoredItemsDeleted().record(
+                items.size(), () -> connection.onMonitoredItemsDeleted(items));
+    }
+
+    /**
+     * Get the slot used to route handle NodeIds to the connection named {@code name}, assigning one if needed. A name
+     * keeps its slot for the life of the server, and across restarts if a slots file is configured.
+     *
+     * @param name a connection name.
+     * @return the slot, or -1 if no more slots are available.
+     */
+    public int slot(String name) {
+        return connections.slot(name);
+    }
+
+    Optional<Connection> connection(NodeId nodeId) {
+        return connections.get(nodeId);
+    }
+
+    private ConnectionLane lane(Connection connection) {
+        return lanes.get(connection.getContext().getName());
+    }
+
+    /**
+     * @return a {@link Trace} that finishes when {@code future} completes, if tracing is on and this request is
+     * sampled; otherwise {@code null}.
+     */
+    private Trace startTrace(String operation, int items, CompletableFuture<?> future) {
+        Trace trace = tracer != null ? tracer.start(operation, items) : null;
+
+        if (trace != null) future.whenComplete((v, ex) -> tracer.finish(trace));
+
+        return trace;
+    }
+
+    /**
+     * @return a {@link Leg} of {@code trace} for {@code connection} that ends when {@code callback} completes, or
+     * {@code null} if the request isn't traced.
+     */
+    private static Leg leg(Trace trace, Connection connection, CompletableFuture<?> callback) {
+        if (trace == null) return null;
+
+        Leg leg = trace.leg(connection.getContext().getName());
+        callback.whenComplete((v, ex) -> leg.returned());
+
+        return leg;
+    }
+
+    /**
+     * Run {@code task} on {@code connection}'s lane, or {@code rejected} if the executor refuses it later.
+     *
+     * @return {@code false} if the lane's queue is full or the connection has been removed.
+     */
+    private boolean execute(Connection connection, Runnable task, Runnable rejected) {
+        ConnectionLane lane = lane(connection);
+
+        return lane != null && lane.execute(task, rejected);
+    }
+
+    private ConnectionMetrics metrics(Connection connection) {
+        return metrics.get(connection.getContext().getName());
+    }
+
+    private Set<MonitoredItem> monitoredItems(Connection connection) {
+        return monitoredItems.computeIfAbsent(
+                connection.getContext().getName(),
+                name -> Collections.newSetFromMap(Maps.newConcurrentMap()));
+    }
+
+    /**
+     * @return the connection every item routes to ({@link Optional#empty()} if they're all nodes of this namespace),
+     * or {@code null} if the items are spread across more than one connection or there are none.
+     */
+    private <T> Optional<Connection> singleConnection(List<T> items, Function<T, NodeId> nodeId) {
+        if (items.isEmpty()) return null;
+
+        Optional<Connection> first = connection(nodeId.apply(items.get(0)));
+
+        for (int i = 1; i < items.size(); i++) {
+            if (!first.equals(connection(nodeId.apply(items.get(i))))) return null;
+        }
+
+        return first;
+    }
+
+    <T> Map<Optional<Connection>, List<T>> byConnection(List<T> items, Function<T, NodeId> nodeId) {
+        return items.stream().collect(Collectors.groupingBy(item -> connection(nodeId.apply(item))));
+    }
+
+    /**
+     * Add {@code connection} to this namespace.
+     * <p>
+     * If a connection with the same name is already present it is replaced in place: its monitored items are deleted
+     * from the old connection and created on the new one, so client subscriptions carry on across the swap.
+     *
+     * @param connection the {@link Connection} to add.
+     */
+    public synchronized void addConnection(Connection connection) {
+        String name = connection.getContext().getName();
+        Optional<Connection> previous = connections.byName(name);
+
+        previous.ifPresent(this::detach);
+
+        attach(connection);
+
+        if (previous.isPresent()) {
+            nodeCache.invalidateAll();
+            if (valueCache != null) valueCache.invalidateAll();
+        }
+
+        List<MonitoredItem> items = Lists.newArrayList(monitoredItems(connection));
 
-        return matches ?
-                Optional.ofNullable(connections.get(matcher.group(1))) :
-                Optional.empty();
+        if (!items.isEmpty()) {
+            logger.info("Moving {} monitored items to reloaded connection '{}'.", items.size(), name);
+
+            monitoredItemsCreated(connection, items);
+        }
     }
 
-    public void addConnection(Connection connection) {
+    /**
+     * Remove the connection named {@code name} from this namespace, deleting its monitored items and removing its
+     * nodes from the browse path.
+     *
+     * @param name the name of the connection to remove.
+     */
+    public synchronized void removeConnection(String name) {
+        connections.byName(name).ifPresent(connection -> {
+            detach(connection);
+
+            monitoredItems.remove(name);
+
+            ConnectionMetrics connectionMetrics = metrics.remove(name);
+            if (connectionMetrics != null) connectionMetrics.close();
+
+            nodeCache.invalidateAll();
+            if (valueCache != null) valueCache.invalidateAll();
+        });
+    }
+
+    private void attach(Connection connection) {
         // Build the browse path nodes...
         List<String> browsePath = connection.getContext().getConfig().getStringList("connection.browse-path");
         List<UaNode> browsePathNodes = createNodes(browsePath, Lists.newArrayList(), Lists.newArrayList());
@@ -291,10 +890,115 @@ public class ConnectionNamespace implements Namespace {
 
         references.stream().forEach(reference -> {
             UaNode node = nodes.get(reference.getSourceNodeId());
-            node.addReference(reference);
+
+            // Browse path folders may be shared with other connections, or left over from a previous attach.
+            if (organizes(node, reference.getTargetNodeId()).count() == 0) {
+                node.addReference(reference);
+            }
         });
 
-        connections.put(connection.getContext().getName(), connection);
+        String name = connection.getContext().getName();
+
+        lanes.put(name, ConnectionLane.create(connection));
+
+        WriteBatcher batcher = WriteBatcher.create(
+                connection,
+                ConnectionContext.sharedScheduledExecutor(),
+                (values, future) -> dispatchWrite(connection, values, future, null));
+
+        if (batcher != null) writeBatchers.put(name, batcher);
+
+        // Replayed writes have already been collapsed, so they bypass the batcher.
+        WriteJournal journal = WriteJournal.create(
+                connection,
+                ConnectionContext.sharedScheduledExecutor(),
+                (values, future) -> dispatchWrite(connection, values, future, null));
+
+        if (journal != null) writeJournals.put(name, journal);
+
+        if (connection instanceof AsyncConnection) {
+            pipelines.put(name, new ConnectionPipeline((AsyncConnection) connection));
+        }
+
+        // Metrics and monitored items outlive a reload; only create them for a connection that's new.
+        metrics.computeIfAbsent(name, n -> new ConnectionMetrics(
+                n,
+                connection.getContext().getMetricRegistry(),
+                () -> monitoredItems.getOrDefault(n, Collections.emptySet()).size()));
+        connections.add(name, connection);
+    }
+
+    /**
+     * Stop routing to {@code connection}, delete its monitored items, shut it down and remove its root folder and any
+     * browse path folders left empty from the address space. Its monitored item bookkeeping is left in place.
+     */
+    private void detach(Connection connection) {
+        String name = connection.getContext().getName();
+
+        connections.remove(name);
+
+        // Stop replaying; whatever is still queued stays in the journal file for the next instance.
+        WriteJournal journal = writeJournals.remove(name);
+        if (journal != null) journal.close();
+
+        // Send any writes still waiting for their window to close before the lane goes away.
+        WriteBatcher batcher = writeBatchers.remove(name);
+        if (batcher != null) batcher.close();
+
+        ConnectionLane lane = lanes.remove(name);
+        if (lane != null) lane.close();
+
+        ConnectionPipeline pipeline = pipelines.remove(name);
+        if (pipeline != null) pipeline.close();
+
+        List<MonitoredItem> items = Lists.newArrayList(monitoredItems(connection));
+
+        try {
+            if (!items.isEmpty()) monitoredItemsDeleted(connection, items);
+        } catch (Throwable t) {
+            logger.error("Error deleting monitored items from connection '{}'.", name, t);
+        }
+
+        try {
+            connection.shutdown();
+        } catch (Throwable t) {
+            logger.error("Error shutting down connection '{}'.", name, t);
+        }
+
+        // Walk the browse path back up, unlinking the connection's root and then any folder left without children.
+        List<String> browsePath = connection.getContext().getConfig().getStringList("connection.browse-path");
+        List<UaNode> path = Lists.newArrayList(nodes.get(connectionsNodeId));
+        createNodes(browsePath, Lists.newArrayList(), Lists.newArrayList()).forEach(n -> path.add(nodes.get(n.getNodeId())));
+
+        NodeId childId = connection.getContext().getRootNodeId();
+
+        for (int i = path.size() - 1; i >= 0; i--) {
+            UaNode parent = path.get(i);
+            if (parent == null) break;
+
+            removeOrganizes(parent, childId);
+
+            boolean empty = parent.getReferences().stream()
+                    .noneMatch(r -> r.isForward() && r.getReferenceTypeId().equals(Identifiers.Organizes));
+
+            if (!empty || parent.getNodeId().equals(connectionsNodeId)) break;
+
+            nodes.remove(parent.getNodeId());
+            childId = parent.getNodeId();
+        }
+    }
+
+    private void removeOrganizes(UaNode parent, NodeId childId) {
+        organizes(parent, new ExpandedNodeId(childId))
+                .collect(Collectors.toList())
+                .forEach(parent::removeReference);
+    }
+
+    private Stream<Reference> organizes(UaNode parent, ExpandedNodeId target) {
+        return parent.getReferences().stream()
+                .filter(r -> r.isForward() &&
+                        r.getReferenceTypeId().equals(Identifiers.Organizes) &&
+                        r.getTargetNodeId().equals(target));
     }
 
     private List<UaNode> createNodes(List<String> browsePath, List<String> currentPath, List<UaNode> nodes) {
@@ -0,0 +1,177 @@
+package com.digitalpetri.halcyon;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.digitalpetri.halcyon.api.AsyncConnection;
+import com.google.common.collect.Lists;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.core.ReadValueId;
+import org.opcfoundation.ua.core.StatusCodes;
+import org.opcfoundation.ua.core.TimestampsToReturn;
+import org.opcfoundation.ua.core.WriteValue;
+
+/**
+ * Splits reads and writes to an {@link AsyncConnection} into batches no larger than its max batch size and pipelines
+ * them, keeping at most its max in-flight batches outstanding and queueing the rest in order.
+ * <p>
+ * A batch that fails, or completes with the wrong number of results, yields {@code Bad_InternalError} for its own
+ * items only; the rest of the request is unaffected.
+ */
+class ConnectionPipeline {
+
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final AtomicInteger draining = new AtomicInteger(0);
+
+    private final String name;
+    private final AsyncConnection connection;
+    private final MetricRegistry metricRegistry;
+    private final int maxBatchSize;
+    private final int maxInFlight;
+
+    ConnectionPipeline(AsyncConnection connection) {
+        this.connection = connection;
+
+        name = connection.getContext().getName();
+        metricRegistry = connection.getContext().getMetricRegistry();
+        maxBatchSize = Math.max(1, connection.getMaxBatchSize());
+        maxInFlight = Math.max(1, connection.getMaxInFlight());
+
+        metricRegistry.register(metricName("queued"), (Gauge<Integer>) queued::get);
+        metricRegistry.register(metricName("in-flight"), (Gauge<Integer>) inFlight::get);
+    }
+
+    void read(List<ReadValueId> ids,
+              Double maxAge,
+              TimestampsToReturn timestamps,
+              CompletableFuture<List<DataValue>> future) {
+
+        DataValue failed = new DataValue(new StatusCode(StatusCodes.Bad_InternalError));
+
+        execute(ids, batch -> connection.readAsync(batch, maxAge, timestamps), failed, future);
+    }
+
+    void write(List<WriteValue> values, CompletableFuture<List<StatusCode>> future) {
+        StatusCode failed = new StatusCode(StatusCodes.Bad_InternalError);
+
+        execute(values, connection::writeAsync, failed, future);
+    }
+
+    /**
+     * @return the number of batches sent to the connection and not yet completed.
+     */
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Remove this pipeline's metrics from the {@link MetricRegistry}.
+     */
+    void close() {
+        String prefix = MetricRegistry.name("connection", name, "pipeline");
+
+        metricRegistry.removeMatching((n, m) -> n.startsWith(prefix));
+    }
+
+    private <I, O> void execute(List<I> items,
+                                Function<List<I>, CompletionStage<List<O>>> operation,
+                                O failed,
+                                CompletableFuture<List<O>> future) {
+
+        if (items.size() <= maxBatchSize) {
+            submit(() -> operation.apply(items)).whenComplete((results, ex) ->
+                    future.complete(orFailed(items, results, failed)));
+
+            return;
+        }
+
+        List<List<I>> batches = Lists.partition(items, maxBatchSize);
+        List<CompletableFuture<List<O>>> futures = Lists.newArrayListWithCapacity(batches.size());
+
+        for (List<I> batch : batches) {
+            futures.add(submit(() -> operation.apply(batch)).handle((results, ex) -> orFailed(batch, results, failed)));
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).thenRun(() -> {
+            List<O> results = Lists.newArrayListWithCapacity(items.size());
+            futures.forEach(f -> results.addAll(f.join()));
+            future.complete(results);
+        });
+    }
+
+    private static <I, O> List<O> orFailed(List<I> batch, List<O> results, O failed) {
+        return (results != null && results.size() == batch.size()) ?
+                results : Collections.nCopies(batch.size(), failed);
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<CompletionStage<T>> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        queued.incrementAndGet();
+
+        queue.add(() -> {
+            CompletionStage<T> stage;
+
+            try {
+                stage = operation.get();
+            } catch (Throwable t) {
+                stage = failedStage(t);
+            }
+
+            stage.whenComplete((result, ex) -> {
+                inFlight.decrementAndGet();
+
+                if (ex != null) future.completeExceptionally(ex);
+                else future.complete(result);
+
+                drain();
+            });
+        });
+
+        drain();
+
+        return future;
+    }
+
+    /**
+     * Start queued batches while there's room in flight. Only one thread drains at a time; a batch completing during
+     * a drain, even synchronously from within it, makes the draining thread go round again instead of recursing.
+     */
+    private void drain() {
+        if (draining.getAndIncrement() != 0) return;
+
+        do {
+            while (inFlight.get() < maxInFlight) {
+                Runnable task = queue.poll();
+                if (task == null) break;
+
+                queued.decrementAndGet();
+                inFlight.incrementAndGet();
+                task.run();
+            }
+        } while (draining.decrementAndGet() != 0);
+    }
+
+    private String metricName(String metric) {
+        return MetricRegistry.name("connection", name, "pipeline", metric);
+    }
+
+    private static <T> CompletionStage<T> failedStage(Throwable t) {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        f.completeExceptionally(t);
+        return f;
+    }
+
+}
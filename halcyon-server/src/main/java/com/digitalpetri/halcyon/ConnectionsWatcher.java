@@ -0,0 +1,132 @@
+package com.digitalpetri.halcyon;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches the connections directory, and every directory below it, for .conf files being created, modified or
+ * deleted.
+ * <p>
+ * Events are collected for a short quiet period before being reported, so an editor saving a file in several steps
+ * results in a single callback per file. The callback only receives the path; whether the file now exists tells the
+ * receiver if it was added/changed or removed.
+ */
+class ConnectionsWatcher {
+
+    private static final long QuietPeriodMillis = 500L;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Map<WatchKey, Path> directories = Maps.newConcurrentMap();
+
+    private final WatchService watchService;
+    private final Thread thread;
+
+    private final Consumer<Path> onChange;
+
+    ConnectionsWatcher(Path root, Consumer<Path> onChange) throws IOException {
+        this.onChange = onChange;
+
+        watchService = FileSystems.getDefault().newWatchService();
+
+        registerAll(root);
+
+        thread = new Thread(this::run, "halcyon-connections-watcher");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.warn("Error closing WatchService.", e);
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+
+                Thread.sleep(QuietPeriodMillis);
+
+                Set<Path> changed = Sets.newLinkedHashSet();
+
+                do {
+                    Path directory = directories.get(key);
+
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == OVERFLOW || directory == null) continue;
+
+                        Path path = directory.resolve((Path) event.context());
+
+                        if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+                            registerAll(path);
+
+                            try (Stream<Path> files = Files.walk(path)) {
+                                files.filter(ConnectionsWatcher::isConfigFile).forEach(changed::add);
+                            }
+                        } else if (isConfigFile(path)) {
+                            changed.add(path);
+                        }
+                    }
+
+                    if (!key.reset()) directories.remove(key);
+
+                    key = watchService.poll();
+                } while (key != null);
+
+                changed.forEach(path -> {
+                    try {
+                        onChange.accept(path);
+                    } catch (Throwable t) {
+                        logger.error("Error handling change to {}.", path, t);
+                    }
+                });
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            logger.debug("Connections watcher stopped.");
+        } catch (IOException e) {
+            logger.error("Connections watcher failed.", e);
+        }
+    }
+
+    private void registerAll(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path directory : (Iterable<Path>) paths.filter(Files::isDirectory)::iterator) {
+                WatchKey key = directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+
+                directories.put(key, directory);
+            }
+        }
+    }
+
+    private static boolean isConfigFile(Path path) {
+        return path.toString().endsWith(".conf");
+    }
+
+}
@@ -0,0 +1,154 @@
+package com.digitalpetri.halcyon;
+
+import java.util.Objects;
+import java.util.Optional;
+
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.ExtensionObject;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.builtintypes.Variant;
+import org.opcfoundation.ua.common.ServiceResultException;
+import org.opcfoundation.ua.core.DataChangeFilter;
+import org.opcfoundation.ua.core.DataChangeTrigger;
+import org.opcfoundation.ua.core.DeadbandType;
+import org.opcfoundation.ua.core.Range;
+import org.opcfoundation.ua.core.StatusCodes;
+
+/**
+ * Decides whether a newly sampled value is a reportable change according to a monitored item's
+ * {@link DataChangeFilter}: its trigger (status; status and value; or status, value and source timestamp) and its
+ * absolute or percent deadband.
+ * <p>
+ * Numeric values are remembered and compared as primitive doubles, so the deadband check doesn't allocate. Deadbands
+ * only apply to scalar numeric values; anything else is compared with {@code equals}. A percent deadband needs the
+ * node's EURange; a filter asking for one without it is refused rather than sampled unfiltered.
+ * <p>
+ * Not thread-safe; the sampling engine delivers an item's values one at a time.
+ */
+class DataChangeDetector {
+
+    private final DataChangeTrigger trigger;
+    private final double deadband;
+
+    private boolean first = true;
+    private StatusCode lastStatus;
+    private DateTime lastSourceTime;
+    private boolean lastNumeric;
+    private double lastDouble;
+    private Object lastValue;
+
+    /**
+     * @param trigger  the {@link DataChangeTrigger}.
+     * @param deadband the absolute deadband to apply to numeric values, or 0 for none.
+     */
+    DataChangeDetector(DataChangeTrigger trigger, double deadband) {
+        this.trigger = trigger;
+        this.deadband = deadband;
+    }
+
+    /**
+     * @param value the newly sampled value.
+     * @return {@code true} if {@code value} should be reported to the client.
+     */
+    boolean isChange(DataValue value) {
+        StatusCode status = value.getStatusCode();
+        DateTime sourceTime = value.getSourceTimestamp();
+        Variant variant = value.getValue();
+        Object o = variant != null ? variant.getValue() : null;
+
+        boolean numeric = o instanceof Number;
+        double d = numeric ? ((Number) o).doubleValue() : 0.0;
+
+        boolean changed;
+
+        if (first) {
+            changed = true;
+        } else if (!Objects.equals(status, lastStatus)) {
+            changed = true;
+        } else if (trigger == DataChangeTrigger.Status) {
+            changed = false;
+        } else if (valueChanged(numeric, d, o)) {
+            changed = true;
+        } else {
+            changed = trigger == DataChangeTrigger.StatusValueTimestamp && !Objects.equals(sourceTime, lastSourceTime);
+        }
+
+        if (changed) {
+            first = false;
+            lastStatus = status;
+            lastSourceTime = sourceTime;
+            lastNumeric = numeric;
+            lastDouble = d;
+            lastValue = numeric ? null : o;
+        }
+
+        return changed;
+    }
+
+    private boolean valueChanged(boolean numeric, double d, Object o) {
+        if (numeric && lastNumeric) {
+            // NaN != NaN, so compare bit patterns when there's no deadband to honour.
+            return deadband > 0 ?
+                    Math.abs(d - lastDouble) > deadband :
+                    Double.doubleToLongBits(d) != Double.doubleToLongBits(lastDouble);
+        } else {
+            return numeric != lastNumeric || !Objects.deepEquals(o, lastValue);
+        }
+    }
+
+    /**
+     * The detector used for items without a filter: report status or value changes, with no deadband.
+     */
+    static DataChangeDetector statusValue() {
+        return new DataChangeDetector(DataChangeTrigger.StatusValue, 0.0);
+    }
+
+    /**
+     * Build a detector for {@code filter}, which may be {@code null} or a filter of some other kind.
+     *
+     * @param filter  the item's monitoring filter.
+     * @param euRange the EURange of the item's node, needed for a percent deadband.
+     * @return a {@link DataChangeDetector} for the filter.
+     * @throws ServiceResultException with Bad_FilterNotAllowed if the filter asks for a percent deadband and there's
+     *                                no EURange, or Bad_MonitoredItemFilterUnsupported for an unknown deadband type.
+     */
+    static DataChangeDetector create(ExtensionObject filter, Optional<Range> euRange) throws ServiceResultException {
+        Object decoded;
+
+        try {
+            decoded = filter != null ? filter.decode() : null;
+        } catch (Exception e) {
+            decoded = null;
+        }
+
+        if (!(decoded instanceof DataChangeFilter)) return statusValue();
+
+        DataChangeFilter dcf = (DataChangeFilter) decoded;
+
+        DataChangeTrigger trigger = dcf.getTrigger() != null ? dcf.getTrigger() : DataChangeTrigger.StatusValue;
+        double value = dcf.getDeadbandValue() != null ? dcf.getDeadbandValue() : 0.0;
+        UnsignedInteger type = dcf.getDeadbandType();
+
+        double deadband;
+
+        if (type == null || type.intValue() == DeadbandType.None.getValue()) {
+            deadband = 0.0;
+        } else if (type.intValue() == DeadbandType.Absolute.getValue()) {
+            deadband = value;
+        } else if (type.intValue() == DeadbandType.Percent.getValue()) {
+            // Without a range there's nothing to take a percentage of; quietly dropping the deadband would report
+            // every change the client asked to filter out.
+            if (!euRange.isPresent()) throw new ServiceResultException(StatusCodes.Bad_FilterNotAllowed);
+
+            Range r = euRange.get();
+            deadband = value / 100.0 * Math.abs(r.getHigh() - r.getLow());
+        } else {
+            throw new ServiceResultException(StatusCodes.Bad_MonitoredItemFilterUnsupported);
+        }
+
+        return new DataChangeDetector(trigger, Math.max(0.0, deadband));
+    }
+
+}
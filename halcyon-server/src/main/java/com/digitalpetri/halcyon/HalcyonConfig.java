@@ -1,8 +1,10 @@
 package com.digitalpetri.halcyon;
 
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 import com.digitalpetri.halcyon.util.ManifestUtil;
 import com.digitalpetri.opcua.server.api.OpcUaServerConfig;
@@ -44,6 +46,190 @@ public class HalcyonConfig implements OpcUaServerConfig {
         });
     }
 
+    /**
+     * @return {@code true} if the connections directory should be watched so connections are added, reloaded and
+     * removed as their configuration files change.
+     */
+    public boolean isConnectionWatchingEnabled() {
+        return getBoolean("halcyon.connection-loading.watch", true);
+    }
+
+    /**
+     * @return the file connections' handle NodeId slots are saved to, so they're the same after a restart, if
+     * configured.
+     */
+    public Optional<String> getConnectionSlotsFile() {
+        return config.hasPath("halcyon.connection-loading.slots-file") ?
+                Optional.of(config.getString("halcyon.connection-loading.slots-file")) : Optional.empty();
+    }
+
+    /**
+     * @return {@code true} if reads should be served from the server-side value cache when their maxAge allows it.
+     */
+    public boolean isReadCacheEnabled() {
+        return getBoolean("halcyon.read-cache.enabled", false);
+    }
+
+    /**
+     * @return the maximum number of values held in the server-side value cache.
+     */
+    public long getReadCacheMaxSize() {
+        return getLong("halcyon.read-cache.max-size", 100000L);
+    }
+
+    /**
+     * @return the maximum number of nodes built on demand by lazy connections that are kept in memory.
+     */
+    public long getNodeCacheMaxSize() {
+        return getLong("halcyon.node-cache.max-size", 100000L);
+    }
+
+    /**
+     * @return {@code true} if concurrent reads of the same value should share a single connection read.
+     */
+    public boolean isReadCoalescingEnabled() {
+        return getBoolean("halcyon.read-coalescing.enabled", false);
+    }
+
+    /**
+     * @return the number of connections that may be loaded and constructed concurrently at startup.
+     */
+    public int getConnectionLoadingParallelism() {
+        return Math.max(1, getInt("halcyon.connection-loading.parallelism",
+                Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @return {@code true} if the tags listed in {@code halcyon.history.tags} should be recorded.
+     */
+    public boolean isHistoryEnabled() {
+        return getBoolean("halcyon.history.enabled", false);
+    }
+
+    /**
+     * @return the directory the history store keeps its segment files in.
+     */
+    public String getHistoryDirectory() {
+        return config.hasPath("halcyon.history.directory") ?
+                config.getString("halcyon.history.directory") : "../history";
+    }
+
+    /**
+     * @return the size of each history segment file, in bytes.
+     */
+    public long getHistorySegmentSize() {
+        return getBytes("halcyon.history.segment-size", 64L * 1024 * 1024);
+    }
+
+    /**
+     * @return how long recorded history is retained, in milliseconds.
+     */
+    public long getHistoryMaxAge() {
+        return getMillis("halcyon.history.retention.max-age", TimeUnit.DAYS.toMillis(30));
+    }
+
+    /**
+     * @return the most disk space recorded history may use, in bytes.
+     */
+    public long getHistoryMaxSize() {
+        return getBytes("halcyon.history.retention.max-size", 1024L * 1024 * 1024);
+    }
+
+    /**
+     * @return the configuration of each tag to record.
+     */
+    public List<? extends Config> getHistoryTags() {
+        return config.hasPath("halcyon.history.tags") ?
+                config.getConfigList("halcyon.history.tags") : Collections.emptyList();
+    }
+
+    /**
+     * @return {@code true} if the metrics should be served over HTTP in the Prometheus text format.
+     */
+    public boolean isMetricsExporterEnabled() {
+        return getBoolean("halcyon.metrics-exporter.enabled", false);
+    }
+
+    /**
+     * @return the address the metrics exporter listens on.
+     */
+    public String getMetricsExporterBindAddress() {
+        return config.hasPath("halcyon.metrics-exporter.bind-address") ?
+                config.getString("halcyon.metrics-exporter.bind-address") : "0.0.0.0";
+    }
+
+    /**
+     * @return the port the metrics exporter listens on.
+     */
+    public int getMetricsExporterPort() {
+        return getInt("halcyon.metrics-exporter.port", 9464);
+    }
+
+    /**
+     * @return the HTTP path the metrics exporter serves the metrics at.
+     */
+    public String getMetricsExporterPath() {
+        return config.hasPath("halcyon.metrics-exporter.path") ?
+                config.getString("halcyon.metrics-exporter.path") : "/metrics";
+    }
+
+    /**
+     * @return {@code true} if connections' address spaces should be saved to, and restored from, snapshots.
+     */
+    public boolean isSnapshotEnabled() {
+        return getBoolean("halcyon.snapshot.enabled", false);
+    }
+
+    /**
+     * @return the directory address space snapshots are kept in.
+     */
+    public String getSnapshotDirectory() {
+        return config.hasPath("halcyon.snapshot.directory") ?
+                config.getString("halcyon.snapshot.directory") : "../snapshots";
+    }
+
+    /**
+     * @return the time, in milliseconds, to wait after a connection is added before taking a snapshot of it.
+     */
+    public long getSnapshotSaveDelay() {
+        return getMillis("halcyon.snapshot.save-delay", 30000L);
+    }
+
+    /**
+     * @return {@code true} if a sample of Read and Write requests should be traced.
+     */
+    public boolean isTracingEnabled() {
+        return getBoolean("halcyon.tracing.enabled", false);
+    }
+
+    /**
+     * @return the fraction of Read and Write requests to trace, from 0 to 1.
+     */
+    public double getTracingSampleRate() {
+        return getDouble("halcyon.tracing.sample-rate", 0.01);
+    }
+
+    /**
+     * @return the number of finished traces to keep.
+     */
+    public int getTracingRingSize() {
+        return getInt("halcyon.tracing.ring-size", 1024);
+    }
+
+    /**
+     * @return the time, in milliseconds, after which a traced request is logged as slow.
+     */
+    public long getTracingSlowThreshold() {
+        return getMillis("halcyon.tracing.slow-threshold", 500L);
+    }
+
+    /**
+     * @return the minimum time, in milliseconds, between two slow request log entries.
+     */
+    public long getTracingSlowLogInterval() {
+        return getMillis("halcyon.tracing.slow-log-interval", 10000L);
+    }
+
     @Override
     public BuildInfo getBuildInfo() {
         String productUri = "http://www.digitalpetri.com/halcyon";
@@ -67,4 +253,28 @@ public class HalcyonConfig implements OpcUaServerConfig {
         );
     }
 
+    private boolean getBoolean(String path, boolean defaultValue) {
+        return config.hasPath(path) ? config.getBoolean(path) : defaultValue;
+    }
+
+    private int getInt(String path, int defaultValue) {
+        return config.hasPath(path) ? config.getInt(path) : defaultValue;
+    }
+
+    private long getLong(String path, long defaultValue) {
+        return config.hasPath(path) ? config.getLong(path) : defaultValue;
+    }
+
+    private double getDouble(String path, double defaultValue) {
+        return config.hasPath(path) ? config.getDouble(path) : defaultValue;
+    }
+
+    private long getBytes(String path, long defaultValue) {
+        return config.hasPath(path) ? config.getBytes(path) : defaultValue;
+    }
+
+    private long getMillis(String path, long defaultValue) {
+        return config.hasPath(path) ? config.getMilliseconds(path) : defaultValue;
+    }
+
 }
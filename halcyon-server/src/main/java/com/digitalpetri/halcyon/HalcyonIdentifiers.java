@@ -5,11 +5,29 @@ import org.opcfoundation.ua.builtintypes.UnsignedInteger;
 
 public class HalcyonIdentifiers {
 
+    public static final NodeId Halcyon = init("Halcyon");
+
+    public static final NodeId Heap = init("Heap");
     public static final NodeId HeapInit = init("Heap/Init");
     public static final NodeId HeapUsed = init("Heap/Used");
     public static final NodeId HeapCommitted = init("Heap/Committed");
     public static final NodeId HeapMax = init("Heap/Max");
 
+    public static final NodeId GarbageCollectors = init("GarbageCollectors");
+
+    public static final NodeId Sampling = init("Sampling");
+    public static final NodeId SamplingItems = init("Sampling/Items");
+    public static final NodeId SamplingOverruns = init("Sampling/Overruns");
+    public static final NodeId SamplingIntervals = init("Sampling/Intervals");
+
+    public static final NodeId Connections = init("Connections");
+
+    public static final NodeId Tracing = init("Tracing");
+    public static final NodeId TracingSampled = init("Tracing/Sampled");
+    public static final NodeId TracingSlow = init("Tracing/Slow");
+    public static final NodeId TracingRecent = init("Tracing/Recent");
+    public static final NodeId TracingSlowest = init("Tracing/Slowest");
+
     static NodeId init(String value) {
         return new NodeId(1, value);
     }
@@ -1,10 +1,16 @@
 package com.digitalpetri.halcyon;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import com.codahale.metrics.MetricRegistry;
+import com.digitalpetri.opcua.server.OpcUaServer;
 import com.digitalpetri.opcua.server.api.MonitoredItem;
 import com.digitalpetri.opcua.server.api.Namespace;
 import com.digitalpetri.opcua.server.api.Reference;
@@ -13,19 +19,63 @@ import com.digitalpetri.opcua.server.api.nodes.UaNode;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.ExpandedNodeId;
 import org.opcfoundation.ua.builtintypes.NodeId;
 import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.common.ServerTable;
+import org.opcfoundation.ua.common.ServiceResultException;
 import org.opcfoundation.ua.core.*;
-
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The server's own namespace: the live diagnostics of {@link HalcyonNamespaceModel}, under {@code Objects/Halcyon}.
+ * <p>
+ * Every variable is read-only. Monitored items are sampled here, at their sampling interval but no faster than
+ * {@link HalcyonNamespaceModel#MinimumSamplingInterval}, and only report changes.
+ */
 public class HalcyonNamespace implements Namespace {
 
-    private final HalcyonNamespaceModel model = new HalcyonNamespaceModel();
-    private final Map<NodeId, UaNode> nodes = Maps.newConcurrentMap();
+    /**
+     * How often to pick up connections and sampling intervals that have come or gone, in milliseconds.
+     */
+    private static final long RefreshInterval = 1000L;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Map<MonitoredItem, ScheduledFuture<?>> sampledItems = Maps.newConcurrentMap();
+
+    private final HalcyonNamespaceModel model;
+    private final ScheduledExecutorService scheduler;
+    private final ScheduledFuture<?> refresh;
 
     private final String namespaceUri;
 
-    public HalcyonNamespace(String namespaceUri) {
+    public HalcyonNamespace(OpcUaServer server, String namespaceUri, MetricRegistry metricRegistry) {
         this.namespaceUri = namespaceUri;
+
+        model = new HalcyonNamespaceModel(metricRegistry);
+        scheduler = ConnectionContext.sharedScheduledExecutor();
+
+        refresh = scheduler.scheduleWithFixedDelay(
+                model::refresh, RefreshInterval, RefreshInterval, TimeUnit.MILLISECONDS);
+
+        try {
+            server.getUaNamespace().addReference(
+                    Identifiers.ObjectsFolder,
+                    Identifiers.Organizes,
+                    true, ServerTable.DEFAULT.getUri(0),
+                    new ExpandedNodeId(HalcyonIdentifiers.Halcyon), NodeClass.Object);
+        } catch (ServiceResultException e) {
+            logger.error("Error adding reference to Halcyon folder.", e);
+        }
+    }
+
+    public void shutdown() {
+        refresh.cancel(false);
+
+        sampledItems.values().forEach(f -> f.cancel(false));
+        sampledItems.clear();
     }
 
     @Override
@@ -40,23 +90,17 @@ public class HalcyonNamespace implements Namespace {
 
     @Override
     public boolean containsNodeId(NodeId nodeId) {
-        return nodes.containsKey(nodeId);
+        return model.getNode(nodeId).isPresent();
     }
 
     @Override
     public Optional<Node> getNode(NodeId nodeId) {
-        return Optional.ofNullable(nodes.get(nodeId));
+        return model.getNode(nodeId).map(node -> (Node) node);
     }
 
     @Override
     public Optional<List<Reference>> getReferences(NodeId nodeId) {
-        UaNode node = nodes.get(nodeId);
-
-        if (node != null) {
-            return Optional.of(node.getReferences());
-        } else {
-            return Optional.empty();
-        }
+        return model.getNode(nodeId).map(UaNode::getReferences);
     }
 
     @Override
@@ -67,45 +111,82 @@ public class HalcyonNamespace implements Namespace {
         List<DataValue> results = Lists.newArrayListWithCapacity(readValueIds.size());
 
         for (ReadValueId id : readValueIds) {
-            if (id.getAttributeId().equals(Attributes.Value)) {
-                results.add(model.readValue(id.getNodeId()));
-            } else {
-                UaNode node = nodes.get(id.getNodeId());
-
-                DataValue value = (node != null) ?
-                        node.readAttribute(id.getAttributeId()) :
-                        new DataValue(new StatusCode(StatusCodes.Bad_NodeIdUnknown));
-
-                results.add(value);
-            }
+            results.add(read(id));
         }
 
         future.complete(results);
     }
 
+    private DataValue read(ReadValueId id) {
+        if (id.getAttributeId().equals(Attributes.Value)) {
+            return model.readValue(id.getNodeId());
+        } else {
+            return model.getNode(id.getNodeId())
+                    .map(node -> node.readAttribute(id.getAttributeId()))
+                    .orElse(new DataValue(new StatusCode(StatusCodes.Bad_NodeIdUnknown)));
+        }
+    }
+
     @Override
     public void write(List<WriteValue> writeValues, CompletableFuture<List<StatusCode>> future) {
-
+        future.complete(Collections.nCopies(writeValues.size(), new StatusCode(StatusCodes.Bad_NotWritable)));
     }
 
     @Override
     public void onMonitoredItemsCreated(List<MonitoredItem> monitoredItems) {
-
+        monitoredItems.forEach(this::startSampling);
     }
 
     @Override
     public void onMonitoredItemsModified(List<MonitoredItem> monitoredItems) {
-
+        monitoredItems.forEach(item -> {
+            stopSampling(item);
+            startSampling(item);
+        });
     }
 
     @Override
     public void onMonitoredItemsDeleted(List<MonitoredItem> monitoredItems) {
-
+        monitoredItems.forEach(this::stopSampling);
     }
 
     @Override
     public void onMonitoringModeChanged(List<MonitoredItem> monitoredItems) {
+        // Sampling checks whether each item is enabled on every tick.
+    }
+
+    private void startSampling(MonitoredItem item) {
+        DataChangeDetector detector;
+
+        try {
+            // The diagnostics variables have no EURange, so a percent deadband is refused.
+            detector = DataChangeDetector.create(item.getFilter(), Optional.empty());
+        } catch (ServiceResultException e) {
+            item.setValue(new DataValue(e.getStatusCode()));
+            return;
+        }
+
+        MonitoredItemSampler sampler = new MonitoredItemSampler(item, detector);
+
+        // Revise the interval so the client learns how often it's actually sampled.
+        if (item.getSamplingInterval() < HalcyonNamespaceModel.MinimumSamplingInterval) {
+            item.setSamplingInterval(HalcyonNamespaceModel.MinimumSamplingInterval);
+        }
+
+        long interval = Math.round(item.getSamplingInterval());
+
+        ScheduledFuture<?> future = scheduler.scheduleAtFixedRate(() -> {
+            if (sampler.isSamplingEnabled()) sampler.onValue(read(sampler.getReadValueId()));
+        }, 0L, interval, TimeUnit.MILLISECONDS);
+
+        ScheduledFuture<?> previous = sampledItems.put(item, future);
+        if (previous != null) previous.cancel(false);
+    }
+
+    private void stopSampling(MonitoredItem item) {
+        ScheduledFuture<?> future = sampledItems.remove(item);
 
+        if (future != null) future.cancel(false);
     }
 
 }
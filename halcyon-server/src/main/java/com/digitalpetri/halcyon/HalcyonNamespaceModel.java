@@ -1,13 +1,354 @@
 package com.digitalpetri.halcyon;
 
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.digitalpetri.opcua.server.api.Reference;
+import com.digitalpetri.opcua.server.api.nodes.UaNode;
+import com.digitalpetri.opcua.server.api.nodes.UaObjectNode;
+import com.digitalpetri.opcua.server.api.nodes.UaVariableNode;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.ExpandedNodeId;
+import org.opcfoundation.ua.builtintypes.LocalizedText;
 import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.QualifiedName;
+import org.opcfoundation.ua.builtintypes.StatusCode;
 import org.opcfoundation.ua.builtintypes.Variant;
+import org.opcfoundation.ua.core.AccessLevel;
+import org.opcfoundation.ua.core.Identifiers;
+import org.opcfoundation.ua.core.StatusCodes;
 
+/**
+ * The server's diagnostics address space, under {@code Objects/Halcyon}:
+ * <pre>
+ * Heap/{Init, Used, Committed, Max}                                   bytes
+ * GarbageCollectors/&lt;collector&gt;/{Count, Time}                       collections, milliseconds
+ * Sampling/{Items, Overruns}
+ * Sampling/Intervals/&lt;interval&gt;                                      items sampled at each interval (ms)
+ * Connections/&lt;name&gt;/{Read, Write}/{Rate, LatencyMedian, Latency95th, Latency99th, Errors}
+ * Connections/&lt;name&gt;/Executor/{QueueDepth, Running}
+ * Connections/&lt;name&gt;/Pipeline/{Queued, InFlight}
+ * Connections/&lt;name&gt;/WriteJournal/Depth
+ * Connections/&lt;name&gt;/MonitoredItems
+ * Tracing/{Sampled, Slow}                                             traced and slow requests
+ * Tracing/{Recent, Slowest}                                           request traces, as text
+ * </pre>
+ * Rates are per second over the last minute and latencies are in milliseconds, both from the connection's
+ * {@code service-time} timer. The tracing values are empty unless {@code halcyon.tracing} is enabled; see
+ * {@link RequestTracer}.
+ * <p>
+ * Values are computed when read, mostly from the shared {@link MetricRegistry}. The connection and sampling interval
+ * folders follow the metrics registered for them, which {@link #refresh()} picks up.
+ */
 public class HalcyonNamespaceModel {
 
+    /**
+     * Diagnostics are sampled no faster than this, in milliseconds.
+     */
+    static final double MinimumSamplingInterval = 1000.0;
+
+    private final Map<NodeId, UaNode> nodes = Maps.newConcurrentMap();
+    private final Map<NodeId, Supplier<Object>> values = Maps.newConcurrentMap();
+
+    private final Set<String> connectionNames = Sets.newHashSet();
+    private final Set<String> samplingIntervals = Sets.newHashSet();
+
+    private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+
+    private final MetricRegistry metricRegistry;
+
+    public HalcyonNamespaceModel(MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+
+        addFolder(null, HalcyonIdentifiers.Halcyon, "Halcyon");
+
+        addFolder(HalcyonIdentifiers.Halcyon, HalcyonIdentifiers.Heap, "Heap");
+        addVariable(HalcyonIdentifiers.Heap, HalcyonIdentifiers.HeapInit, "Init", heap(MemoryUsage::getInit));
+        addVariable(HalcyonIdentifiers.Heap, HalcyonIdentifiers.HeapUsed, "Used", heap(MemoryUsage::getUsed));
+        addVariable(HalcyonIdentifiers.Heap, HalcyonIdentifiers.HeapCommitted, "Committed",
+                heap(MemoryUsage::getCommitted));
+        addVariable(HalcyonIdentifiers.Heap, HalcyonIdentifiers.HeapMax, "Max", heap(MemoryUsage::getMax));
+
+        addFolder(HalcyonIdentifiers.Halcyon, HalcyonIdentifiers.GarbageCollectors, "GarbageCollectors");
+
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            NodeId folderId = child(HalcyonIdentifiers.GarbageCollectors, gc.getName());
+
+            addFolder(HalcyonIdentifiers.GarbageCollectors, folderId, gc.getName());
+            addVariable(folderId, child(folderId, "Count"), "Count", gc::getCollectionCount);
+            addVariable(folderId, child(folderId, "Time"), "Time", gc::getCollectionTime);
+        }
+
+        addFolder(HalcyonIdentifiers.Halcyon, HalcyonIdentifiers.Sampling, "Sampling");
+        addVariable(HalcyonIdentifiers.Sampling, HalcyonIdentifiers.SamplingItems, "Items",
+                gauge(MetricRegistry.name("halcyon", "sampling", "items")));
+        addVariable(HalcyonIdentifiers.Sampling, HalcyonIdentifiers.SamplingOverruns, "Overruns",
+                count(MetricRegistry.name("halcyon", "sampling", "overruns")));
+        addFolder(HalcyonIdentifiers.Sampling, HalcyonIdentifiers.SamplingIntervals, "Intervals");
+
+        addFolder(HalcyonIdentifiers.Halcyon, HalcyonIdentifiers.Connections, "Connections");
+
+        addFolder(HalcyonIdentifiers.Halcyon, HalcyonIdentifiers.Tracing, "Tracing");
+        addVariable(HalcyonIdentifiers.Tracing, HalcyonIdentifiers.TracingSampled, "Sampled",
+                count(MetricRegistry.name("halcyon", "tracing", "sampled")));
+        addVariable(HalcyonIdentifiers.Tracing, HalcyonIdentifiers.TracingSlow, "Slow",
+                count(MetricRegistry.name("halcyon", "tracing", "slow")));
+        addVariable(HalcyonIdentifiers.Tracing, HalcyonIdentifiers.TracingRecent, "Recent",
+                text(MetricRegistry.name("halcyon", "tracing", "recent")));
+        addVariable(HalcyonIdentifiers.Tracing, HalcyonIdentifiers.TracingSlowest, "Slowest",
+                text(MetricRegistry.name("halcyon", "tracing", "slowest")));
+
+        refresh();
+    }
+
+    public Optional<UaNode> getNode(NodeId nodeId) {
+        return Optional.ofNullable(nodes.get(nodeId));
+    }
+
     public DataValue readValue(NodeId nodeId) {
-        return new DataValue(Variant.NULL);
+        Supplier<Object> supplier = values.get(nodeId);
+
+        if (supplier == null) {
+            return new DataValue(new StatusCode(
+                    nodes.containsKey(nodeId) ? StatusCodes.Bad_AttributeIdInvalid : StatusCodes.Bad_NodeIdUnknown));
+        }
+
+        DateTime now = DateTime.currentTime();
+
+        return new DataValue(new Variant(supplier.get()), StatusCode.GOOD, now, now);
+    }
+
+    /**
+     * Add folders for connections and sampling intervals that have appeared since the last refresh, and remove those
+     * that have gone.
+     */
+    synchronized void refresh() {
+        Set<String> metricNames = metricRegistry.getMetrics().keySet();
+
+        Set<String> currentConnections = MetricNames.connectionNames(metricNames);
+        Set<String> currentIntervals = MetricNames.samplingIntervals(metricNames);
+
+        for (String name : Sets.difference(connectionNames, currentConnections).immutableCopy()) {
+            removeTree(HalcyonIdentifiers.Connections, child(HalcyonIdentifiers.Connections, name));
+            connectionNames.remove(name);
+        }
+
+        for (String name : Sets.difference(currentConnections, connectionNames).immutableCopy()) {
+            addConnection(name);
+            connectionNames.add(name);
+        }
+
+        for (String interval : Sets.difference(samplingIntervals, currentIntervals).immutableCopy()) {
+            removeTree(HalcyonIdentifiers.SamplingIntervals, child(HalcyonIdentifiers.SamplingIntervals, interval));
+            samplingIntervals.remove(interval);
+        }
+
+        for (String interval : Sets.difference(currentIntervals, samplingIntervals).immutableCopy()) {
+            addVariable(HalcyonIdentifiers.SamplingIntervals,
+                    child(HalcyonIdentifiers.SamplingIntervals, interval), interval,
+                    gauge(MetricRegistry.name("halcyon", "sampling", "interval", interval, "items")));
+
+            samplingIntervals.add(interval);
+        }
+    }
+
+    private void addConnection(String name) {
+        NodeId folderId = child(HalcyonIdentifiers.Connections, name);
+
+        addFolder(HalcyonIdentifiers.Connections, folderId, name);
+
+        for (String operation : new String[]{"Read", "Write"}) {
+            NodeId operationId = child(folderId, operation);
+            String serviceTime = MetricRegistry.name("connection", name, operation.toLowerCase(), "service-time");
+            String errors = MetricRegistry.name("connection", name, operation.toLowerCase(), "errors");
+
+            addFolder(folderId, operationId, operation);
+            addVariable(operationId, child(operationId, "Rate"), "Rate",
+                    timer(serviceTime, Timer::getOneMinuteRate));
+            addVariable(operationId, child(operationId, "LatencyMedian"), "LatencyMedian",
+                    timer(serviceTime, t -> millis(t.getSnapshot().getMedian())));
+            addVariable(operationId, child(operationId, "Latency95th"), "Latency95th",
+                    timer(serviceTime, t -> millis(t.getSnapshot().get95thPercentile())));
+            addVariable(operationId, child(operationId, "Latency99th"), "Latency99th",
+                    timer(serviceTime, t -> millis(t.getSnapshot().get99thPercentile())));
+            addVariable(operationId, child(operationId, "Errors"), "Errors", count(errors));
+        }
+
+        NodeId executorId = child(folderId, "Executor");
+        addFolder(folderId, executorId, "Executor");
+        addVariable(executorId, child(executorId, "QueueDepth"), "QueueDepth",
+                gauge(MetricRegistry.name("connection", name, "executor", "queue-depth")));
+        addVariable(executorId, child(executorId, "Running"), "Running",
+                gauge(MetricRegistry.name("connection", name, "executor", "running")));
+
+        NodeId pipelineId = child(folderId, "Pipeline");
+        addFolder(folderId, pipelineId, "Pipeline");
+        addVariable(pipelineId, child(pipelineId, "Queued"), "Queued",
+                gauge(MetricRegistry.name("connection", name, "pipeline", "queued")));
+        addVariable(pipelineId, child(pipelineId, "InFlight"), "InFlight",
+                gauge(MetricRegistry.name("connection", name, "pipeline", "in-flight")));
+
+        NodeId journalId = child(folderId, "WriteJournal");
+        addFolder(folderId, journalId, "WriteJournal");
+        addVariable(journalId, child(journalId, "Depth"), "Depth",
+                gauge(MetricRegistry.name("connection", name, "write-journal", "depth")));
+
+        addVariable(folderId, child(folderId, "MonitoredItems"), "MonitoredItems",
+                gauge(MetricRegistry.name("connection", name, "monitored-items")));
+    }
+
+    private void addFolder(NodeId parentId, NodeId nodeId, String name) {
+        UaObjectNode node = UaObjectNode.builder()
+                .setNodeId(nodeId)
+                .setBrowseName(new QualifiedName(nodeId.getNamespaceIndex(), name))
+                .setDisplayName(LocalizedText.english(name))
+                .setTypeDefinition(Identifiers.FolderType)
+                .build();
+
+        add(parentId, node);
+    }
+
+    /**
+     * Add a read-only variable whose value is {@code supplier}'s: a {@link Long}, a {@link Double} for rates and
+     * latencies, or a {@link String}.
+     */
+    private void addVariable(NodeId parentId, NodeId nodeId, String name, Supplier<Object> supplier) {
+        Object initial = supplier.get();
+
+        UaVariableNode node = UaVariableNode.builder()
+                .setNodeId(nodeId)
+                .setBrowseName(new QualifiedName(nodeId.getNamespaceIndex(), name))
+                .setDisplayName(LocalizedText.english(name))
+                .setDataType(dataType(initial))
+                .setValue(new DataValue(new Variant(initial)))
+                .setAccessLevel(AccessLevel.getMask(AccessLevel.READONLY))
+                .setUserAccessLevel(AccessLevel.getMask(AccessLevel.READONLY))
+                .setMinimumSamplingInterval(MinimumSamplingInterval)
+                .build();
+
+        values.put(nodeId, supplier);
+
+        add(parentId, node);
+    }
+
+    private static NodeId dataType(Object value) {
+        if (value instanceof Double) return Identifiers.Double;
+        if (value instanceof String) return Identifiers.String;
+
+        return Identifiers.Int64;
+    }
+
+    private void add(NodeId parentId, UaNode node) {
+        nodes.put(node.getNodeId(), node);
+
+        UaNode parent = parentId != null ? nodes.get(parentId) : null;
+
+        if (parent != null) {
+            parent.addReference(new Reference(
+                    parentId,
+                    Identifiers.Organizes,
+                    new ExpandedNodeId(node.getNodeId()),
+                    node.getNodeClass(),
+                    true
+            ));
+        }
+    }
+
+    /**
+     * Remove {@code nodeId} and every node below it, and its reference from {@code parentId}.
+     */
+    private void removeTree(NodeId parentId, NodeId nodeId) {
+        String prefix = nodeId.getValue() + "/";
+
+        nodes.keySet().removeIf(id -> id.equals(nodeId) || id.getValue().toString().startsWith(prefix));
+        values.keySet().removeIf(id -> id.equals(nodeId) || id.getValue().toString().startsWith(prefix));
+
+        UaNode parent = nodes.get(parentId);
+
+        if (parent != null) {
+            ExpandedNodeId target = new ExpandedNodeId(nodeId);
+
+            parent.getReferences().stream()
+                    .filter(r -> r.isForward() && r.getTargetNodeId().equals(target))
+                    .collect(Collectors.toList())
+                    .forEach(parent::removeReference);
+        }
+    }
+
+    private Supplier<Object> heap(Function<MemoryUsage, Long> f) {
+        return () -> f.apply(memoryBean.getHeapMemoryUsage());
+    }
+
+    /**
+     * A {@link Gauge}'s value as a {@link Long}, or 0 while the gauge isn't registered (e.g. a connection without a
+     * pipeline).
+     */
+    private Supplier<Object> gauge(String name) {
+        return () -> {
+            Metric metric = metricRegistry.getMetrics().get(name);
+            Object value = metric instanceof Gauge ? ((Gauge<?>) metric).getValue() : null;
+
+            return value instanceof Number ? ((Number) value).longValue() : 0L;
+        };
+    }
+
+    /**
+     * A {@link Counter}'s or {@link Meter}'s count.
+     */
+    private Supplier<Object> count(String name) {
+        return () -> {
+            Metric metric = metricRegistry.getMetrics().get(name);
+
+            if (metric instanceof Counter) return ((Counter) metric).getCount();
+            if (metric instanceof Meter) return ((Meter) metric).getCount();
+
+            return 0L;
+        };
+    }
+
+    /**
+     * A {@link Gauge}'s value as a {@link String}, or empty while the gauge isn't registered.
+     */
+    private Supplier<Object> text(String name) {
+        return () -> {
+            Metric metric = metricRegistry.getMetrics().get(name);
+            Object value = metric instanceof Gauge ? ((Gauge<?>) metric).getValue() : null;
+
+            return value != null ? value.toString() : "";
+        };
+    }
+
+    private Supplier<Object> timer(String name, Function<Timer, Double> f) {
+        return () -> {
+            Metric metric = metricRegistry.getMetrics().get(name);
+
+            return metric instanceof Timer ? f.apply((Timer) metric) : 0.0;
+        };
+    }
+
+    private static double millis(double nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    private static NodeId child(NodeId parentId, String name) {
+        return HalcyonIdentifiers.init(parentId.getValue() + "/" + name);
     }
 
 }
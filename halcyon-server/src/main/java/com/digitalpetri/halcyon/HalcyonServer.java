@@ -1,14 +1,30 @@
 package com.digitalpetri.halcyon;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.codahale.metrics.MetricRegistry;
 import com.digitalpetri.halcyon.api.Connection;
 import com.digitalpetri.halcyon.api.ConnectionType;
 import com.digitalpetri.halcyon.util.KeyUtil;
+import com.digitalpetri.halcyon.util.VirtualThreads;
 import com.digitalpetri.opcua.server.OpcUaServer;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import org.opcfoundation.ua.application.Application;
@@ -26,13 +42,20 @@ public class HalcyonServer {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
+    private final HalcyonConfig halcyonConfig;
     private final OpcUaServer server;
 
+    private final Map<Path, String> connectionFiles = Maps.newConcurrentMap();
+
+    private volatile ConnectionsWatcher connectionsWatcher;
+    private volatile MetricsExporter metricsExporter;
+
     private final HalcyonNamespace halcyonNamespace;
     private final ConnectionNamespace connectionNamespace;
+    private final SnapshotStore snapshotStore;
 
     public HalcyonServer(Config config) {
-        HalcyonConfig halcyonConfig = new HalcyonConfig(config);
+        halcyonConfig = new HalcyonConfig(config);
 
         Application application = new Application();
 
@@ -53,20 +76,49 @@ public class HalcyonServer {
 
         halcyonNamespace = server.getNamespaceManager().registerAndAdd(
                 application.getApplicationUri(),
-                (namespaceIndex) -> new HalcyonNamespace(application.getApplicationUri()));
+                (namespaceIndex) -> new HalcyonNamespace(server, application.getApplicationUri(), MetricRegistry));
 
         connectionNamespace = server.getNamespaceManager().registerAndAdd(
                 ConnectionNamespace.NAMESPACE_URI,
                 (namespaceIndex) -> new ConnectionNamespace(this, namespaceIndex));
 
+        snapshotStore = halcyonConfig.isSnapshotEnabled() ?
+                new SnapshotStore(
+                        Paths.get(halcyonConfig.getSnapshotDirectory()),
+                        halcyonConfig.getSnapshotSaveDelay(),
+                        server.getExecutorService(),
+                        ConnectionContext.sharedScheduledExecutor()) : null;
+
+        if (snapshotStore != null && !halcyonConfig.getConnectionSlotsFile().isPresent()) {
+            logger.warn("Snapshots are enabled without halcyon.connection-loading.slots-file; connections " +
+                    "will get different slots on each start and rarely restore from their snapshots.");
+        }
+
         loadConnections();
     }
 
     public void startup() throws ServiceResultException {
         server.startup();
+
+        if (halcyonConfig.isMetricsExporterEnabled()) {
+            metricsExporter = new MetricsExporter(
+                    MetricRegistry,
+                    ConnectionContext.sharedEventLoop(),
+                    ConnectionContext.sharedScheduledExecutor(),
+                    halcyonConfig.getMetricsExporterPath());
+
+            metricsExporter.start(
+                    halcyonConfig.getMetricsExporterBindAddress(),
+                    halcyonConfig.getMetricsExporterPort());
+        }
     }
 
     public void shutdown() {
+        if (connectionsWatcher != null) connectionsWatcher.stop();
+        if (metricsExporter != null) metricsExporter.stop();
+
+        connectionNamespace.shutdown();
+        halcyonNamespace.shutdown();
         server.shutdown();
     }
 
@@ -74,6 +126,14 @@ public class HalcyonServer {
         return server;
     }
 
+    public HalcyonConfig getConfig() {
+        return halcyonConfig;
+    }
+
+    public MetricRegistry getMetricRegistry() {
+        return MetricRegistry;
+    }
+
     private void loadConnections() {
         File connectionsDirectory = new File("../connections/");
 
@@ -82,29 +142,135 @@ public class HalcyonServer {
             return;
         }
 
-        loadDirectory(connectionsDirectory);
-    }
-
-    private void loadDirectory(File directory) {
         /*
-		 * Load any .conf files in this directory.
-		 */
-        File[] configFiles = directory.listFiles(pathname -> pathname.getPath().endsWith(".conf"));
-        Arrays.stream(configFiles).forEach(file -> {
+         * Register the watcher before the initial loads so changes made while they run are queued, but only start it
+         * once they've all finished, so a change is never applied before the initial load of the same file.
+         */
+        if (halcyonConfig.isConnectionWatchingEnabled()) {
             try {
-                Connection connection = load(file);
-
-                connectionNamespace.addConnection(connection);
-            } catch (Exception e) {
-                logger.error("Error loading connection.", e);
+                connectionsWatcher = new ConnectionsWatcher(connectionsDirectory.toPath(), this::connectionFileChanged);
+            } catch (IOException e) {
+                logger.error("Could not watch connections directory; changes will require a restart.", e);
             }
+        }
+
+        List<File> configFiles = Lists.newArrayList();
+        findConfigFiles(connectionsDirectory, configFiles);
+
+        /*
+         * Load connections in parallel, adding each to the namespace as soon as it's ready. The server doesn't wait for
+         * them; clients see connections appear as they finish loading.
+         */
+
+        ExecutorService loader = Executors.newFixedThreadPool(
+                halcyonConfig.getConnectionLoadingParallelism(),
+                new ThreadFactory() {
+                    private final AtomicLong threadNumber = new AtomicLong(1L);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "halcyon-loader-thread-" + threadNumber.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        long startNanos = System.nanoTime();
+
+        CompletableFuture<?>[] loads = configFiles.stream()
+                .map(file -> CompletableFuture.runAsync(() -> loadConnection(file), loader))
+                .toArray(CompletableFuture[]::new);
+
+        CompletableFuture.allOf(loads).whenComplete((v, ex) -> {
+            loader.shutdown();
+
+            logger.info("Loaded {} connection(s) in {}ms.", configFiles.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+
+            if (connectionsWatcher != null) connectionsWatcher.start();
         });
+    }
+
+    private void findConfigFiles(File directory, List<File> configFiles) {
+        /*
+		 * Collect any .conf files in this directory.
+		 */
+        File[] files = directory.listFiles(pathname -> pathname.getPath().endsWith(".conf"));
+        configFiles.addAll(Arrays.asList(files));
 
 		/*
-		 * Recursively descend into subdirectories loading .conf files as we go.
+		 * Recursively descend into subdirectories collecting .conf files as we go.
 		 */
         File[] dirs = directory.listFiles(File::isDirectory);
-        Arrays.stream(dirs).forEach(this::loadDirectory);
+        Arrays.stream(dirs).forEach(dir -> findConfigFiles(dir, configFiles));
+    }
+
+    private void loadConnection(File file) {
+        long startNanos = System.nanoTime();
+
+        try {
+            Connection connection = load(file);
+            String name = connection.getContext().getName();
+
+            // Loads run in parallel, but are added under the same lock as connectionFileChanged.
+            synchronized (this) {
+                connectionNamespace.addConnection(connection);
+                if (snapshotStore != null) snapshotStore.attached(connection);
+
+                connectionFiles.put(file.toPath().toAbsolutePath().normalize(), name);
+            }
+
+            long elapsedNanos = System.nanoTime() - startNanos;
+
+            MetricRegistry.timer(com.codahale.metrics.MetricRegistry.name("connection", name, "startup-time"))
+                    .update(elapsedNanos, TimeUnit.NANOSECONDS);
+
+            logger.info("Loaded connection '{}' from {} in {}ms.",
+                    name, file, TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        } catch (Throwable t) {
+            logger.error("Error loading connection from {}.", file, t);
+        }
+    }
+
+    /**
+     * Apply a change to a connection configuration file: a new file adds a connection, a changed file replaces the
+     * connection it defines in place, and a deleted file removes its connection.
+     * <p>
+     * If a changed file can't be loaded the connection it previously defined is left running.
+     */
+    private synchronized void connectionFileChanged(Path path) {
+        Path key = path.toAbsolutePath().normalize();
+        String previous = connectionFiles.get(key);
+
+        if (Files.exists(path)) {
+            Connection connection;
+
+            try {
+                connection = load(path.toFile());
+            } catch (Throwable t) {
+                logger.error("Error loading connection from {}.", path, t);
+                return;
+            }
+
+            String name = connection.getContext().getName();
+
+            if (previous != null && !previous.equals(name)) {
+                connectionNamespace.removeConnection(previous);
+                if (snapshotStore != null) snapshotStore.removed(previous);
+            }
+
+            connectionNamespace.addConnection(connection);
+            if (snapshotStore != null) snapshotStore.attached(connection);
+            connectionFiles.put(key, name);
+
+            logger.info("{} connection '{}' from {}.", previous != null ? "Reloaded" : "Added", name, path);
+        } else if (previous != null) {
+            connectionFiles.remove(key);
+            connectionNamespace.removeConnection(previous);
+            if (snapshotStore != null) snapshotStore.removed(previous);
+
+            logger.info("Removed connection '{}'; {} was deleted.", previous, path);
+        }
     }
 
     private Connection load(File file) throws Exception {
@@ -114,13 +280,37 @@ public class HalcyonServer {
 
         String name = config.getString("connection.connection-name");
 
+        ExecutorService executor = server.getExecutorService();
+        ScheduledExecutorService scheduledExecutor = ConnectionContext.sharedScheduledExecutor();
+
+        if (ConnectionContext.useVirtualThreads(config)) {
+            executor = VirtualThreads.executor().get();
+            scheduledExecutor = VirtualThreads.scheduledExecutor().get();
+
+            logger.info("Connection '{}' is using virtual threads.", name);
+        } else if (config.hasPath("connection.executor.virtual-threads") &&
+                config.getBoolean("connection.executor.virtual-threads")) {
+
+            logger.warn("Connection '{}' requested virtual threads but they aren't available on Java {}; " +
+                    "using the shared thread pools.", name, System.getProperty("java.version"));
+        }
+
+        int slot = connectionNamespace.slot(name);
+
+        // Restored from a snapshot if this connection's configuration hasn't changed since it was taken.
+        MappedSnapshot snapshot = snapshotStore != null ?
+                snapshotStore.open(name, config, connectionType.getClass(), slot).orElse(null) : null;
+
         ConnectionContext context = new ConnectionContext(
                 name,
                 config,
                 new NodeId(connectionNamespace.getNamespaceIndex(), String.format("[%s]", name)),
-                server.getExecutorService(),
+                executor,
+                scheduledExecutor,
                 MetricRegistry,
-                connectionNamespace.getNamespaceIndex()
+                connectionNamespace.getNamespaceIndex(),
+                slot,
+                snapshot
         );
 
         return connectionType.createConnection(context, config);
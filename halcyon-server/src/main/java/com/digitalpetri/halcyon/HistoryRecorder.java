@@ -0,0 +1,216 @@
+package com.digitalpetri.halcyon;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import com.digitalpetri.halcyon.SamplingEngine.SampledItem;
+import com.digitalpetri.halcyon.history.Compressor;
+import com.digitalpetri.halcyon.history.HistoryStore;
+import com.digitalpetri.halcyon.history.HistoryValue;
+import com.google.common.collect.Maps;
+import com.typesafe.config.Config;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.builtintypes.Variant;
+import org.opcfoundation.ua.core.Attributes;
+import org.opcfoundation.ua.core.ReadValueId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the tags configured under {@code halcyon.history.tags} into a {@link HistoryStore}.
+ * <p>
+ * Each tag is sampled by the {@link SamplingEngine} like any monitored item, its samples are compressed, and what
+ * survives compression is appended to the store. Only numeric values (and booleans, as 0 or 1) are recorded; other
+ * values are recorded as status only.
+ * <p>
+ * The store's retention is enforced every minute as well as when a segment fills up.
+ * <pre>
+ * halcyon.history.tags = [
+ *     { node-id = "[example-connection]Node8", sampling-interval = 1000ms, compression = swinging-door, deviation = 0.5 }
+ * ]
+ * </pre>
+ */
+class HistoryRecorder {
+
+    static final long RetentionIntervalMillis = 60000L;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Map<NodeId, RecordedTag> tags = Maps.newLinkedHashMap();
+
+    private volatile ScheduledFuture<?> retentionTask;
+
+    private final HistoryStore store;
+    private final SamplingEngine samplingEngine;
+    private final ScheduledExecutorService scheduler;
+
+    HistoryRecorder(HistoryStore store,
+                    SamplingEngine samplingEngine,
+                    ScheduledExecutorService scheduler,
+                    List<? extends Config> tagConfigs,
+                    int namespaceIndex) throws IOException {
+
+        this.store = store;
+        this.samplingEngine = samplingEngine;
+        this.scheduler = scheduler;
+
+        for (Config tagConfig : tagConfigs) {
+            String key = tagConfig.getString("node-id");
+
+            long interval = tagConfig.hasPath("sampling-interval") ?
+                    tagConfig.getMilliseconds("sampling-interval") : 1000L;
+
+            String compression = tagConfig.hasPath("compression") ?
+                    tagConfig.getString("compression") : "swinging-door";
+
+            double deviation = tagConfig.hasPath("deviation") ? tagConfig.getDouble("deviation") : 0.0;
+
+            NodeId nodeId = new NodeId(namespaceIndex, key);
+
+            tags.put(nodeId, new RecordedTag(
+                    key, nodeId, store.seriesId(key), interval, Compressor.create(compression, deviation)));
+        }
+    }
+
+    void start() {
+        tags.values().forEach(samplingEngine::add);
+
+        retentionTask = scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                store.enforceRetention();
+            } catch (Throwable t) {
+                logger.error("Error enforcing history retention.", t);
+            }
+        }, RetentionIntervalMillis, RetentionIntervalMillis, TimeUnit.MILLISECONDS);
+
+        logger.info("Recording history for {} tag(s).", tags.size());
+    }
+
+    void stop() {
+        if (retentionTask != null) retentionTask.cancel(false);
+
+        tags.values().forEach(tag -> {
+            samplingEngine.remove(tag);
+            tag.flush();
+        });
+
+        store.close();
+    }
+
+    /**
+     * Read the recorded values of {@code nodeId} between {@code start} and {@code end}, including the most recent
+     * sample even if compression hasn't archived it yet.
+     *
+     * @return the values, with source timestamps, or {@link Optional#empty()} if {@code nodeId} isn't recorded.
+     */
+    Optional<List<DataValue>> readRaw(NodeId nodeId, long start, long end, int max) {
+        RecordedTag tag = tags.get(nodeId);
+
+        if (tag == null) return Optional.empty();
+
+        List<HistoryValue> values = store.read(tag.key, start, end, max);
+
+        HistoryValue pending = tag.getPending();
+
+        if (pending != null && values.size() < max && pending.getTime() >= start && pending.getTime() <= end) {
+            boolean archived = !values.isEmpty() && values.get(values.size() - 1).getTime() >= pending.getTime();
+
+            if (!archived) values.add(pending);
+        }
+
+        return Optional.of(values.stream().map(HistoryRecorder::dataValue).collect(Collectors.toList()));
+    }
+
+    private static DataValue dataValue(HistoryValue value) {
+        return new DataValue(
+                Double.isNaN(value.getValue()) ? new Variant(null) : new Variant(value.getValue()),
+                new StatusCode(UnsignedInteger.getFromBits(value.getStatus())),
+                DateTime.fromMillis(value.getTime()),
+                null
+        );
+    }
+
+    private class RecordedTag implements SampledItem, Compressor.Archiver {
+
+        private final String key;
+        private final ReadValueId readValueId;
+        private final int series;
+        private final double samplingInterval;
+        private final Compressor compressor;
+
+        RecordedTag(String key, NodeId nodeId, int series, long samplingInterval, Compressor compressor) {
+            this.key = key;
+            this.series = series;
+            this.samplingInterval = samplingInterval;
+            this.compressor = compressor;
+
+            readValueId = new ReadValueId(nodeId, Attributes.Value, null, null);
+        }
+
+        @Override
+        public ReadValueId getReadValueId() {
+            return readValueId;
+        }
+
+        @Override
+        public double getSamplingInterval() {
+            return samplingInterval;
+        }
+
+        @Override
+        public boolean isSamplingEnabled() {
+            return true;
+        }
+
+        @Override
+        public void onValue(DataValue value) {
+            DateTime sourceTime = value.getSourceTimestamp() != null ?
+                    value.getSourceTimestamp() : value.getServerTimestamp();
+
+            long time = sourceTime != null ? sourceTime.getMilliSeconds() : System.currentTimeMillis();
+            int status = value.getStatusCode().getValue().intValue();
+
+            Object o = value.getValue() != null ? value.getValue().getValue() : null;
+
+            double d = (o instanceof Number) ? ((Number) o).doubleValue() :
+                    (o instanceof Boolean) ? ((Boolean) o ? 1.0 : 0.0) : Double.NaN;
+
+            synchronized (compressor) {
+                compressor.offer(time, d, status, this);
+            }
+        }
+
+        @Override
+        public void archive(long time, double value, int status) {
+            try {
+                store.append(series, time, value, status);
+            } catch (IOException e) {
+                logger.error("Error recording history for {}.", key, e);
+            }
+        }
+
+        HistoryValue getPending() {
+            synchronized (compressor) {
+                return compressor.getPending();
+            }
+        }
+
+        void flush() {
+            synchronized (compressor) {
+                compressor.flush(this);
+            }
+        }
+
+    }
+
+}
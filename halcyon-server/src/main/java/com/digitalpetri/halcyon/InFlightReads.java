@@ -0,0 +1,55 @@
+package com.digitalpetri.halcyon;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.digitalpetri.halcyon.ValueCache.ValueKey;
+import com.google.common.collect.Maps;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.core.ReadValueId;
+
+/**
+ * Tracks the connection reads currently outstanding for each NodeId and attribute so that concurrent requests for the
+ * same value can share a single read instead of each going to the device.
+ */
+class InFlightReads {
+
+    private final Map<ValueKey, CompletableFuture<DataValue>> reads = Maps.newConcurrentMap();
+
+    private final Meter coalesced;
+
+    InFlightReads(MetricRegistry metricRegistry) {
+        coalesced = metricRegistry.meter(MetricRegistry.name("halcyon", "read-coalescing", "coalesced"));
+    }
+
+    /**
+     * Join the read of {@code readValueId} already in flight, or register {@code future} as the in-flight read if
+     * there isn't one.
+     *
+     * @param readValueId the {@link ReadValueId} about to be read.
+     * @param future      the future the caller will complete with the value it reads.
+     * @return the future of the read already in flight, or {@code null} if the caller must do the read itself.
+     */
+    CompletableFuture<DataValue> join(ReadValueId readValueId, CompletableFuture<DataValue> future) {
+        if (!ValueCache.cacheable(readValueId)) return null;
+
+        CompletableFuture<DataValue> existing = reads.putIfAbsent(new ValueKey(readValueId), future);
+
+        if (existing != null) coalesced.mark();
+
+        return existing;
+    }
+
+    void complete(ReadValueId readValueId, CompletableFuture<DataValue> future, DataValue value) {
+        reads.remove(new ValueKey(readValueId), future);
+        future.complete(value);
+    }
+
+    void fail(ReadValueId readValueId, CompletableFuture<DataValue> future, Throwable ex) {
+        reads.remove(new ValueKey(readValueId), future);
+        future.completeExceptionally(ex);
+    }
+
+}
@@ -0,0 +1,567 @@
+package com.digitalpetri.halcyon;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import com.digitalpetri.halcyon.api.AddressSpaceSnapshot;
+import com.digitalpetri.halcyon.util.VariantCodec;
+import com.digitalpetri.opcua.server.api.Reference;
+import com.digitalpetri.opcua.server.api.nodes.UaNode;
+import com.digitalpetri.opcua.server.api.nodes.UaObjectNode;
+import com.digitalpetri.opcua.server.api.nodes.UaVariableNode;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.opcfoundation.ua.builtintypes.*;
+import org.opcfoundation.ua.core.Attributes;
+import org.opcfoundation.ua.core.Identifiers;
+import org.opcfoundation.ua.core.NodeClass;
+import org.opcfoundation.ua.core.StatusCodes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link AddressSpaceSnapshot} read from a memory-mapped file written by {@link Writer}.
+ * <p>
+ * The file is a header, the node records in the order they were added, and an index of (NodeId hash, record offset)
+ * pairs sorted by hash. A lookup is a binary search of the mapped index followed by decoding the one record it points
+ * to, so opening a snapshot costs nothing however many nodes it holds. Records are encoded with {@link VariantCodec}:
+ * <pre>
+ * [byte NodeClass][NodeId][QualifiedName BrowseName][String DisplayName text][String DisplayName locale]
+ * [String Description text][String Description locale][int WriteMask][int UserWriteMask]
+ * Object only: [byte EventNotifier]
+ * Variable only: [DataValue Value][NodeId DataType][int ValueRank][int ArrayDimensions count, -1 if none][int each]
+ *                [byte AccessLevel][byte UserAccessLevel][double MinimumSamplingInterval][byte Historizing]
+ * [int reference count] and per reference: [NodeId ReferenceType][byte forward][NodeId target][byte target NodeClass]
+ * </pre>
+ * A Description with neither text nor locale is one the node didn't have. Only object and variable nodes can be
+ * written; {@link Writer#add(UaNode)} refuses the rest, and {@link SnapshotStore} takes no snapshot of a connection
+ * with any.
+ * The header holds the key of the configuration the snapshot was taken with; {@link #open(Path, byte[], Consumer)}
+ * only accepts a file whose key matches.
+ */
+class MappedSnapshot implements AddressSpaceSnapshot {
+
+    private static final int Magic = 0x48415331; // "HAS1"
+    private static final int Version = 2;
+
+    static final int KeySize = 32;
+
+    private static final int HeaderSize = 64;
+    private static final int CountOffset = 8 + KeySize;
+    private static final int IndexOffset = CountOffset + 4;
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedSnapshot.class);
+
+    private final AtomicBoolean invalidated = new AtomicBoolean(false);
+
+    private final Path file;
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final int indexOffset;
+    private final Consumer<MappedSnapshot> onInvalidate;
+
+    private MappedSnapshot(Path file,
+                           MappedByteBuffer buffer,
+                           int count,
+                           int indexOffset,
+                           Consumer<MappedSnapshot> onInvalidate) {
+
+        this.file = file;
+        this.buffer = buffer;
+        this.count = count;
+        this.indexOffset = indexOffset;
+        this.onInvalidate = onInvalidate;
+    }
+
+    /**
+     * Map the snapshot in {@code file}, if there is one and it was taken with the configuration {@code key} identifies.
+     *
+     * @param file         the snapshot file.
+     * @param key          the key of the connection's current configuration.
+     * @param onInvalidate called once, when the connection invalidates the snapshot.
+     * @return the snapshot, or {@link Optional#empty()} if the file is missing, corrupt or has a different key.
+     */
+    static Optional<MappedSnapshot> open(Path file, byte[] key, Consumer<MappedSnapshot> onInvalidate)
+            throws IOException {
+
+        if (!Files.exists(file)) return Optional.empty();
+
+        MappedByteBuffer buffer;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (size < HeaderSize || size > Integer.MAX_VALUE) return Optional.empty();
+
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        if (buffer.getInt(0) != Magic || buffer.getInt(4) != Version) {
+            logger.warn("Ignoring snapshot {}; not a snapshot file or an unsupported version.", file);
+            return Optional.empty();
+        }
+
+        byte[] fileKey = new byte[KeySize];
+        ByteBuffer header = buffer.duplicate();
+        header.position(8);
+        header.get(fileKey);
+
+        if (!Arrays.equals(key, fileKey)) return Optional.empty();
+
+        int count = buffer.getInt(CountOffset);
+        long indexOffset = buffer.getLong(IndexOffset);
+
+        if (count < 0 || indexOffset < HeaderSize || indexOffset + count * 8L != buffer.capacity()) {
+            logger.warn("Ignoring snapshot {}; it's truncated.", file);
+            return Optional.empty();
+        }
+
+        return Optional.of(new MappedSnapshot(file, buffer, count, (int) indexOffset, onInvalidate));
+    }
+
+    @Override
+    public Optional<UaNode> getNode(NodeId nodeId) {
+        int hash = hash(nodeId);
+
+        // Find the first index entry with this hash, then check each record that shares it.
+        int low = 0;
+        int high = count;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+
+            if (entryHash(mid) < hash) low = mid + 1;
+            else high = mid;
+        }
+
+        try {
+            for (int i = low; i < count && entryHash(i) == hash; i++) {
+                ByteBuffer record = record(entryOffset(i));
+                record.get();
+
+                if (VariantCodec.decodeNodeId(record).equals(nodeId)) {
+                    return Optional.of(decode(record(entryOffset(i))));
+                }
+            }
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            logger.warn("Error reading {} from snapshot {}.", nodeId, file, e);
+        }
+
+        return Optional.empty();
+    }
+
+    @Override
+    public void forEach(Consumer<UaNode> consumer) {
+        ByteBuffer records = record(HeaderSize);
+        records.limit(indexOffset);
+
+        try {
+            while (records.hasRemaining()) {
+                consumer.accept(decode(records));
+            }
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            logger.warn("Error reading snapshot {}; stopped at offset {}.", file, records.position(), e);
+        }
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public void invalidate() {
+        if (invalidated.compareAndSet(false, true)) onInvalidate.accept(this);
+    }
+
+    boolean isInvalidated() {
+        return invalidated.get();
+    }
+
+    private int entryHash(int i) {
+        return buffer.getInt(indexOffset + i * 8);
+    }
+
+    private int entryOffset(int i) {
+        return buffer.getInt(indexOffset + i * 8 + 4);
+    }
+
+    private ByteBuffer record(int offset) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset);
+
+        return record;
+    }
+
+    private static UaNode decode(ByteBuffer buffer) {
+        NodeClass nodeClass = NodeClass.valueOf(buffer.get() & 0xFF);
+        NodeId nodeId = VariantCodec.decodeNodeId(buffer);
+        QualifiedName browseName = VariantCodec.decodeQualifiedName(buffer);
+        LocalizedText displayName = new LocalizedText(
+                VariantCodec.decodeString(buffer), VariantCodec.decodeString(buffer));
+        LocalizedText description = decodeDescription(buffer);
+        UnsignedInteger writeMask = new UnsignedInteger(buffer.getInt() & 0xFFFFFFFFL);
+        UnsignedInteger userWriteMask = new UnsignedInteger(buffer.getInt() & 0xFFFFFFFFL);
+
+        UaNode node;
+        UnsignedByte eventNotifier = null;
+
+        if (nodeClass == NodeClass.Variable) {
+            DataValue value = VariantCodec.decodeDataValue(buffer);
+            NodeId dataType = VariantCodec.decodeNodeId(buffer);
+            int valueRank = buffer.getInt();
+            UnsignedInteger[] arrayDimensions = decodeArrayDimensions(buffer);
+            UnsignedByte accessLevel = new UnsignedByte(buffer.get() & 0xFF);
+            UnsignedByte userAccessLevel = new UnsignedByte(buffer.get() & 0xFF);
+            double minimumSamplingInterval = buffer.getDouble();
+            boolean historizing = buffer.get() != 0;
+
+            node = UaVariableNode.builder()
+                    .setNodeId(nodeId)
+                    .setBrowseName(browseName)
+                    .setDisplayName(displayName)
+                    .setDescription(description)
+                    .setWriteMask(writeMask)
+                    .setUserWriteMask(userWriteMask)
+                    .setDataType(dataType)
+                    .setValue(value)
+                    .setValueRank(valueRank)
+                    .setArrayDimensions(arrayDimensions)
+                    .setAccessLevel(accessLevel)
+                    .setUserAccessLevel(userAccessLevel)
+                    .setMinimumSamplingInterval(minimumSamplingInterval)
+                    .setHistorizing(historizing)
+                    .build();
+        } else if (nodeClass == NodeClass.Object) {
+            // Built once the references are read, since its type definition is one of them.
+            node = null;
+            eventNotifier = new UnsignedByte(buffer.get() & 0xFF);
+        } else {
+            throw new IllegalArgumentException("unsupported NodeClass: " + nodeClass);
+        }
+
+        int referenceCount = buffer.getInt();
+        List<Reference> references = Lists.newArrayListWithCapacity(referenceCount);
+        NodeId typeDefinition = null;
+
+        for (int i = 0; i < referenceCount; i++) {
+            NodeId referenceTypeId = VariantCodec.decodeNodeId(buffer);
+            boolean forward = buffer.get() != 0;
+            NodeId targetNodeId = VariantCodec.decodeNodeId(buffer);
+            NodeClass targetNodeClass = NodeClass.valueOf(buffer.get() & 0xFF);
+
+            if (forward && referenceTypeId.equals(Identifiers.HasTypeDefinition)) typeDefinition = targetNodeId;
+
+            references.add(new Reference(
+                    nodeId, referenceTypeId, new ExpandedNodeId(targetNodeId), targetNodeClass, forward));
+        }
+
+        if (node == null) {
+            node = UaObjectNode.builder()
+                    .setNodeId(nodeId)
+                    .setBrowseName(browseName)
+                    .setDisplayName(displayName)
+                    .setDescription(description)
+                    .setWriteMask(writeMask)
+                    .setUserWriteMask(userWriteMask)
+                    .setEventNotifier(eventNotifier)
+                    .setTypeDefinition(typeDefinition != null ? typeDefinition : Identifiers.BaseObjectType)
+                    .build();
+        }
+
+        // The builders may have added some of these already, e.g. HasTypeDefinition.
+        for (Reference reference : references) {
+            boolean present = node.getReferences().stream().anyMatch(r ->
+                    r.isForward() == reference.isForward() &&
+                            r.getReferenceTypeId().equals(reference.getReferenceTypeId()) &&
+                            r.getTargetNodeId().equals(reference.getTargetNodeId()));
+
+            if (!present) node.addReference(reference);
+        }
+
+        return node;
+    }
+
+    private static LocalizedText decodeDescription(ByteBuffer buffer) {
+        String text = VariantCodec.decodeString(buffer);
+        String locale = VariantCodec.decodeString(buffer);
+
+        return (text != null || locale != null) ? new LocalizedText(text, locale) : null;
+    }
+
+    private static UnsignedInteger[] decodeArrayDimensions(ByteBuffer buffer) {
+        int length = buffer.getInt();
+
+        if (length < 0) return null;
+        if (length * 4L > buffer.remaining()) throw new IllegalArgumentException("truncated ArrayDimensions");
+
+        UnsignedInteger[] dimensions = new UnsignedInteger[length];
+
+        for (int i = 0; i < length; i++) {
+            dimensions[i] = new UnsignedInteger(buffer.getInt() & 0xFFFFFFFFL);
+        }
+
+        return dimensions;
+    }
+
+    /**
+     * A hash of {@code nodeId} that is stable across runs, unlike {@link NodeId#hashCode()} for opaque identifiers.
+     */
+    private static int hash(NodeId nodeId) {
+        Hasher hasher = Hashing.murmur3_32().newHasher().putInt(nodeId.getNamespaceIndex());
+        Object value = nodeId.getValue();
+
+        if (value instanceof UnsignedInteger) {
+            hasher.putLong(((UnsignedInteger) value).longValue());
+        } else if (value instanceof String) {
+            hasher.putString((String) value, StandardCharsets.UTF_8);
+        } else if (value instanceof UUID) {
+            hasher.putLong(((UUID) value).getMostSignificantBits());
+            hasher.putLong(((UUID) value).getLeastSignificantBits());
+        } else if (value instanceof byte[]) {
+            hasher.putBytes((byte[]) value);
+        }
+
+        return hasher.hash().asInt();
+    }
+
+    /**
+     * @return the local {@link NodeId} {@code expandedNodeId} refers to, or {@code null} if it can't be represented.
+     */
+    static NodeId local(ExpandedNodeId expandedNodeId) {
+        int namespaceIndex = expandedNodeId.getNamespaceIndex();
+        Object value = expandedNodeId.getValue();
+
+        if (value instanceof UnsignedInteger) return new NodeId(namespaceIndex, (UnsignedInteger) value);
+        if (value instanceof String) return new NodeId(namespaceIndex, (String) value);
+        if (value instanceof UUID) return new NodeId(namespaceIndex, (UUID) value);
+        if (value instanceof byte[]) return new NodeId(namespaceIndex, (byte[]) value);
+
+        return null;
+    }
+
+    /**
+     * Writes a snapshot to a temporary file next to its destination, moving it into place on {@link #commit()}, so a
+     * crash or a failed save leaves the previous snapshot intact.
+     */
+    static class Writer {
+
+        private ByteBuffer record = ByteBuffer.allocate(4096);
+        private long[] entries = new long[1024];
+        private int count = 0;
+
+        private final Path file;
+        private final Path temp;
+        private final byte[] key;
+        private final FileChannel channel;
+
+        Writer(Path file, byte[] key) throws IOException {
+            this.file = file;
+            this.key = key;
+
+            temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+            channel = FileChannel.open(temp,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+            channel.position(HeaderSize);
+        }
+
+        /**
+         * Append {@code node}.
+         *
+         * @return {@code false} if {@code node} can't be snapshotted: only object and variable nodes can.
+         */
+        boolean add(UaNode node) throws IOException {
+            if (node.getNodeClass() != NodeClass.Object && node.getNodeClass() != NodeClass.Variable) return false;
+
+            while (true) {
+                try {
+                    record.clear();
+                    encode(node, record);
+                    break;
+                } catch (BufferOverflowException e) {
+                    record = ByteBuffer.allocate(record.capacity() * 2);
+                }
+            }
+
+            long offset = channel.position();
+
+            if (offset + record.position() > Integer.MAX_VALUE) {
+                throw new IOException("snapshot larger than 2GB");
+            }
+
+            record.flip();
+            while (record.hasRemaining()) channel.write(record);
+
+            if (count == entries.length) entries = Arrays.copyOf(entries, count * 2);
+            entries[count++] = ((long) hash(node.getNodeId()) << 32) | offset;
+
+            return true;
+        }
+
+        /**
+         * @return the number of nodes added so far.
+         */
+        int size() {
+            return count;
+        }
+
+        /**
+         * Write the index and header and replace the previous snapshot, if any.
+         */
+        void commit() throws IOException {
+            try {
+                // Entries sort by hash first; offsets are non-negative ints, so they don't disturb the order.
+                Arrays.sort(entries, 0, count);
+
+                long indexOffset = channel.position();
+
+                ByteBuffer index = ByteBuffer.allocate(64 * 1024);
+
+                for (int i = 0; i < count; i++) {
+                    if (!index.hasRemaining()) {
+                        index.flip();
+                        while (index.hasRemaining()) channel.write(index);
+                        index.clear();
+                    }
+
+                    index.putLong(entries[i]);
+                }
+
+                index.flip();
+                while (index.hasRemaining()) channel.write(index);
+
+                ByteBuffer header = ByteBuffer.allocate(HeaderSize);
+                header.putInt(Magic);
+                header.putInt(Version);
+                header.put(key);
+                header.putInt(count);
+                header.putLong(indexOffset);
+                header.clear();
+
+                while (header.hasRemaining()) channel.write(header, header.position());
+
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Discard everything written so far, leaving the previous snapshot, if any, in place.
+         */
+        void abort() {
+            try {
+                channel.close();
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                logger.warn("Error deleting {}.", temp, e);
+            }
+        }
+
+        private static void encode(UaNode node, ByteBuffer buffer) {
+            NodeClass nodeClass = node.getNodeClass();
+            LocalizedText displayName = node.getDisplayName();
+
+            buffer.put((byte) nodeClass.getValue());
+            VariantCodec.encodeNodeId(node.getNodeId(), buffer);
+            VariantCodec.encodeQualifiedName(node.getBrowseName(), buffer);
+            VariantCodec.encodeString(displayName != null ? displayName.getText() : null, buffer);
+            VariantCodec.encodeString(displayName != null ? displayName.getLocaleId() : null, buffer);
+
+            Object description = attribute(node, Attributes.Description);
+            LocalizedText text = description instanceof LocalizedText ? (LocalizedText) description : null;
+
+            VariantCodec.encodeString(text != null ? text.getText() : null, buffer);
+            VariantCodec.encodeString(text != null ? text.getLocaleId() : null, buffer);
+            buffer.putInt(intValue(attribute(node, Attributes.WriteMask), 0));
+            buffer.putInt(intValue(attribute(node, Attributes.UserWriteMask), 0));
+
+            if (nodeClass == NodeClass.Object) {
+                buffer.put((byte) intValue(attribute(node, Attributes.EventNotifier), 0));
+            } else if (nodeClass == NodeClass.Variable) {
+                int start = buffer.position();
+
+                try {
+                    VariantCodec.encodeDataValue(node.readAttribute(Attributes.Value), buffer);
+                } catch (IllegalArgumentException e) {
+                    // A value of a type the codec doesn't know; the connection will serve the real one.
+                    buffer.position(start);
+                    VariantCodec.encodeDataValue(
+                            new DataValue(new StatusCode(StatusCodes.Bad_WaitingForInitialData)), buffer);
+                }
+
+                Object dataType = attribute(node, Attributes.DataType);
+                Object arrayDimensions = attribute(node, Attributes.ArrayDimensions);
+                Object minimumSamplingInterval = attribute(node, Attributes.MinimumSamplingInterval);
+
+                VariantCodec.encodeNodeId(
+                        dataType instanceof NodeId ? (NodeId) dataType : Identifiers.BaseDataType, buffer);
+                buffer.putInt(intValue(attribute(node, Attributes.ValueRank), -1));
+
+                if (arrayDimensions instanceof UnsignedInteger[]) {
+                    UnsignedInteger[] dimensions = (UnsignedInteger[]) arrayDimensions;
+
+                    buffer.putInt(dimensions.length);
+                    for (UnsignedInteger dimension : dimensions) buffer.putInt(dimension.intValue());
+                } else {
+                    buffer.putInt(-1);
+                }
+
+                buffer.put((byte) intValue(attribute(node, Attributes.AccessLevel), 0));
+                buffer.put((byte) intValue(attribute(node, Attributes.UserAccessLevel), 0));
+                buffer.putDouble(minimumSamplingInterval instanceof Number ?
+                        ((Number) minimumSamplingInterval).doubleValue() : 0.0);
+                buffer.put((byte) (Boolean.TRUE.equals(attribute(node, Attributes.Historizing)) ? 1 : 0));
+            }
+
+            List<Reference> references = Lists.newArrayList();
+
+            for (Reference reference : node.getReferences()) {
+                if (local(reference.getTargetNodeId()) != null) references.add(reference);
+            }
+
+            buffer.putInt(references.size());
+
+            for (Reference reference : references) {
+                NodeClass targetNodeClass = reference.getTargetNodeClass();
+
+                VariantCodec.encodeNodeId(reference.getReferenceTypeId(), buffer);
+                buffer.put((byte) (reference.isForward() ? 1 : 0));
+                VariantCodec.encodeNodeId(local(reference.getTargetNodeId()), buffer);
+                buffer.put((byte) (targetNodeClass != null ? targetNodeClass.getValue() : 0));
+            }
+        }
+
+        private static Object attribute(UaNode node, UnsignedInteger attributeId) {
+            DataValue value = node.readAttribute(attributeId);
+
+            return value != null && value.getValue() != null ? value.getValue().getValue() : null;
+        }
+
+        private static int intValue(Object attribute, int defaultValue) {
+            return attribute instanceof Number ? ((Number) attribute).intValue() : defaultValue;
+        }
+
+    }
+
+}
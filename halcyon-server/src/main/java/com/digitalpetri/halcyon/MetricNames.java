@@ -0,0 +1,70 @@
+package com.digitalpetri.halcyon;
+
+import java.util.Collection;
+import java.util.Set;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Sets;
+
+/**
+ * Parses the names of the per-connection and per-sampling-interval metrics in the shared {@link MetricRegistry}, for
+ * {@link HalcyonNamespaceModel} and {@link MetricsExporter}.
+ * <p>
+ * Every connection registers {@code connection.<name>.read.service-time}, so that's what marks a name as a
+ * connection's; {@link SamplingEngine} registers {@code halcyon.sampling.interval.<interval>.items} per interval.
+ */
+class MetricNames {
+
+    static final String ConnectionPrefix = "connection.";
+    static final String ConnectionSuffix = ".read.service-time";
+    static final String IntervalPrefix = "halcyon.sampling.interval.";
+    static final String IntervalSuffix = ".items";
+
+    private MetricNames() {
+    }
+
+    /**
+     * @return the names of the connections with metrics among {@code metricNames}.
+     */
+    static Set<String> connectionNames(Collection<String> metricNames) {
+        Set<String> names = Sets.newHashSet();
+
+        for (String name : metricNames) {
+            String connection = strip(name, ConnectionPrefix, ConnectionSuffix);
+
+            if (connection != null) names.add(connection);
+        }
+
+        return names;
+    }
+
+    /**
+     * @return the sampling intervals with metrics among {@code metricNames}.
+     */
+    static Set<String> samplingIntervals(Collection<String> metricNames) {
+        Set<String> intervals = Sets.newHashSet();
+
+        for (String name : metricNames) {
+            String interval = samplingInterval(name);
+
+            if (interval != null) intervals.add(interval);
+        }
+
+        return intervals;
+    }
+
+    /**
+     * @return the sampling interval {@code metricName} counts the items of, or {@code null} if it isn't one.
+     */
+    static String samplingInterval(String metricName) {
+        return strip(metricName, IntervalPrefix, IntervalSuffix);
+    }
+
+    private static String strip(String name, String prefix, String suffix) {
+        if (name.length() < prefix.length() + suffix.length()) return null;
+        if (!name.startsWith(prefix) || !name.endsWith(suffix)) return null;
+
+        return name.substring(prefix.length(), name.length() - suffix.length());
+    }
+
+}
@@ -0,0 +1,316 @@
+package com.digitalpetri.halcyon;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the {@link MetricRegistry} over HTTP in the Prometheus text format, on the shared Netty event loop.
+ * <p>
+ * Names are flattened to Prometheus names ({@code halcyon.read-cache.hits} becomes {@code halcyon_read_cache_hits}),
+ * and the connection name in per-connection metrics becomes a label:
+ * {@code connection.<name>.read.service-time} is exported as
+ * {@code halcyon_connection_read_service_time_seconds{connection="<name>"}}.
+ * <p>
+ * Gauges are exported as gauges, counters and meters as counters of their count, and histograms and timers as
+ * summaries with 0.5, 0.95 and 0.99 quantiles; timers in seconds. The page is rendered off the event loop.
+ * <pre>
+ * halcyon.metrics-exporter {
+ *     enabled = true
+ *     bind-address = "0.0.0.0"
+ *     port = 9464
+ *     path = "/metrics"
+ * }
+ * </pre>
+ */
+class MetricsExporter {
+
+    static final String ContentType = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] Quantiles = {0.5, 0.95, 0.99};
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private volatile Channel channel;
+
+    private final MetricRegistry metricRegistry;
+    private final EventLoopGroup eventLoop;
+    private final Executor renderExecutor;
+    private final String path;
+
+    /**
+     * @param metricRegistry the {@link MetricRegistry} to export.
+     * @param eventLoop      the event loop to serve on.
+     * @param renderExecutor renders the page, so a large registry doesn't hold up the event loop.
+     * @param path           the path to serve the page at; anything else is a 404.
+     */
+    MetricsExporter(MetricRegistry metricRegistry, EventLoopGroup eventLoop, Executor renderExecutor, String path) {
+        this.metricRegistry = metricRegistry;
+        this.eventLoop = eventLoop;
+        this.renderExecutor = renderExecutor;
+        this.path = path;
+    }
+
+    void start(String bindAddress, int port) {
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .group(eventLoop)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline().addLast(new HttpServerCodec());
+                        ch.pipeline().addLast(new HttpObjectAggregator(64 * 1024));
+                        ch.pipeline().addLast(new MetricsHandler());
+                    }
+                });
+
+        bootstrap.bind(bindAddress, port).addListener((ChannelFutureListener) future -> {
+            if (future.isSuccess()) {
+                channel = future.channel();
+                logger.info("Exporting metrics on http://{}:{}{}.", bindAddress, port, path);
+            } else {
+                logger.error("Error binding metrics exporter to {}:{}.", bindAddress, port, future.cause());
+            }
+        });
+    }
+
+    void stop() {
+        Channel c = channel;
+
+        if (c != null) c.close();
+    }
+
+    /**
+     * Render every metric in {@code metricRegistry} in the Prometheus text format.
+     */
+    static String render(MetricRegistry metricRegistry) {
+        Map<String, Metric> metrics = metricRegistry.getMetrics();
+
+        Set<String> connectionNames = MetricNames.connectionNames(metrics.keySet());
+
+        // Samples of a family must be contiguous, under a single TYPE line.
+        Map<String, Family> families = Maps.newTreeMap();
+
+        metrics.forEach((name, metric) -> {
+            String family;
+            String labels;
+
+            String connection = connectionName(name, connectionNames);
+            String interval = MetricNames.samplingInterval(name);
+
+            if (connection != null) {
+                String metricName = name.substring(MetricNames.ConnectionPrefix.length() + connection.length() + 1);
+
+                family = "halcyon_connection_" + sanitize(metricName);
+                labels = "connection=\"" + escape(connection) + "\"";
+            } else if (interval != null) {
+                family = "halcyon_sampling_interval_items";
+                labels = "interval=\"" + escape(interval) + "\"";
+            } else {
+                family = sanitize(name);
+                labels = "";
+            }
+
+            if (metric instanceof Gauge) {
+                Object value = ((Gauge<?>) metric).getValue();
+
+                if (value instanceof Number) {
+                    family(families, family, "gauge").sample(family, labels, ((Number) value).doubleValue());
+                } else if (value instanceof Boolean) {
+                    family(families, family, "gauge").sample(family, labels, (Boolean) value ? 1.0 : 0.0);
+                }
+            } else if (metric instanceof Counter) {
+                family(families, family + "_total", "counter")
+                        .sample(family + "_total", labels, ((Counter) metric).getCount());
+            } else if (metric instanceof Meter) {
+                family(families, family + "_total", "counter")
+                        .sample(family + "_total", labels, ((Meter) metric).getCount());
+            } else if (metric instanceof Timer) {
+                Timer timer = (Timer) metric;
+                String seconds = family + "_seconds";
+
+                summary(family(families, seconds, "summary"), seconds, labels,
+                        timer.getSnapshot(), timer.getCount(), 1.0 / 1_000_000_000.0);
+            } else if (metric instanceof Histogram) {
+                Histogram histogram = (Histogram) metric;
+
+                summary(family(families, family, "summary"), family, labels,
+                        histogram.getSnapshot(), histogram.getCount(), 1.0);
+            }
+        });
+
+        StringBuilder sb = new StringBuilder(families.size() * 128);
+
+        families.forEach((name, f) -> {
+            sb.append("# TYPE ").append(name).append(' ').append(f.type).append('\n');
+            f.samples.forEach(sample -> sb.append(sample).append('\n'));
+        });
+
+        return sb.toString();
+    }
+
+    private static void summary(Family family, String name, String labels,
+                                Snapshot snapshot, long count, double scale) {
+
+        for (double q : Quantiles) {
+            String quantile = "quantile=\"" + q + "\"";
+
+            family.sample(name, labels.isEmpty() ? quantile : labels + "," + quantile, snapshot.getValue(q) * scale);
+        }
+
+        family.sample(name + "_count", labels, count);
+    }
+
+    private static Family family(Map<String, Family> families, String name, String type) {
+        return families.computeIfAbsent(name, n -> new Family(type));
+    }
+
+    /**
+     * @return the name of the connection {@code metricName} belongs to, or {@code null} if it isn't a per-connection
+     * metric. Connection names may contain dots, so the longest known name wins.
+     */
+    private static String connectionName(String metricName, Set<String> connectionNames) {
+        String prefix = MetricNames.ConnectionPrefix;
+
+        if (!metricName.startsWith(prefix)) return null;
+
+        String best = null;
+
+        for (int i = metricName.indexOf('.', prefix.length());
+             i > 0;
+             i = metricName.indexOf('.', i + 1)) {
+
+            String candidate = metricName.substring(prefix.length(), i);
+
+            if (connectionNames.contains(candidate)) best = candidate;
+        }
+
+        if (best == null) {
+            // Not attached (yet), e.g. startup-time; assume the name has no dots.
+            int dot = metricName.indexOf('.', prefix.length());
+            if (dot > 0) best = metricName.substring(prefix.length(), dot);
+        }
+
+        return best;
+    }
+
+    static String sanitize(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':' ||
+                    (c >= '0' && c <= '9' && i > 0);
+
+            sb.append(valid ? c : '_');
+        }
+
+        return sb.toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String format(double value) {
+        if (Double.isNaN(value)) return "NaN";
+        if (Double.isInfinite(value)) return value > 0 ? "+Inf" : "-Inf";
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) return String.valueOf((long) value);
+
+        return String.valueOf(value);
+    }
+
+    private static class Family {
+
+        private final List<String> samples = Lists.newArrayList();
+
+        private final String type;
+
+        Family(String type) {
+            this.type = type;
+        }
+
+        void sample(String name, String labels, double value) {
+            samples.add(labels.isEmpty() ?
+                    name + " " + format(value) :
+                    name + "{" + labels + "} " + format(value));
+        }
+
+    }
+
+    private class MetricsHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) throws Exception {
+            String requestPath = new QueryStringDecoder(request.getUri()).path();
+
+            if (!request.getMethod().equals(HttpMethod.GET)) {
+                respond(ctx, HttpResponseStatus.METHOD_NOT_ALLOWED, "");
+            } else if (!requestPath.equals(path)) {
+                respond(ctx, HttpResponseStatus.NOT_FOUND, "");
+            } else {
+                renderExecutor.execute(() -> {
+                    try {
+                        respond(ctx, HttpResponseStatus.OK, render(metricRegistry));
+                    } catch (Throwable t) {
+                        logger.error("Error rendering metrics.", t);
+                        respond(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "");
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            logger.debug("Metrics exporter connection error.", cause);
+            ctx.close();
+        }
+
+        private void respond(ChannelHandlerContext ctx, HttpResponseStatus status, String body) {
+            FullHttpResponse response = new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1, status, Unpooled.wrappedBuffer(body.getBytes(StandardCharsets.UTF_8)));
+
+            response.headers().set(HttpHeaders.Names.CONTENT_TYPE, ContentType);
+            HttpHeaders.setContentLength(response, response.content().readableBytes());
+
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.digitalpetri.halcyon;
+
+import com.digitalpetri.halcyon.SamplingEngine.SampledItem;
+import com.digitalpetri.opcua.server.api.MonitoredItem;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.core.ReadValueId;
+
+/**
+ * Adapts a client's {@link MonitoredItem} to the {@link SamplingEngine}.
+ * <p>
+ * Sampled values pass through the item's {@link DataChangeDetector} first; only reportable changes are queued on the
+ * item, with the timestamps it asked for.
+ * <p>
+ * Equality is that of the wrapped item, so a sampler created for an item can be used to remove the one created when
+ * the item was added.
+ */
+class MonitoredItemSampler implements SampledItem {
+
+    private final MonitoredItem item;
+    private final DataChangeDetector detector;
+
+    /**
+     * Create a sampler for {@code item} with no filtering, e.g. for looking up or removing an existing sampler.
+     */
+    MonitoredItemSampler(MonitoredItem item) {
+        this(item, DataChangeDetector.statusValue());
+    }
+
+    MonitoredItemSampler(MonitoredItem item, DataChangeDetector detector) {
+        this.item = item;
+        this.detector = detector;
+    }
+
+    @Override
+    public ReadValueId getReadValueId() {
+        return item.getReadValueId();
+    }
+
+    @Override
+    public double getSamplingInterval() {
+        return item.getSamplingInterval();
+    }
+
+    @Override
+    public boolean isSamplingEnabled() {
+        return item.isSamplingEnabled();
+    }
+
+    @Override
+    public void onValue(DataValue value) {
+        if (detector.isChange(value)) {
+            item.setValue(ValueCache.withTimestamps(value, item.getTimestampsToReturn()));
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof MonitoredItemSampler && ((MonitoredItemSampler) o).item == item;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(item);
+    }
+
+}
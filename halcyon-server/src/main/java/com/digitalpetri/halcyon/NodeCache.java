@@ -0,0 +1,65 @@
+package com.digitalpetri.halcyon;
+
+import java.util.Optional;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.digitalpetri.halcyon.api.LazyNodeConnection;
+import com.digitalpetri.opcua.server.api.nodes.UaNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.opcfoundation.ua.builtintypes.NodeId;
+
+/**
+ * A bounded, least-recently-used cache of the nodes built on demand by {@link LazyNodeConnection}s.
+ */
+class NodeCache {
+
+    private final Cache<NodeId, UaNode> cache;
+
+    private final Meter hits;
+    private final Meter misses;
+
+    NodeCache(long maxSize, MetricRegistry metricRegistry) {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .build();
+
+        hits = metricRegistry.meter(MetricRegistry.name("halcyon", "node-cache", "hits"));
+        misses = metricRegistry.meter(MetricRegistry.name("halcyon", "node-cache", "misses"));
+
+        metricRegistry.register(MetricRegistry.name("halcyon", "node-cache", "size"), (Gauge<Long>) cache::size);
+    }
+
+    /**
+     * Get the cached node for {@code nodeId}, building it with {@code connection} if it isn't cached.
+     *
+     * @param nodeId     the {@link NodeId} of the node.
+     * @param connection the {@link LazyNodeConnection} that owns {@code nodeId}.
+     * @return the node, or {@link Optional#empty()} if the connection has no such node.
+     */
+    Optional<UaNode> get(NodeId nodeId, LazyNodeConnection connection) {
+        UaNode node = cache.getIfPresent(nodeId);
+
+        if (node != null) {
+            hits.mark();
+            return Optional.of(node);
+        }
+
+        misses.mark();
+
+        Optional<UaNode> created = connection.createNode(nodeId);
+
+        // If another thread built the same node meanwhile, keep using the one already cached.
+        return created.map(n -> {
+            UaNode existing = cache.asMap().putIfAbsent(nodeId, n);
+            return existing != null ? existing : n;
+        });
+    }
+
+    void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+}
@@ -0,0 +1,307 @@
+package com.digitalpetri.halcyon;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Samples Read and Write requests through {@link ConnectionNamespace} and records when each reached every stage:
+ * grouping by connection, then per connection the hand-off to its lane, the start of the connection call and its
+ * completion, then the aggregation of the results back into request order, and finally the completion of the request.
+ * <p>
+ * Requests that aren't sampled cost one random number and allocate nothing. Finished traces are kept in a fixed-size
+ * ring, overwriting the oldest; the most recent of them and the slowest are published as the
+ * {@code halcyon.tracing.recent} and {@code halcyon.tracing.slowest} gauges, which {@link HalcyonNamespaceModel} shows
+ * under {@code Objects/Halcyon/Tracing}.
+ * <p>
+ * A sampled request slower than the threshold is logged with its breakdown, at most once per
+ * {@code slow-log-interval}; the number of slow requests not logged in between is reported with the next one.
+ * <pre>
+ * halcyon.tracing {
+ *     enabled = true
+ *     sample-rate = 0.01
+ *     ring-size = 1024
+ *     slow-threshold = 500ms
+ *     slow-log-interval = 10s
+ * }
+ * </pre>
+ */
+class RequestTracer {
+
+    /**
+     * The number of traces in the {@code halcyon.tracing.recent} gauge.
+     */
+    static final int RecentLimit = 10;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final AtomicLong nextSlot = new AtomicLong(0L);
+    private final AtomicLong nextSlowLogNanos = new AtomicLong(System.nanoTime());
+    private final AtomicLong suppressedSlowLogs = new AtomicLong(0L);
+
+    private final AtomicReferenceArray<Trace> ring;
+
+    private final Meter sampled;
+    private final Meter slow;
+
+    private final double sampleRate;
+    private final long slowThresholdNanos;
+    private final long slowLogIntervalNanos;
+
+    /**
+     * @param sampleRate            the fraction of requests to trace, from 0 to 1.
+     * @param ringSize              the number of finished traces to keep.
+     * @param slowThresholdMillis   sampled requests slower than this are logged.
+     * @param slowLogIntervalMillis log at most one slow request this often.
+     * @param metricRegistry        the {@link MetricRegistry}.
+     */
+    RequestTracer(double sampleRate,
+                  int ringSize,
+                  long slowThresholdMillis,
+                  long slowLogIntervalMillis,
+                  MetricRegistry metricRegistry) {
+
+        this.sampleRate = sampleRate;
+
+        ring = new AtomicReferenceArray<>(Math.max(1, ringSize));
+        slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowThresholdMillis);
+        slowLogIntervalNanos = TimeUnit.MILLISECONDS.toNanos(slowLogIntervalMillis);
+
+        sampled = metricRegistry.meter(MetricRegistry.name("halcyon", "tracing", "sampled"));
+        slow = metricRegistry.meter(MetricRegistry.name("halcyon", "tracing", "slow"));
+
+        metricRegistry.register(MetricRegistry.name("halcyon", "tracing", "recent"),
+                (Gauge<String>) () -> describe(getRecentTraces()));
+        metricRegistry.register(MetricRegistry.name("halcyon", "tracing", "slowest"),
+                (Gauge<String>) () -> describe(getSlowestTrace()));
+    }
+
+    /**
+     * @return a new {@link Trace} if this request is sampled, otherwise {@code null}.
+     */
+    Trace start(String operation, int items) {
+        if (sampleRate <= 0.0 || ThreadLocalRandom.current().nextDouble() >= sampleRate) return null;
+
+        sampled.mark();
+
+        return new Trace(operation, items, System.nanoTime());
+    }
+
+    /**
+     * Record the completion of {@code trace}, keep it in the ring and log it if it was slow.
+     */
+    void finish(Trace trace) {
+        trace.completedNanos = System.nanoTime();
+
+        ring.set((int) (nextSlot.getAndIncrement() % ring.length()), trace);
+
+        if (trace.getElapsedNanos() < slowThresholdNanos) return;
+
+        slow.mark();
+
+        long now = System.nanoTime();
+        long next = nextSlowLogNanos.get();
+
+        if (now - next >= 0 && nextSlowLogNanos.compareAndSet(next, now + slowLogIntervalNanos)) {
+            long suppressed = suppressedSlowLogs.getAndSet(0L);
+
+            if (suppressed > 0) {
+                logger.warn("Slow request: {} ({} more slow requests not logged)", trace, suppressed);
+            } else {
+                logger.warn("Slow request: {}", trace);
+            }
+        } else {
+            suppressedSlowLogs.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the finished traces in the ring, oldest first.
+     */
+    List<Trace> getRecentTraces() {
+        long end = nextSlot.get();
+        long start = Math.max(0L, end - ring.length());
+
+        List<Trace> traces = Lists.newArrayListWithCapacity((int) (end - start));
+
+        for (long i = start; i < end; i++) {
+            Trace trace = ring.get((int) (i % ring.length()));
+            if (trace != null) traces.add(trace);
+        }
+
+        return traces;
+    }
+
+    /**
+     * @return the slowest finished trace in the ring, or {@code null} if there are none.
+     */
+    Trace getSlowestTrace() {
+        Trace slowest = null;
+
+        for (Trace trace : getRecentTraces()) {
+            if (slowest == null || trace.getElapsedNanos() > slowest.getElapsedNanos()) slowest = trace;
+        }
+
+        return slowest;
+    }
+
+    /**
+     * @return the last {@link #RecentLimit} of {@code traces}, newest first, one per line.
+     */
+    private static String describe(List<Trace> traces) {
+        return Lists.reverse(traces).stream()
+                .limit(RecentLimit)
+                .map(Trace::toString)
+                .collect(Collectors.joining("\n"));
+    }
+
+    private static String describe(Trace trace) {
+        return trace != null ? trace.toString() : "";
+    }
+
+    /**
+     * The stages of one sampled request. Each timestamp is written by whichever thread reaches the stage and read only
+     * once the request has completed.
+     */
+    static final class Trace {
+
+        private final String operation;
+        private final int items;
+        private final long startNanos;
+
+        private volatile long groupedNanos;
+        private volatile long aggregatedNanos;
+        private volatile long completedNanos;
+
+        private volatile Leg[] legs = new Leg[0];
+
+        private Trace(String operation, int items, long startNanos) {
+            this.operation = operation;
+            this.items = items;
+            this.startNanos = startNanos;
+        }
+
+        /**
+         * The request's items have been grouped into one group per connection.
+         */
+        void grouped() {
+            groupedNanos = System.nanoTime();
+        }
+
+        /**
+         * @return a new {@link Leg} for the part of the request sent to {@code connection}.
+         */
+        synchronized Leg leg(String connection) {
+            Leg leg = new Leg(connection);
+
+            Leg[] current = legs;
+            Leg[] extended = new Leg[current.length + 1];
+            System.arraycopy(current, 0, extended, 0, current.length);
+            extended[current.length] = leg;
+
+            legs = extended;
+
+            return leg;
+        }
+
+        /**
+         * The results of every connection have been collected back into request order.
+         */
+        void aggregated() {
+            aggregatedNanos = System.nanoTime();
+        }
+
+        long getElapsedNanos() {
+            return completedNanos - startNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(128);
+
+            sb.append(operation).append(" of ").append(items).append(" item(s) took ")
+                    .append(millis(completedNanos - startNanos));
+
+            if (groupedNanos != 0L) sb.append("; grouping ").append(millis(groupedNanos - startNanos));
+
+            long lastReturned = groupedNanos != 0L ? groupedNanos : startNanos;
+
+            for (Leg leg : legs) {
+                sb.append("; [").append(leg.connection);
+
+                if (leg.dequeuedNanos != 0L) {
+                    sb.append(" queue ").append(millis(leg.dequeuedNanos - leg.dispatchedNanos));
+                }
+
+                long called = leg.dequeuedNanos != 0L ? leg.dequeuedNanos : leg.dispatchedNanos;
+
+                if (leg.returnedNanos != 0L) {
+                    sb.append(" connection ").append(millis(leg.returnedNanos - called));
+                    lastReturned = Math.max(lastReturned, leg.returnedNanos);
+                } else {
+                    sb.append(" connection ?");
+                }
+
+                sb.append(']');
+            }
+
+            if (aggregatedNanos != 0L) {
+                sb.append("; callbacks ").append(millis(aggregatedNanos - lastReturned));
+                sb.append("; completion ").append(millis(completedNanos - aggregatedNanos));
+            } else {
+                sb.append("; completion ").append(millis(completedNanos - lastReturned));
+            }
+
+            return sb.toString();
+        }
+
+        private static String millis(long nanos) {
+            return String.format(Locale.ROOT, "%.3fms", nanos / 1_000_000.0);
+        }
+
+    }
+
+    /**
+     * The part of a sampled request sent to one connection.
+     */
+    static final class Leg {
+
+        private final String connection;
+        private final long dispatchedNanos;
+
+        private volatile long dequeuedNanos;
+        private volatile long returnedNanos;
+
+        private Leg(String connection) {
+            this.connection = connection;
+            this.dispatchedNanos = System.nanoTime();
+        }
+
+        /**
+         * The connection's lane has started running the call.
+         */
+        void dequeued() {
+            dequeuedNanos = System.nanoTime();
+        }
+
+        /**
+         * The connection has completed the call.
+         */
+        void returned() {
+            returnedNanos = System.nanoTime();
+        }
+
+    }
+
+}
@@ -0,0 +1,306 @@
+package com.digitalpetri.halcyon;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.core.ReadValueId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Samples items for every connection that leaves sampling to the server, in batches.
+ * <p>
+ * Items are bucketed by sampling interval. Each bucket is split into phase slots spread evenly across the interval,
+ * and new items join the least loaded slot, so a bucket's reads are spread out rather than all firing at once. On each
+ * tick a slot issues one read per connection for its items.
+ * <p>
+ * A connection whose previous read from the slot hasn't completed yet skips the tick rather than queueing another read
+ * behind it; the slot's other connections are still sampled.
+ */
+class SamplingEngine {
+
+    /**
+     * The fastest interval the engine will sample at, in milliseconds.
+     */
+    static final long MinSamplingInterval = 10L;
+
+    /**
+     * A bucket has at most this many phase slots, and slots are never closer together than {@link #MinSamplingInterval}.
+     */
+    static final int MaxPhases = 10;
+
+    /**
+     * Something sampled by the engine; usually a client's monitored item.
+     */
+    interface SampledItem {
+
+        ReadValueId getReadValueId();
+
+        double getSamplingInterval();
+
+        boolean isSamplingEnabled();
+
+        /**
+         * Receive a newly sampled value, read with both timestamps.
+         */
+        void onValue(DataValue value);
+
+    }
+
+    /**
+     * The read the engine samples through; {@link ConnectionNamespace}'s untraced read that bypasses the read cache.
+     */
+    interface Reader {
+
+        void read(List<ReadValueId> readValueIds, CompletableFuture<List<DataValue>> future);
+
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Map<Long, Bucket> buckets = Maps.newHashMap();
+    private final Map<SampledItem, Slot> slots = Maps.newConcurrentMap();
+
+    private final Meter ticks;
+    private final Meter overruns;
+
+    private final ScheduledExecutorService scheduler;
+    private final Reader reader;
+    private final Function<NodeId, Optional<String>> connectionName;
+    private final MetricRegistry metricRegistry;
+
+    /**
+     * @param scheduler      runs each slot's ticks.
+     * @param reader         reads sampled values.
+     * @param connectionName the name of the connection owning a {@link NodeId}, if any; a slot's reads are split by it.
+     * @param metricRegistry the {@link MetricRegistry}.
+     */
+    SamplingEngine(ScheduledExecutorService scheduler,
+                   Reader reader,
+                   Function<NodeId, Optional<String>> connectionName,
+                   MetricRegistry metricRegistry) {
+
+        this.scheduler = scheduler;
+        this.reader = reader;
+        this.connectionName = connectionName;
+        this.metricRegistry = metricRegistry;
+
+        ticks = metricRegistry.meter(MetricRegistry.name("halcyon", "sampling", "ticks"));
+        overruns = metricRegistry.meter(MetricRegistry.name("halcyon", "sampling", "overruns"));
+
+        metricRegistry.register(MetricRegistry.name("halcyon", "sampling", "items"), (Gauge<Integer>) slots::size);
+    }
+
+    synchronized void add(SampledItem item) {
+        long interval = Math.max(MinSamplingInterval, Math.round(item.getSamplingInterval()));
+
+        Bucket bucket = buckets.get(interval);
+
+        if (bucket == null) {
+            bucket = new Bucket(interval);
+            buckets.put(interval, bucket);
+
+            metricRegistry.register(intervalMetricName(interval), (Gauge<Integer>) () -> getItemCount(interval));
+        }
+        Slot slot = bucket.leastLoaded();
+
+        slot.items.add(item);
+        slots.put(item, slot);
+
+        slot.start();
+    }
+
+    synchronized void remove(SampledItem item) {
+        Slot slot = slots.remove(item);
+
+        if (slot != null) {
+            slot.items.remove(item);
+
+            if (slot.items.isEmpty()) slot.stop();
+
+            if (slot.bucket.isEmpty()) {
+                buckets.remove(slot.bucket.interval);
+                metricRegistry.remove(intervalMetricName(slot.bucket.interval));
+            }
+        }
+    }
+
+    /**
+     * @return the number of items being sampled at each interval, in milliseconds.
+     */
+    synchronized SortedMap<Long, Integer> getItemCounts() {
+        SortedMap<Long, Integer> counts = Maps.newTreeMap();
+
+        buckets.forEach((interval, bucket) -> counts.put(interval, bucket.size()));
+
+        return counts;
+    }
+
+    /**
+     * @return the number of items being sampled at {@code interval} milliseconds.
+     */
+    synchronized int getItemCount(long interval) {
+        Bucket bucket = buckets.get(interval);
+
+        return bucket != null ? bucket.size() : 0;
+    }
+
+    /**
+     * The gauge of the number of items sampled at {@code interval} milliseconds, registered while any are:
+     * {@code halcyon.sampling.interval.<interval>.items}.
+     */
+    static String intervalMetricName(long interval) {
+        return MetricRegistry.name("halcyon", "sampling", "interval", String.valueOf(interval), "items");
+    }
+
+    private class Bucket {
+
+        private final long interval;
+        private final Slot[] phases;
+
+        Bucket(long interval) {
+            this.interval = interval;
+
+            int phaseCount = (int) Math.max(1, Math.min(MaxPhases, interval / MinSamplingInterval));
+            long phaseWidth = interval / phaseCount;
+
+            // Offset the whole bucket by a random amount within one phase so buckets don't line up with each other.
+            long jitter = phaseWidth > 1 ? ThreadLocalRandom.current().nextLong(phaseWidth) : 0L;
+
+            phases = new Slot[phaseCount];
+
+            for (int i = 0; i < phaseCount; i++) {
+                phases[i] = new Slot(this, jitter + i * phaseWidth);
+            }
+        }
+
+        Slot leastLoaded() {
+            Slot least = phases[0];
+
+            for (Slot slot : phases) {
+                if (slot.items.size() < least.items.size()) least = slot;
+            }
+
+            return least;
+        }
+
+        int size() {
+            int size = 0;
+            for (Slot slot : phases) size += slot.items.size();
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size() == 0;
+        }
+
+    }
+
+    private class Slot implements Runnable {
+
+        private final Set<SampledItem> items = Collections.newSetFromMap(Maps.newConcurrentMap());
+        private final Map<Optional<String>, AtomicBoolean> reading = Maps.newConcurrentMap();
+
+        private final Bucket bucket;
+        private final long initialDelay;
+
+        private ScheduledFuture<?> future;
+
+        Slot(Bucket bucket, long initialDelay) {
+            this.bucket = bucket;
+            this.initialDelay = initialDelay;
+        }
+
+        void start() {
+            if (future == null) {
+                future = scheduler.scheduleAtFixedRate(this, initialDelay, bucket.interval, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        void stop() {
+            if (future != null) {
+                future.cancel(false);
+                future = null;
+            }
+        }
+
+        @Override
+        public void run() {
+            Map<Optional<String>, List<SampledItem>> byConnection = Maps.newHashMap();
+
+            for (SampledItem item : items) {
+                if (item.isSamplingEnabled()) {
+                    byConnection.computeIfAbsent(
+                            connectionName.apply(item.getReadValueId().getNodeId()),
+                            k -> Lists.newArrayList()).add(item);
+                }
+            }
+
+            // Forget connections that are no longer sampled here, unless a read from them is still outstanding.
+            reading.entrySet().removeIf(e -> !byConnection.containsKey(e.getKey()) && !e.getValue().get());
+
+            if (byConnection.isEmpty()) return;
+
+            ticks.mark();
+
+            byConnection.forEach((connection, sampled) -> {
+                AtomicBoolean inProgress = reading.computeIfAbsent(connection, k -> new AtomicBoolean(false));
+
+                if (inProgress.compareAndSet(false, true)) {
+                    read(sampled, inProgress);
+                } else {
+                    overruns.mark();
+                }
+            });
+        }
+
+        private void read(List<SampledItem> sampled, AtomicBoolean inProgress) {
+            List<ReadValueId> ids = Lists.newArrayListWithCapacity(sampled.size());
+            sampled.forEach(item -> ids.add(item.getReadValueId()));
+
+            CompletableFuture<List<DataValue>> read = new CompletableFuture<>();
+
+            read.whenComplete((values, ex) -> {
+                inProgress.set(false);
+
+                if (values != null && values.size() == sampled.size()) {
+                    for (int i = 0; i < sampled.size(); i++) {
+                        SampledItem item = sampled.get(i);
+
+                        try {
+                            item.onValue(values.get(i));
+                        } catch (Throwable t) {
+                            logger.error("Error delivering sampled value for {}.", item.getReadValueId().getNodeId(), t);
+                        }
+                    }
+                }
+            });
+
+            try {
+                reader.read(ids, read);
+            } catch (Throwable t) {
+                read.completeExceptionally(t);
+            }
+        }
+
+    }
+
+}
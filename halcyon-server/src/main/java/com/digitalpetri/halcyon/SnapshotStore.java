@@ -0,0 +1,230 @@
+package com.digitalpetri.halcyon;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.digitalpetri.halcyon.api.Connection;
+import com.digitalpetri.opcua.server.api.Reference;
+import com.digitalpetri.opcua.server.api.nodes.Node;
+import com.digitalpetri.opcua.server.api.nodes.UaNode;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigRenderOptions;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.core.Identifiers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saves a snapshot of each connection's address space to {@code <directory>/<name>.snapshot}, and hands it back to the
+ * connection on the next start if its configuration hasn't changed, so it can skip rebuilding its nodes.
+ * <p>
+ * A snapshot is keyed by a hash of the connection's configuration, its connection type's version and its handle NodeId
+ * slot; any change to them means it's ignored and replaced. Slots only stay the same across restarts when
+ * {@code halcyon.connection-loading.slots-file} is set. Snapshots are taken in the background, {@code save-delay}
+ * after a connection without a usable snapshot is added (giving it time to finish building its nodes) and whenever a
+ * connection invalidates the one it was restored from.
+ * <pre>
+ * halcyon.snapshot {
+ *     enabled = true
+ *     directory = "../snapshots"
+ *     save-delay = 30s
+ * }
+ * </pre>
+ */
+class SnapshotStore {
+
+    private static final Set<NodeId> HierarchicalReferences = ImmutableSet.of(
+            Identifiers.Organizes,
+            Identifiers.HasComponent,
+            Identifiers.HasOrderedComponent,
+            Identifiers.HasProperty
+    );
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Map<String, Connection> connections = Maps.newConcurrentMap();
+
+    private final Path directory;
+    private final long saveDelayMillis;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+
+    SnapshotStore(Path directory, long saveDelayMillis, ExecutorService executor, ScheduledExecutorService scheduler) {
+        this.directory = directory;
+        this.saveDelayMillis = saveDelayMillis;
+        this.executor = executor;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @param name                the connection's name.
+     * @param config              the connection's configuration.
+     * @param connectionTypeClass the class of the connection's connection type.
+     * @param slot                the connection's handle NodeId slot.
+     * @return the snapshot saved by a previous run with the same configuration, if there is one.
+     */
+    Optional<MappedSnapshot> open(String name, Config config, Class<?> connectionTypeClass, int slot) {
+        Path file = file(name);
+
+        try {
+            Optional<MappedSnapshot> snapshot = MappedSnapshot.open(
+                    file, key(config, connectionTypeClass, slot), this::invalidated);
+
+            if (snapshot.isPresent()) {
+                logger.info("Restoring connection '{}' from snapshot of {} nodes.", name, snapshot.get().size());
+            }
+
+            return snapshot;
+        } catch (IOException e) {
+            logger.warn("Error opening snapshot {}.", file, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * {@code connection} has been added to the server; take a snapshot of it later unless it was restored from one.
+     */
+    void attached(Connection connection) {
+        String name = connection.getContext().getName();
+
+        connections.put(name, connection);
+
+        Optional<MappedSnapshot> snapshot = connection.getContext().getSnapshot()
+                .filter(s -> s instanceof MappedSnapshot)
+                .map(s -> (MappedSnapshot) s);
+
+        if (!snapshot.isPresent() || snapshot.get().isInvalidated()) {
+            scheduler.schedule(() -> executor.execute(() -> save(connection)), saveDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * The connection named {@code name} has been removed from the server. Its snapshot is kept for the next time it's
+     * added.
+     */
+    void removed(String name) {
+        connections.remove(name);
+    }
+
+    private void invalidated(MappedSnapshot snapshot) {
+        connections.values().stream()
+                .filter(c -> c.getContext().getSnapshot().orElse(null) == snapshot)
+                .findFirst()
+                .ifPresent(c -> executor.execute(() -> save(c)));
+    }
+
+    /**
+     * Walk {@code connection}'s address space from its root folder and write it to its snapshot file.
+     * <p>
+     * Synchronized so snapshots are taken one at a time; they're rare, and each can touch every node of a connection.
+     */
+    private synchronized void save(Connection connection) {
+        String name = connection.getContext().getName();
+
+        // Removed, or replaced by a reloaded instance that will take its own snapshot.
+        if (connections.get(name) != connection) return;
+
+        long startNanos = System.nanoTime();
+        Path file = file(name);
+        MappedSnapshot.Writer writer = null;
+
+        try {
+            Files.createDirectories(directory);
+
+            com.digitalpetri.halcyon.api.ConnectionContext context = connection.getContext();
+
+            writer = new MappedSnapshot.Writer(file, key(
+                    context.getConfig(),
+                    Class.forName(context.getConfig().getString("connection.connection-type-class")),
+                    slot(context)));
+
+            NodeId rootNodeId = context.getRootNodeId();
+            Deque<NodeId> queue = new ArrayDeque<>();
+            Set<NodeId> visited = Sets.newHashSet();
+
+            queue.add(rootNodeId);
+            visited.add(rootNodeId);
+
+            while (!queue.isEmpty()) {
+                NodeId nodeId = queue.poll();
+                Optional<Node> node = connection.getNode(nodeId);
+
+                if (!node.isPresent() || !(node.get() instanceof UaNode)) continue;
+
+                UaNode uaNode = (UaNode) node.get();
+
+                if (!writer.add(uaNode)) {
+                    logger.info("Not taking a snapshot of connection '{}'; {} is a {} node, which can't be saved.",
+                            name, nodeId, uaNode.getNodeClass());
+
+                    writer.abort();
+                    return;
+                }
+
+                for (Reference reference : uaNode.getReferences()) {
+                    if (!reference.isForward() || !HierarchicalReferences.contains(reference.getReferenceTypeId())) {
+                        continue;
+                    }
+
+                    NodeId target = MappedSnapshot.local(reference.getTargetNodeId());
+
+                    if (target != null && target.getNamespaceIndex() == context.getNamespaceIndex() &&
+                            visited.add(target)) {
+
+                        queue.add(target);
+                    }
+                }
+            }
+
+            writer.commit();
+
+            logger.info("Saved snapshot of connection '{}' ({} nodes) in {}ms.", name, writer.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        } catch (Throwable t) {
+            logger.error("Error saving snapshot of connection '{}'.", name, t);
+
+            if (writer != null) writer.abort();
+        }
+    }
+
+    private Path file(String name) {
+        return directory.resolve(name + ".snapshot");
+    }
+
+    /**
+     * @return the connection's handle NodeId slot, or -1 if it has none.
+     */
+    private static int slot(com.digitalpetri.halcyon.api.ConnectionContext context) {
+        return context instanceof ConnectionContext ? ((ConnectionContext) context).getSlot() : -1;
+    }
+
+    /**
+     * @return a SHA-256 of everything a snapshot depends on: the configuration, the connection type's implementation
+     * version and the slot that handle NodeIds are built from.
+     */
+    static byte[] key(Config config, Class<?> connectionTypeClass, int slot) {
+        String version = connectionTypeClass.getPackage() != null ?
+                connectionTypeClass.getPackage().getImplementationVersion() : null;
+
+        String key = config.root().render(ConfigRenderOptions.concise()) +
+                "\n" + connectionTypeClass.getName() + ":" + version +
+                "\n" + slot;
+
+        return Hashing.sha256().hashString(key, StandardCharsets.UTF_8).asBytes();
+    }
+
+}
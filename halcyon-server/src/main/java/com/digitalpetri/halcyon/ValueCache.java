@@ -0,0 +1,185 @@
+package com.digitalpetri.halcyon;
+
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.core.ReadValueId;
+import org.opcfoundation.ua.core.TimestampsToReturn;
+
+/**
+ * A bounded, server-side cache of attribute values read from connections, used to answer reads whose {@code maxAge}
+ * permits a value that was obtained recently enough.
+ * <p>
+ * Values are cached as read with {@link TimestampsToReturn#Both}; {@link #withTimestamps(DataValue, TimestampsToReturn)}
+ * strips whichever timestamps a particular request didn't ask for.
+ * <p>
+ * A read takes a {@link #version(ReadValueId)} before going to the connection and passes it back to
+ * {@link #put(ReadValueId, DataValue, long)}; if the value was invalidated by a write in the meantime the result isn't
+ * cached. Versions are kept per stripe of keys rather than per key, so an unrelated write occasionally costs a read its
+ * cache entry, never the other way around.
+ */
+class ValueCache {
+
+    private static final int VersionStripes = 1024;
+
+    private final Cache<ValueKey, CachedValue> cache;
+    private final AtomicLongArray versions = new AtomicLongArray(VersionStripes);
+
+    private final Meter hits;
+    private final Meter misses;
+
+    ValueCache(long maxSize, MetricRegistry metricRegistry) {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .build();
+
+        hits = metricRegistry.meter(MetricRegistry.name("halcyon", "read-cache", "hits"));
+        misses = metricRegistry.meter(MetricRegistry.name("halcyon", "read-cache", "misses"));
+
+        metricRegistry.register(MetricRegistry.name("halcyon", "read-cache", "size"), (Gauge<Long>) cache::size);
+    }
+
+    /**
+     * Get the cached value for {@code readValueId} if it is no older than {@code maxAge}.
+     *
+     * @param readValueId the {@link ReadValueId} being read.
+     * @param maxAge      the maximum acceptable age, in milliseconds.
+     * @return the cached value, with all timestamps, if one is present and fresh enough. Only reads with a positive
+     * {@code maxAge} of a {@link #cacheable(ReadValueId)} value are counted as hits or misses.
+     */
+    Optional<DataValue> get(ReadValueId readValueId, double maxAge) {
+        // Not a miss: the read never asked the cache, so it doesn't count against the hit ratio.
+        if (maxAge <= 0 || !cacheable(readValueId)) return Optional.empty();
+
+        CachedValue cached = cache.getIfPresent(new ValueKey(readValueId));
+
+        if (cached != null && cached.ageMillis() <= maxAge) {
+            hits.mark();
+            return Optional.of(cached.value);
+        }
+
+        misses.mark();
+        return Optional.empty();
+    }
+
+    /**
+     * @return the version to pass to {@link #put(ReadValueId, DataValue, long)} with the value about to be read.
+     */
+    long version(ReadValueId readValueId) {
+        return versions.get(stripe(new ValueKey(readValueId)));
+    }
+
+    /**
+     * Cache {@code value} unless {@code readValueId} has been invalidated since {@code version} was taken.
+     */
+    void put(ReadValueId readValueId, DataValue value, long version) {
+        if (cacheable(readValueId) && value != null && value.getStatusCode().isGood()) {
+            ValueKey key = new ValueKey(readValueId);
+            int stripe = stripe(key);
+
+            if (versions.get(stripe) != version) return;
+
+            cache.put(key, new CachedValue(value, System.nanoTime()));
+
+            // An invalidation that raced with the put may have run before it; undo the put ourselves.
+            if (versions.get(stripe) != version) cache.invalidate(key);
+        }
+    }
+
+    void invalidate(NodeId nodeId, UnsignedInteger attributeId) {
+        ValueKey key = new ValueKey(nodeId, attributeId);
+
+        versions.incrementAndGet(stripe(key));
+        cache.invalidate(key);
+    }
+
+    void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private static int stripe(ValueKey key) {
+        return (key.hashCode() & 0x7FFFFFFF) % VersionStripes;
+    }
+
+    /**
+     * Only whole values can be cached or shared; reads of an index range or a particular data encoding always go
+     * through to the connection.
+     */
+    static boolean cacheable(ReadValueId readValueId) {
+        String indexRange = readValueId.getIndexRange();
+
+        return (indexRange == null || indexRange.isEmpty()) &&
+                (readValueId.getDataEncoding() == null || readValueId.getDataEncoding().getName() == null);
+    }
+
+    static DataValue withTimestamps(DataValue value, TimestampsToReturn timestamps) {
+        switch (timestamps) {
+            case Source:
+                return new DataValue(value.getValue(), value.getStatusCode(), value.getSourceTimestamp(), null);
+            case Server:
+                return new DataValue(value.getValue(), value.getStatusCode(), null, value.getServerTimestamp());
+            case Neither:
+                return new DataValue(value.getValue(), value.getStatusCode(), null, null);
+            default:
+                return value;
+        }
+    }
+
+    static final class ValueKey {
+
+        private final NodeId nodeId;
+        private final UnsignedInteger attributeId;
+
+        ValueKey(ReadValueId readValueId) {
+            this(readValueId.getNodeId(), readValueId.getAttributeId());
+        }
+
+        ValueKey(NodeId nodeId, UnsignedInteger attributeId) {
+            this.nodeId = nodeId;
+            this.attributeId = attributeId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            ValueKey that = (ValueKey) o;
+
+            return nodeId.equals(that.nodeId) && Objects.equals(attributeId, that.attributeId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * nodeId.hashCode() + Objects.hashCode(attributeId);
+        }
+
+    }
+
+    private static final class CachedValue {
+
+        private final DataValue value;
+        private final long cachedNanos;
+
+        private CachedValue(DataValue value, long cachedNanos) {
+            this.value = value;
+            this.cachedNanos = cachedNanos;
+        }
+
+        double ageMillis() {
+            return (System.nanoTime() - cachedNanos) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+    }
+
+}
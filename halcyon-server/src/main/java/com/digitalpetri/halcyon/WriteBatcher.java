@@ -0,0 +1,283 @@
+package com.digitalpetri.halcyon;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.digitalpetri.halcyon.api.Connection;
+import com.digitalpetri.opcua.server.util.PendingWrite;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.typesafe.config.Config;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.core.StatusCodes;
+import org.opcfoundation.ua.core.WriteValue;
+
+import static com.digitalpetri.opcua.server.util.FutureUtils.sequence;
+
+/**
+ * Collects the writes of many Write requests to one connection over a short window and hands them to the connection
+ * as a single batch.
+ * <p>
+ * Only one batch is in flight at a time, so a later value never reaches the device ahead of an earlier one. Writes
+ * arriving while a batch is outstanding wait for it and go out in the next batch.
+ * <p>
+ * With {@code coalesce} on, the last write to a given node, attribute and index range within a batch wins: only that
+ * value is sent, at the position of the first write to the same target, and every write it superseded completes with
+ * the status the connection returned for it. Writes to different targets keep the order their first writes arrived
+ * in, so {@code A=1, B=2, A=3} is sent as {@code A=3, B=2}. Connections that need every write in arrival order can
+ * turn {@code coalesce} off.
+ * <p>
+ * Configured per connection; batching is off unless a window is set:
+ * <pre>
+ * connection.write-batching {
+ *     window = 20ms
+ *     max-batch-size = 1000
+ *     coalesce = true
+ * }
+ * </pre>
+ */
+class WriteBatcher {
+
+    static final int DefaultMaxBatchSize = 1000;
+
+    private List<PendingWrite> pending = Lists.newArrayList();
+    private ScheduledFuture<?> scheduledFlush;
+    private boolean inFlight = false;
+
+    private final Histogram batchSize;
+    private final Meter superseded;
+
+    private final String name;
+    private final long windowMillis;
+    private final int maxBatchSize;
+    private final boolean coalesce;
+    private final ScheduledExecutorService scheduler;
+    private final BiConsumer<List<WriteValue>, CompletableFuture<List<StatusCode>>> writer;
+    private final MetricRegistry metricRegistry;
+
+    /**
+     * @param name           the connection name, for metrics.
+     * @param windowMillis   how long to collect writes after the first one arrives.
+     * @param maxBatchSize   flush as soon as this many writes are pending.
+     * @param coalesce       send only the last write to each target in a batch.
+     * @param scheduler      schedules the end of each window.
+     * @param metricRegistry the {@link MetricRegistry}.
+     * @param writer         writes a batch to the connection, completing the future with its results.
+     */
+    WriteBatcher(String name,
+                 long windowMillis,
+                 int maxBatchSize,
+                 boolean coalesce,
+                 ScheduledExecutorService scheduler,
+                 MetricRegistry metricRegistry,
+                 BiConsumer<List<WriteValue>, CompletableFuture<List<StatusCode>>> writer) {
+
+        this.name = name;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.coalesce = coalesce;
+        this.scheduler = scheduler;
+        this.writer = writer;
+        this.metricRegistry = metricRegistry;
+
+        batchSize = metricRegistry.histogram(MetricRegistry.name("connection", name, "write-batching", "batch-size"));
+        superseded = metricRegistry.meter(MetricRegistry.name("connection", name, "write-batching", "superseded"));
+    }
+
+    void write(List<WriteValue> values, CompletableFuture<List<StatusCode>> future) {
+        List<PendingWrite> writes = values.stream()
+                .map(PendingWrite::new)
+                .collect(Collectors.toList());
+
+        List<CompletableFuture<StatusCode>> futures = writes.stream()
+                .map(PendingWrite::getFuture)
+                .collect(Collectors.toList());
+
+        sequence(futures).thenAccept(future::complete);
+
+        boolean full;
+
+        synchronized (this) {
+            pending.addAll(writes);
+            full = pending.size() >= maxBatchSize;
+
+            if (!full && scheduledFlush == null) {
+                scheduledFlush = scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (full) flush();
+    }
+
+    /**
+     * Send everything pending to the connection now, or as soon as the batch in flight completes.
+     */
+    void flush() {
+        List<PendingWrite> batch;
+
+        synchronized (this) {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+
+            if (inFlight || pending.isEmpty()) return;
+
+            if (pending.size() <= maxBatchSize) {
+                batch = pending;
+                pending = Lists.newArrayList();
+            } else {
+                // Writes that piled up behind the last batch go out max-batch-size at a time.
+                List<PendingWrite> head = pending.subList(0, maxBatchSize);
+                batch = Lists.newArrayList(head);
+                head.clear();
+            }
+
+            inFlight = true;
+        }
+
+        List<List<PendingWrite>> targets = coalesce ? coalesce(batch) : batch.stream()
+                .map(Collections::singletonList)
+                .collect(Collectors.toList());
+
+        List<WriteValue> values = targets.stream()
+                .map(group -> group.get(group.size() - 1).getInput())
+                .collect(Collectors.toList());
+
+        batchSize.update(values.size());
+        superseded.mark(batch.size() - values.size());
+
+        CompletableFuture<List<StatusCode>> callback = new CompletableFuture<>();
+
+        callback.whenComplete((statusCodes, ex) -> {
+            for (int i = 0; i < targets.size(); i++) {
+                StatusCode status = (statusCodes != null && statusCodes.size() == targets.size()) ?
+                        statusCodes.get(i) : new StatusCode(StatusCodes.Bad_InternalError);
+
+                targets.get(i).forEach(write -> write.getFuture().complete(status));
+            }
+
+            completed();
+        });
+
+        try {
+            writer.accept(values, callback);
+        } catch (Throwable t) {
+            callback.completeExceptionally(t);
+        }
+    }
+
+    /**
+     * The batch in flight completed; send whatever queued up behind it without waiting out another window.
+     */
+    private void completed() {
+        synchronized (this) {
+            inFlight = false;
+
+            if (pending.isEmpty()) return;
+        }
+
+        flush();
+    }
+
+    /**
+     * Group writes to the same target, keeping groups in the order of their first write.
+     */
+    private static List<List<PendingWrite>> coalesce(List<PendingWrite> batch) {
+        Map<WriteKey, List<PendingWrite>> groups = Maps.newLinkedHashMap();
+
+        for (PendingWrite write : batch) {
+            groups.computeIfAbsent(new WriteKey(write.getInput()), k -> Lists.newArrayListWithCapacity(1)).add(write);
+        }
+
+        return Lists.newArrayList(groups.values());
+    }
+
+    /**
+     * Flush anything pending and remove this batcher's metrics from the {@link MetricRegistry}. Writes waiting behind
+     * a batch in flight are sent when it completes.
+     */
+    void close() {
+        flush();
+
+        String prefix = MetricRegistry.name("connection", name, "write-batching");
+
+        metricRegistry.removeMatching((n, m) -> n.startsWith(prefix));
+    }
+
+    /**
+     * @return a {@link WriteBatcher} for {@code connection}, or {@code null} if its configuration doesn't enable
+     * batching.
+     */
+    static WriteBatcher create(Connection connection,
+                               ScheduledExecutorService scheduler,
+                               BiConsumer<List<WriteValue>, CompletableFuture<List<StatusCode>>> writer) {
+
+        Config config = connection.getContext().getConfig();
+
+        if (!config.hasPath("connection.write-batching.window")) return null;
+
+        long windowMillis = config.getMilliseconds("connection.write-batching.window");
+
+        int maxBatchSize = config.hasPath("connection.write-batching.max-batch-size") ?
+                config.getInt("connection.write-batching.max-batch-size") : DefaultMaxBatchSize;
+
+        boolean coalesce = !config.hasPath("connection.write-batching.coalesce") ||
+                config.getBoolean("connection.write-batching.coalesce");
+
+        return new WriteBatcher(
+                connection.getContext().getName(),
+                Math.max(1L, windowMillis),
+                Math.max(1, maxBatchSize),
+                coalesce,
+                scheduler,
+                connection.getContext().getMetricRegistry(),
+                writer
+        );
+    }
+
+    static final class WriteKey {
+
+        private final NodeId nodeId;
+        private final UnsignedInteger attributeId;
+        private final String indexRange;
+
+        WriteKey(WriteValue value) {
+            this.nodeId = value.getNodeId();
+            this.attributeId = value.getAttributeId();
+            this.indexRange = value.getIndexRange();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            WriteKey that = (WriteKey) o;
+
+            return Objects.equals(nodeId, that.nodeId) &&
+                    Objects.equals(attributeId, that.attributeId) &&
+                    Objects.equals(indexRange, that.indexRange);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(nodeId, attributeId, indexRange);
+        }
+
+    }
+
+}
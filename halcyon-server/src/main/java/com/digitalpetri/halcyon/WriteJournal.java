@@ -0,0 +1,569 @@
+package com.digitalpetri.halcyon;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.digitalpetri.halcyon.WriteBatcher.WriteKey;
+import com.digitalpetri.halcyon.api.Connection;
+import com.digitalpetri.halcyon.util.VariantCodec;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.typesafe.config.Config;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.core.StatusCodes;
+import org.opcfoundation.ua.core.WriteValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A durable store-and-forward queue for writes to a connection that is offline.
+ * <p>
+ * While {@link Connection#isConnected()} is {@code false}, and afterwards until everything queued has been replayed,
+ * writes are appended to a memory-mapped journal file and complete immediately with {@code Good_CompletesAsynchronously}.
+ * Only the last write to a given node, attribute and index range is kept. Once the connection is back the queued writes
+ * are replayed in the order of their last write, at most {@code replay-rate} per second and one batch at a time, so a
+ * reconnect doesn't turn into a write storm.
+ * <p>
+ * A replayed write the connection rejects outright, e.g. with {@code Bad_NodeIdUnknown} or {@code Bad_TypeMismatch}, is
+ * logged and dropped. Any other failure, e.g. {@code Bad_Timeout}, keeps it and everything queued after it, and replay
+ * backs off, from one second doubling up to a minute, before trying again.
+ * <p>
+ * The journal survives restarts and connection reloads; delivery is at least once.
+ * <p>
+ * Configured per connection; off unless enabled:
+ * <pre>
+ * connection.write-journal {
+ *     enabled = true
+ *     directory = "../journal"
+ *     size = 4M
+ *     replay-rate = 100
+ * }
+ * </pre>
+ */
+class WriteJournal {
+
+    static final String DefaultDirectory = "../journal";
+    static final long DefaultSize = 4L * 1024 * 1024;
+    static final int DefaultReplayRate = 100;
+
+    private static final int Magic = 0x48574A31; // "HWJ1"
+    private static final int Version = 1;
+
+    private static final int HeaderSize = 16;
+    private static final int EndOffset = 8;
+
+    private static final byte RecordPut = 1;
+    private static final byte RecordRemove = 2;
+
+    private static final long TickMillis = 100L;
+
+    private static final long MinRetryDelayMillis = 1000L;
+    private static final long MaxRetryDelayMillis = 60000L;
+
+    /**
+     * Statuses meaning a write will never succeed as it stands; replay drops it instead of retrying.
+     */
+    private static final Set<UnsignedInteger> Rejections = ImmutableSet.of(
+            StatusCodes.Bad_NodeIdUnknown,
+            StatusCodes.Bad_NodeIdInvalid,
+            StatusCodes.Bad_AttributeIdInvalid,
+            StatusCodes.Bad_IndexRangeInvalid,
+            StatusCodes.Bad_IndexRangeNoData,
+            StatusCodes.Bad_TypeMismatch,
+            StatusCodes.Bad_OutOfRange,
+            StatusCodes.Bad_NotWritable,
+            StatusCodes.Bad_UserAccessDenied,
+            StatusCodes.Bad_WriteNotSupported,
+            StatusCodes.Bad_NotSupported
+    );
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Queued writes, in the order of their last write.
+     */
+    private final Map<WriteKey, Entry> entries = Maps.newLinkedHashMap();
+
+    private final ByteBuffer scratch = ByteBuffer.allocate(64 * 1024);
+
+    private final Meter queued;
+    private final Meter replayed;
+    private final Meter rejected;
+    private final Meter retries;
+
+    private final ScheduledFuture<?> replayTask;
+
+    private final Connection connection;
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final double writesPerTick;
+    private final BiConsumer<List<WriteValue>, CompletableFuture<List<StatusCode>>> writer;
+    private final MetricRegistry metricRegistry;
+
+    private int end = HeaderSize;
+    private long nextSequence = 0L;
+    private double credits = 0.0;
+    private boolean replaying = false;
+    private long retryDelayMillis = 0L;
+    private long retryAtNanos = 0L;
+    private boolean dirty = false;
+    private boolean closed = false;
+
+    /**
+     * @param connection the connection whose writes are journaled.
+     * @param path       the journal file, created if it doesn't exist.
+     * @param size       the size of the journal file, in bytes.
+     * @param replayRate the maximum number of queued writes to replay per second.
+     * @param scheduler  runs the replay.
+     * @param writer     writes a batch to the connection, completing the future with its results.
+     */
+    WriteJournal(Connection connection,
+                 Path path,
+                 int size,
+                 int replayRate,
+                 ScheduledExecutorService scheduler,
+                 BiConsumer<List<WriteValue>, CompletableFuture<List<StatusCode>>> writer) throws IOException {
+
+        this.connection = connection;
+        this.path = path;
+        this.writer = writer;
+        this.metricRegistry = connection.getContext().getMetricRegistry();
+
+        writesPerTick = Math.max(1, replayRate) * TickMillis / 1000.0;
+
+        Files.createDirectories(path.toAbsolutePath().getParent());
+
+        buffer = map(path, size);
+
+        load();
+
+        String name = connection.getContext().getName();
+
+        queued = metricRegistry.meter(MetricRegistry.name("connection", name, "write-journal", "queued"));
+        replayed = metricRegistry.meter(MetricRegistry.name("connection", name, "write-journal", "replayed"));
+        rejected = metricRegistry.meter(MetricRegistry.name("connection", name, "write-journal", "rejected"));
+        retries = metricRegistry.meter(MetricRegistry.name("connection", name, "write-journal", "retries"));
+
+        metricRegistry.register(MetricRegistry.name("connection", name, "write-journal", "depth"),
+                (Gauge<Integer>) this::getDepth);
+        metricRegistry.register(MetricRegistry.name("connection", name, "write-journal", "size-bytes"),
+                (Gauge<Integer>) this::getSizeBytes);
+
+        replayTask = scheduler.scheduleWithFixedDelay(this::replay, TickMillis, TickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Journal {@code values} if the connection is offline or earlier writes are still waiting to be replayed.
+     *
+     * @return {@code true} if the writes were journaled and {@code callback} completed; {@code false} if they should
+     * go straight to the connection.
+     */
+    boolean offer(List<WriteValue> values, CompletableFuture<List<StatusCode>> callback) {
+        List<StatusCode> results = Lists.newArrayListWithCapacity(values.size());
+
+        synchronized (this) {
+            if (closed || (entries.isEmpty() && connection.isConnected())) return false;
+
+            for (WriteValue value : values) {
+                results.add(append(value));
+            }
+        }
+
+        callback.complete(results);
+
+        return true;
+    }
+
+    synchronized int getDepth() {
+        return entries.size();
+    }
+
+    synchronized int getSizeBytes() {
+        return end;
+    }
+
+    /**
+     * Stop replaying, flush the journal to disk and remove its metrics. Anything still queued is replayed by the next
+     * journal opened on the same file.
+     */
+    void close() {
+        replayTask.cancel(false);
+
+        synchronized (this) {
+            closed = true;
+            buffer.force();
+        }
+
+        String prefix = MetricRegistry.name("connection", connection.getContext().getName(), "write-journal");
+
+        metricRegistry.removeMatching((n, m) -> n.startsWith(prefix));
+    }
+
+    private StatusCode append(WriteValue value) {
+        WriteKey key = new WriteKey(value);
+        long sequence = nextSequence++;
+
+        ByteBuffer record;
+
+        try {
+            record = encode(RecordPut, sequence, value);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Not journaling write to {}: {}.", value.getNodeId(), e.getMessage());
+            rejected.mark();
+            return new StatusCode(StatusCodes.Bad_NotSupported);
+        }
+
+        if (!write(record)) {
+            rejected.mark();
+            return new StatusCode(StatusCodes.Bad_ResourceUnavailable);
+        }
+
+        entries.remove(key);
+        entries.put(key, new Entry(sequence, value));
+        queued.mark();
+
+        return new StatusCode(StatusCodes.Good_CompletesAsynchronously);
+    }
+
+    private void replay() {
+        List<Entry> batch;
+
+        synchronized (this) {
+            if (dirty) {
+                buffer.force();
+                dirty = false;
+            }
+
+            if (closed || replaying || entries.isEmpty() || !connection.isConnected()) {
+                credits = 0.0;
+                return;
+            }
+
+            if (retryDelayMillis > 0 && System.nanoTime() - retryAtNanos < 0) return;
+
+            credits = Math.min(credits + writesPerTick, Math.max(1.0, writesPerTick));
+
+            int n = (int) credits;
+            if (n == 0) return;
+
+            batch = Lists.newArrayListWithCapacity(Math.min(n, entries.size()));
+
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext() && batch.size() < n) {
+                batch.add(iterator.next());
+            }
+
+            credits -= batch.size();
+            replaying = true;
+        }
+
+        List<WriteValue> values = Lists.newArrayListWithCapacity(batch.size());
+        batch.forEach(e -> values.add(e.value));
+
+        CompletableFuture<List<StatusCode>> callback = new CompletableFuture<>();
+
+        callback.whenComplete((statusCodes, ex) -> replayed(batch, statusCodes));
+
+        try {
+            writer.accept(values, callback);
+        } catch (Throwable t) {
+            callback.completeExceptionally(t);
+        }
+    }
+
+    private synchronized void replayed(List<Entry> batch, List<StatusCode> statusCodes) {
+        replaying = false;
+
+        if (closed) return;
+
+        boolean retry = false;
+
+        for (int i = 0; i < batch.size(); i++) {
+            Entry entry = batch.get(i);
+
+            StatusCode status = (statusCodes != null && statusCodes.size() == batch.size()) ?
+                    statusCodes.get(i) : new StatusCode(StatusCodes.Bad_InternalError);
+
+            // Lost the connection again; keep this and everything after it for the next attempt.
+            if (status.isBad() && !connection.isConnected()) break;
+
+            // Might succeed later; keep this and everything after it, and back off before trying again.
+            if (status.isBad() && !isRejection(status)) {
+                retryDelayMillis = Math.min(MaxRetryDelayMillis, Math.max(MinRetryDelayMillis, retryDelayMillis * 2));
+                retryAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryDelayMillis);
+                retries.mark();
+                retry = true;
+
+                logger.warn("Replayed write to {} failed: {}; retrying in {}ms.",
+                        entry.value.getNodeId(), status, retryDelayMillis);
+                break;
+            }
+
+            if (status.isBad()) {
+                logger.warn("Replayed write to {} was rejected and won't be retried: {}.",
+                        entry.value.getNodeId(), status);
+            }
+
+            WriteKey key = new WriteKey(entry.value);
+
+            // Only forget it if it wasn't superseded by a newer write while being replayed.
+            Entry current = entries.get(key);
+            if (current == null || current.sequence != entry.sequence) continue;
+
+            entries.remove(key);
+            replayed.mark();
+
+            if (entries.isEmpty()) {
+                reset();
+            } else {
+                write(encode(RecordRemove, entry.sequence, entry.value));
+            }
+        }
+
+        if (!retry) retryDelayMillis = 0L;
+    }
+
+    private static boolean isRejection(StatusCode status) {
+        // Ignore the info bits in the low word.
+        return Rejections.contains(UnsignedInteger.getFromBits(status.getValue().intValue() & 0xFFFF0000));
+    }
+
+    /**
+     * Append a record, compacting the journal down to just the queued writes first if it doesn't fit.
+     *
+     * @return {@code false} if it still doesn't fit.
+     */
+    private boolean write(ByteBuffer record) {
+        if (end + record.remaining() > buffer.capacity()) {
+            compact();
+
+            if (end + record.remaining() > buffer.capacity()) return false;
+        }
+
+        ByteBuffer view = buffer.duplicate();
+        view.position(end);
+        view.put(record);
+
+        setEnd(end + record.limit());
+
+        return true;
+    }
+
+    private void compact() {
+        int size = HeaderSize;
+
+        List<ByteBuffer> records = Lists.newArrayListWithCapacity(entries.size());
+
+        for (Entry entry : entries.values()) {
+            ByteBuffer record = encode(RecordPut, entry.sequence, entry.value);
+            records.add(record);
+            size += record.remaining();
+        }
+
+        if (size >= end) return;
+
+        ByteBuffer view = buffer.duplicate();
+        view.position(HeaderSize);
+        records.forEach(view::put);
+
+        setEnd(size);
+
+        logger.debug("Compacted write journal {} to {} bytes.", path, size);
+    }
+
+    private void reset() {
+        setEnd(HeaderSize);
+    }
+
+    private void setEnd(int end) {
+        this.end = end;
+        buffer.putInt(EndOffset, end);
+        dirty = true;
+    }
+
+    /**
+     * Rebuild the queue from the journal file, or initialize it if it's new or unreadable.
+     */
+    private void load() {
+        if (buffer.getInt(0) != Magic || buffer.getInt(4) != Version) {
+            buffer.putInt(0, Magic);
+            buffer.putInt(4, Version);
+            reset();
+            return;
+        }
+
+        int limit = Math.max(HeaderSize, Math.min(buffer.capacity(), buffer.getInt(EndOffset)));
+
+        ByteBuffer view = buffer.duplicate();
+        view.position(HeaderSize);
+        view.limit(limit);
+
+        while (view.remaining() >= 4) {
+            int start = view.position();
+            int length = view.getInt();
+
+            if (length <= 0 || length > view.remaining()) {
+                view.position(start);
+                break;
+            }
+
+            ByteBuffer record = view.slice();
+            record.limit(length);
+
+            try {
+                byte kind = record.get();
+                long sequence = record.getLong();
+                WriteValue value = decodeWriteValue(record);
+                WriteKey key = new WriteKey(value);
+
+                if (kind == RecordPut) {
+                    entries.remove(key);
+                    entries.put(key, new Entry(sequence, value));
+                } else {
+                    Entry current = entries.get(key);
+                    if (current != null && current.sequence == sequence) entries.remove(key);
+                }
+
+                nextSequence = Math.max(nextSequence, sequence + 1);
+            } catch (RuntimeException e) {
+                logger.warn("Truncating write journal {} at unreadable record at {}.", path, start, e);
+                view.position(start);
+                break;
+            }
+
+            view.position(start + 4 + length);
+        }
+
+        if (entries.isEmpty()) {
+            reset();
+        } else {
+            setEnd(view.position());
+            logger.info("Write journal {} has {} queued write(s) to replay.", path, entries.size());
+        }
+    }
+
+    private ByteBuffer encode(byte kind, long sequence, WriteValue value) {
+        scratch.clear();
+
+        try {
+            scratch.putInt(0);
+            scratch.put(kind);
+            scratch.putLong(sequence);
+
+            VariantCodec.encodeNodeId(value.getNodeId(), scratch);
+            scratch.putInt(value.getAttributeId().intValue());
+            VariantCodec.encodeString(value.getIndexRange(), scratch);
+
+            if (kind == RecordPut) VariantCodec.encodeDataValue(value.getValue(), scratch);
+        } catch (BufferOverflowException e) {
+            throw new IllegalArgumentException("value too large", e);
+        }
+
+        scratch.putInt(0, scratch.position() - 4);
+        scratch.flip();
+
+        ByteBuffer record = ByteBuffer.allocate(scratch.remaining());
+        record.put(scratch);
+        record.flip();
+
+        return record;
+    }
+
+    private static WriteValue decodeWriteValue(ByteBuffer record) {
+        NodeId nodeId = VariantCodec.decodeNodeId(record);
+        UnsignedInteger attributeId = UnsignedInteger.getFromBits(record.getInt());
+        String indexRange = VariantCodec.decodeString(record);
+        DataValue value = record.hasRemaining() ? VariantCodec.decodeDataValue(record) : null;
+
+        return new WriteValue(nodeId, attributeId, indexRange, value);
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+             FileChannel channel = file.getChannel()) {
+
+            long length = Math.max(size, Math.min(Integer.MAX_VALUE, channel.size()));
+
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        }
+    }
+
+    /**
+     * @return a {@link WriteJournal} for {@code connection}, or {@code null} if its configuration doesn't enable one.
+     */
+    static WriteJournal create(Connection connection,
+                               ScheduledExecutorService scheduler,
+                               BiConsumer<List<WriteValue>, CompletableFuture<List<StatusCode>>> writer) {
+
+        Config config = connection.getContext().getConfig();
+
+        if (!config.hasPath("connection.write-journal.enabled") ||
+                !config.getBoolean("connection.write-journal.enabled")) return null;
+
+        String name = connection.getContext().getName();
+
+        String directory = config.hasPath("connection.write-journal.directory") ?
+                config.getString("connection.write-journal.directory") : DefaultDirectory;
+
+        long size = config.hasPath("connection.write-journal.size") ?
+                config.getBytes("connection.write-journal.size") : DefaultSize;
+
+        int replayRate = config.hasPath("connection.write-journal.replay-rate") ?
+                config.getInt("connection.write-journal.replay-rate") : DefaultReplayRate;
+
+        Path path = Paths.get(directory, name + ".journal");
+
+        try {
+            return new WriteJournal(
+                    connection,
+                    path,
+                    (int) Math.max(HeaderSize + 1024, Math.min(Integer.MAX_VALUE, size)),
+                    replayRate,
+                    scheduler,
+                    writer
+            );
+        } catch (IOException e) {
+            LoggerFactory.getLogger(WriteJournal.class)
+                    .error("Error opening write journal {} for connection '{}'; writes won't be journaled.",
+                            path, name, e);
+
+            return null;
+        }
+    }
+
+    private static final class Entry {
+
+        private final long sequence;
+        private final WriteValue value;
+
+        Entry(long sequence, WriteValue value) {
+            this.sequence = sequence;
+            this.value = value;
+        }
+
+    }
+
+}
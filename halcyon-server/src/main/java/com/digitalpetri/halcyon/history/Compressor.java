@@ -0,0 +1,202 @@
+package com.digitalpetri.halcyon.history;
+
+/**
+ * Decides which samples of a series are worth archiving.
+ * <p>
+ * A status change is always archived, along with the sample before it. Between status changes,
+ * {@link #swingingDoor(double)} keeps only the points needed to reconstruct the series by linear interpolation to
+ * within the deviation, and {@link #deadband(double)} keeps a sample only when it differs from the last archived one
+ * by more than the deviation.
+ * <p>
+ * Not thread-safe; a series is recorded from one sampling slot at a time.
+ */
+public abstract class Compressor {
+
+    /**
+     * Receives the samples a {@link Compressor} decided to archive.
+     */
+    public interface Archiver {
+
+        void archive(long time, double value, int status);
+
+    }
+
+    boolean archived = false;
+    long archivedTime;
+    double archivedValue;
+    int archivedStatus;
+
+    boolean pending = false;
+    long pendingTime;
+    double pendingValue;
+    int pendingStatus;
+
+    /**
+     * Offer a new sample, archiving whatever it causes to be archived.
+     */
+    public void offer(long time, double value, int status, Archiver archiver) {
+        if (!archived || status != archivedStatus) {
+            flush(archiver);
+            archive(time, value, status, archiver);
+        } else if (time > archivedTime) {
+            offerSameStatus(time, value, status, archiver);
+        }
+    }
+
+    /**
+     * Archive the most recent sample if it hasn't been already, e.g. before shutting down.
+     */
+    public void flush(Archiver archiver) {
+        if (pending) archive(pendingTime, pendingValue, pendingStatus, archiver);
+    }
+
+    /**
+     * @return the most recent sample if it hasn't been archived yet, so queries can include it.
+     */
+    public HistoryValue getPending() {
+        return pending ? new HistoryValue(pendingTime, pendingValue, pendingStatus) : null;
+    }
+
+    abstract void offerSameStatus(long time, double value, int status, Archiver archiver);
+
+    void archive(long time, double value, int status, Archiver archiver) {
+        archiver.archive(time, value, status);
+
+        archived = true;
+        archivedTime = time;
+        archivedValue = value;
+        archivedStatus = status;
+        pending = false;
+
+        reset();
+    }
+
+    void pend(long time, double value, int status) {
+        pending = true;
+        pendingTime = time;
+        pendingValue = value;
+        pendingStatus = status;
+    }
+
+    /**
+     * Called whenever a new point has been archived.
+     */
+    void reset() {
+    }
+
+    public static Compressor swingingDoor(double deviation) {
+        return new SwingingDoor(deviation);
+    }
+
+    public static Compressor deadband(double deviation) {
+        return new Deadband(deviation);
+    }
+
+    /**
+     * @param type      "swinging-door", "deadband" or "none".
+     * @param deviation the compression deviation, in engineering units.
+     */
+    public static Compressor create(String type, double deviation) {
+        switch (type) {
+            case "swinging-door":
+                return swingingDoor(deviation);
+            case "deadband":
+                return deadband(deviation);
+            case "none":
+                return deadband(-1.0);
+            default:
+                throw new IllegalArgumentException("unknown compression: " + type);
+        }
+    }
+
+    private static class SwingingDoor extends Compressor {
+
+        private final double deviation;
+
+        private double minSlope;
+        private double maxSlope;
+
+        SwingingDoor(double deviation) {
+            this.deviation = Math.max(0.0, deviation);
+        }
+
+        @Override
+        void reset() {
+            minSlope = Double.NEGATIVE_INFINITY;
+            maxSlope = Double.POSITIVE_INFINITY;
+        }
+
+        @Override
+        void offerSameStatus(long time, double value, int status, Archiver archiver) {
+            if (Double.isNaN(value) || Double.isNaN(archivedValue)) {
+                if (Double.isNaN(value) != Double.isNaN(archivedValue)) {
+                    flush(archiver);
+                    archive(time, value, status, archiver);
+                } else {
+                    pend(time, value, status);
+                }
+                return;
+            }
+
+            if (narrow(time, value)) {
+                pend(time, value, status);
+            } else {
+                // The doors closed: the previous point is the last one a single line could cover. Archive it and
+                // start a new line from there through this point.
+                if (pending) {
+                    archive(pendingTime, pendingValue, pendingStatus, archiver);
+                    narrow(time, value);
+                    pend(time, value, status);
+                } else {
+                    archive(time, value, status, archiver);
+                }
+            }
+        }
+
+        /**
+         * Narrow the range of slopes a line from the archived point may take and still pass within the deviation of
+         * every point since, to include this point.
+         *
+         * @return {@code false} if no such line exists any more.
+         */
+        private boolean narrow(long time, double value) {
+            double dt = time - archivedTime;
+
+            double low = Math.max(minSlope, (value - deviation - archivedValue) / dt);
+            double high = Math.min(maxSlope, (value + deviation - archivedValue) / dt);
+
+            if (low > high) return false;
+
+            minSlope = low;
+            maxSlope = high;
+
+            return true;
+        }
+
+    }
+
+    private static class Deadband extends Compressor {
+
+        private final double deviation;
+
+        Deadband(double deviation) {
+            this.deviation = deviation;
+        }
+
+        @Override
+        void offerSameStatus(long time, double value, int status, Archiver archiver) {
+            boolean nan = Double.isNaN(value);
+            boolean wasNan = Double.isNaN(archivedValue);
+
+            boolean changed = (nan != wasNan) || (!nan && Math.abs(value - archivedValue) > deviation);
+
+            if (changed) {
+                archive(time, value, status, archiver);
+            } else {
+                pend(time, value, status);
+            }
+        }
+
+    }
+
+}
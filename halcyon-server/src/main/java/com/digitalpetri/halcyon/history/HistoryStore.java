@@ -0,0 +1,268 @@
+package com.digitalpetri.halcyon.history;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An embedded, append-only store of numeric samples, kept in a directory of memory-mapped segment files.
+ * <p>
+ * Samples belong to a series, identified by a string key (the NodeId of the tag being recorded). Keys are assigned
+ * small integer ids, persisted in {@code series.txt}, so each sample is a fixed 24 byte record.
+ * <p>
+ * When the active segment fills up a new one is started, and the oldest segments are deleted while the store is larger
+ * than its maximum size or they hold nothing newer than its maximum age. Retention is also enforced whenever
+ * {@link #enforceRetention()} is called, so segments age out even while little is being recorded.
+ * <p>
+ * Appends and reads are thread-safe. A read only holds the store's lock long enough to snapshot the segments, so a
+ * long range scan doesn't hold up recording.
+ */
+public class HistoryStore {
+
+    private static final String SeriesFile = "series.txt";
+    private static final String SegmentPrefix = "history-";
+    private static final String SegmentSuffix = ".seg";
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final List<Segment> segments = Lists.newArrayList();
+    private final Map<String, Integer> seriesIds = Maps.newConcurrentMap();
+
+    private final Meter appends;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long maxAgeMillis;
+    private final long maxSizeBytes;
+
+    private long nextSegmentNumber;
+
+    /**
+     * Open the store in {@code directory}, creating it if necessary.
+     *
+     * @param directory      the directory holding the segment files.
+     * @param segmentSize    the size of each segment file, in bytes.
+     * @param maxAgeMillis   segments holding nothing newer than this are deleted.
+     * @param maxSizeBytes   the oldest segments are deleted while the store is larger than this.
+     * @param metricRegistry the {@link MetricRegistry}.
+     */
+    public HistoryStore(Path directory,
+                        int segmentSize,
+                        long maxAgeMillis,
+                        long maxSizeBytes,
+                        MetricRegistry metricRegistry) throws IOException {
+
+        this.directory = directory;
+        this.segmentSize = Math.max(Segment.HeaderSize + Segment.RecordSize, segmentSize);
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxSizeBytes = maxSizeBytes;
+
+        Files.createDirectories(directory);
+
+        loadSeries();
+        loadSegments();
+
+        appends = metricRegistry.meter(MetricRegistry.name("halcyon", "history", "appends"));
+
+        metricRegistry.register(MetricRegistry.name("halcyon", "history", "size-bytes"),
+                (Gauge<Long>) this::getSizeBytes);
+        metricRegistry.register(MetricRegistry.name("halcyon", "history", "segments"),
+                (Gauge<Integer>) this::getSegmentCount);
+    }
+
+    /**
+     * @param key the series key.
+     * @return the id of the series {@code key}, assigning and persisting a new one if needed.
+     */
+    public synchronized int seriesId(String key) throws IOException {
+        Integer id = seriesIds.get(key);
+
+        if (id == null) {
+            id = seriesIds.size();
+
+            String line = id + "\t" + key + System.lineSeparator();
+
+            Files.write(directory.resolve(SeriesFile), line.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+            seriesIds.put(key, id);
+        }
+
+        return id;
+    }
+
+    /**
+     * Append a sample.
+     *
+     * @param series the series id, from {@link #seriesId(String)}.
+     * @param time   the sample's source time, in Java time.
+     * @param value  the sample's value.
+     * @param status the raw bits of the sample's status code.
+     */
+    public synchronized void append(int series, long time, double value, int status) throws IOException {
+        Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+
+        if (active == null || active.isFull()) {
+            if (active != null) active.force();
+
+            active = Segment.create(segmentPath(nextSegmentNumber++), segmentSize);
+            segments.add(active);
+
+            enforceRetention();
+        }
+
+        active.append(series, time, value, status);
+        appends.mark();
+    }
+
+    /**
+     * Read the samples of series {@code key} with a time in {@code [from, to]}, in time order.
+     *
+     * @param key  the series key.
+     * @param from the start of the range, inclusive, in Java time.
+     * @param to   the end of the range, inclusive, in Java time.
+     * @param max  the maximum number of samples to return.
+     * @return the samples; empty if the series is unknown.
+     */
+    public List<HistoryValue> read(String key, long from, long to, int max) {
+        Integer series = seriesIds.get(key);
+
+        if (series == null || max <= 0) return Collections.emptyList();
+
+        List<Segment> snapshot;
+        int[] counts;
+        long[] minTimes;
+        long[] maxTimes;
+
+        synchronized (this) {
+            snapshot = Lists.newArrayList(segments);
+            counts = new int[snapshot.size()];
+            minTimes = new long[snapshot.size()];
+            maxTimes = new long[snapshot.size()];
+
+            for (int i = 0; i < counts.length; i++) {
+                Segment segment = snapshot.get(i);
+
+                counts[i] = segment.getCount();
+                minTimes[i] = segment.getMinTime();
+                maxTimes[i] = segment.getMaxTime();
+            }
+        }
+
+        List<HistoryValue> values = Lists.newArrayList();
+
+        for (int i = 0; i < snapshot.size(); i++) {
+            Segment segment = snapshot.get(i);
+
+            if (maxTimes[i] < from || minTimes[i] > to) continue;
+
+            if (!segment.read(counts[i], series, from, to, max, values)) break;
+        }
+
+        values.sort(Comparator.comparingLong(HistoryValue::getTime));
+
+        return values;
+    }
+
+    /**
+     * Flush all segments to disk.
+     */
+    public synchronized void close() {
+        segments.forEach(Segment::force);
+    }
+
+    public synchronized long getSizeBytes() {
+        return segments.stream().mapToLong(Segment::getSize).sum();
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Delete the oldest segments while the store is larger than its maximum size or they hold nothing newer than its
+     * maximum age. The active segment is never deleted.
+     */
+    public synchronized void enforceRetention() {
+        long oldest = System.currentTimeMillis() - maxAgeMillis;
+
+        // Never delete the active segment.
+        while (segments.size() > 1) {
+            Segment segment = segments.get(0);
+
+            boolean tooBig = getSizeBytes() > maxSizeBytes;
+            boolean tooOld = segment.getMaxTime() < oldest;
+
+            if (!tooBig && !tooOld) break;
+
+            segments.remove(0);
+
+            try {
+                Files.deleteIfExists(segment.getPath());
+            } catch (IOException e) {
+                logger.warn("Error deleting history segment {}.", segment.getPath(), e);
+            }
+        }
+    }
+
+    private void loadSeries() throws IOException {
+        Path path = directory.resolve(SeriesFile);
+
+        if (!Files.exists(path)) return;
+
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            int tab = line.indexOf('\t');
+
+            if (tab > 0) {
+                seriesIds.put(line.substring(tab + 1), Integer.valueOf(line.substring(0, tab)));
+            }
+        }
+    }
+
+    private void loadSegments() throws IOException {
+        List<Path> paths = Lists.newArrayList();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SegmentPrefix + "*" + SegmentSuffix)) {
+            stream.forEach(paths::add);
+        }
+
+        paths.sort(Comparator.comparing(p -> p.getFileName().toString()));
+
+        for (Path path : paths) {
+            try {
+                segments.add(Segment.open(path));
+                nextSegmentNumber = Math.max(nextSegmentNumber, segmentNumber(path) + 1);
+            } catch (IOException | NumberFormatException e) {
+                logger.warn("Skipping unreadable history segment {}.", path, e);
+            }
+        }
+
+        logger.info("Opened history store in {} with {} segment(s).", directory, segments.size());
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(String.format("%s%016d%s", SegmentPrefix, number, SegmentSuffix));
+    }
+
+    private static long segmentNumber(Path path) {
+        String name = path.getFileName().toString();
+
+        return Long.parseLong(name.substring(SegmentPrefix.length(), name.length() - SegmentSuffix.length()));
+    }
+
+}
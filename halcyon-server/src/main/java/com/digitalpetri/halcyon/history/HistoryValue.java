@@ -0,0 +1,43 @@
+package com.digitalpetri.halcyon.history;
+
+/**
+ * A single archived sample: a source time, a numeric value and a status code.
+ * <p>
+ * The value is {@code NaN} for samples whose value wasn't numeric, e.g. a Bad status with no value.
+ */
+public class HistoryValue {
+
+    private final long time;
+    private final double value;
+    private final int status;
+
+    public HistoryValue(long time, double value, int status) {
+        this.time = time;
+        this.value = value;
+        this.status = status;
+    }
+
+    /**
+     * @return the sample's source time, in Java time (milliseconds since the epoch).
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * @return the raw bits of the sample's status code.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    @Override
+    public String toString() {
+        return "HistoryValue{time=" + time + ", value=" + value + ", status=" + Integer.toHexString(status) + "}";
+    }
+
+}
@@ -0,0 +1,174 @@
+package com.digitalpetri.halcyon.history;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * One memory-mapped, fixed-size segment file of fixed-size records.
+ * <p>
+ * Layout: a 64 byte header ({@code magic, version, count, reserved, minTime, maxTime}) followed by {@code count}
+ * records of {@code (series int, status int, time long, value double)}. The count is written after each record, so a
+ * segment reopened after a crash ends at its last complete record.
+ * <p>
+ * Appends are made by one thread at a time (under the {@link HistoryStore} lock); readers scan a duplicate of the buffer
+ * up to a record count they obtained under that same lock.
+ */
+class Segment {
+
+    static final int Magic = 0x48485331; // "HHS1"
+    static final int Version = 1;
+
+    static final int HeaderSize = 64;
+    static final int RecordSize = 24;
+
+    private static final int CountOffset = 8;
+    private static final int MinTimeOffset = 16;
+    private static final int MaxTimeOffset = 24;
+
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+    private int count;
+    private long minTime;
+    private long maxTime;
+
+    private Segment(Path path, MappedByteBuffer buffer) {
+        this.path = path;
+        this.buffer = buffer;
+
+        capacity = (buffer.capacity() - HeaderSize) / RecordSize;
+    }
+
+    /**
+     * Create a new, empty segment file of {@code size} bytes.
+     */
+    static Segment create(Path path, int size) throws IOException {
+        Segment segment = new Segment(path, map(path, size));
+
+        segment.buffer.putInt(0, Magic);
+        segment.buffer.putInt(4, Version);
+        segment.setCount(0);
+        segment.minTime = Long.MAX_VALUE;
+        segment.maxTime = Long.MIN_VALUE;
+        segment.buffer.putLong(MinTimeOffset, segment.minTime);
+        segment.buffer.putLong(MaxTimeOffset, segment.maxTime);
+
+        return segment;
+    }
+
+    /**
+     * Open an existing segment file.
+     *
+     * @throws IOException if the file isn't a segment.
+     */
+    static Segment open(Path path) throws IOException {
+        long size;
+
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+            size = file.length();
+        }
+
+        if (size < HeaderSize || size > Integer.MAX_VALUE) {
+            throw new IOException("not a history segment: " + path);
+        }
+
+        Segment segment = new Segment(path, map(path, (int) size));
+
+        if (segment.buffer.getInt(0) != Magic || segment.buffer.getInt(4) != Version) {
+            throw new IOException("not a history segment: " + path);
+        }
+
+        segment.count = Math.max(0, Math.min(segment.capacity, segment.buffer.getInt(CountOffset)));
+        segment.minTime = segment.buffer.getLong(MinTimeOffset);
+        segment.maxTime = segment.buffer.getLong(MaxTimeOffset);
+
+        return segment;
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+             FileChannel channel = file.getChannel()) {
+
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    boolean isFull() {
+        return count >= capacity;
+    }
+
+    void append(int series, long time, double value, int status) {
+        int offset = HeaderSize + count * RecordSize;
+
+        buffer.putInt(offset, series);
+        buffer.putInt(offset + 4, status);
+        buffer.putLong(offset + 8, time);
+        buffer.putDouble(offset + 16, value);
+
+        if (time < minTime) buffer.putLong(MinTimeOffset, minTime = time);
+        if (time > maxTime) buffer.putLong(MaxTimeOffset, maxTime = time);
+
+        setCount(count + 1);
+    }
+
+    private void setCount(int count) {
+        this.count = count;
+        buffer.putInt(CountOffset, count);
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getMinTime() {
+        return minTime;
+    }
+
+    long getMaxTime() {
+        return maxTime;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long getSize() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Collect the first {@code count} records of {@code series} with a time in {@code [from, to]}.
+     *
+     * @return {@code false} if {@code max} values have been collected.
+     */
+    boolean read(int count, int series, long from, long to, int max, List<HistoryValue> values) {
+        ByteBuffer view = buffer.duplicate();
+
+        for (int i = 0; i < count; i++) {
+            int offset = HeaderSize + i * RecordSize;
+
+            if (view.getInt(offset) != series) continue;
+
+            long time = view.getLong(offset + 8);
+
+            if (time >= from && time <= to) {
+                values.add(new HistoryValue(time, view.getDouble(offset + 16), view.getInt(offset + 4)));
+
+                if (values.size() >= max) return false;
+            }
+        }
+
+        return true;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+}
@@ -0,0 +1,422 @@
+package com.digitalpetri.halcyon.util;
+
+import java.lang.reflect.Array;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.QualifiedName;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.UnsignedByte;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.builtintypes.UnsignedLong;
+import org.opcfoundation.ua.builtintypes.UnsignedShort;
+import org.opcfoundation.ua.builtintypes.Variant;
+
+/**
+ * A compact binary encoding of {@link NodeId}s, {@link QualifiedName}s and {@link DataValue}s, for the server's own
+ * files: the write journal and the address space snapshot.
+ * <p>
+ * Values may be null, a scalar of one of the built-in types below, or a one-dimensional array of them. Anything else
+ * can't be encoded and makes the encode methods throw {@link IllegalArgumentException}; a truncated or corrupt buffer
+ * makes the decode methods throw {@link IllegalArgumentException} too.
+ * <p>
+ * Timestamps are kept to the millisecond.
+ */
+public class VariantCodec {
+
+    private static final byte TypeNull = 0;
+    private static final byte TypeBoolean = 1;
+    private static final byte TypeByte = 2;
+    private static final byte TypeShort = 3;
+    private static final byte TypeInteger = 4;
+    private static final byte TypeLong = 5;
+    private static final byte TypeFloat = 6;
+    private static final byte TypeDouble = 7;
+    private static final byte TypeString = 8;
+    private static final byte TypeUnsignedByte = 9;
+    private static final byte TypeUnsignedShort = 10;
+    private static final byte TypeUnsignedInteger = 11;
+    private static final byte TypeUnsignedLong = 12;
+    private static final byte TypeDateTime = 13;
+    private static final byte TypeUuid = 14;
+    private static final byte TypeByteString = 15;
+    private static final byte TypeNodeId = 16;
+    private static final byte TypeQualifiedName = 17;
+    private static final byte TypeStatusCode = 18;
+
+    private static final byte ArrayFlag = (byte) 0x40;
+    private static final byte PrimitiveArrayFlag = (byte) 0x20;
+
+    private static final long NoTime = Long.MIN_VALUE;
+
+    private VariantCodec() {
+    }
+
+    public static void encodeDataValue(DataValue value, ByteBuffer buffer) {
+        encodeValue(value.getValue() != null ? value.getValue().getValue() : null, buffer);
+
+        StatusCode status = value.getStatusCode() != null ? value.getStatusCode() : StatusCode.GOOD;
+        buffer.putInt(status.getValue().intValue());
+
+        buffer.putLong(value.getSourceTimestamp() != null ? value.getSourceTimestamp().getMilliSeconds() : NoTime);
+        buffer.putLong(value.getServerTimestamp() != null ? value.getServerTimestamp().getMilliSeconds() : NoTime);
+    }
+
+    public static DataValue decodeDataValue(ByteBuffer buffer) {
+        try {
+            Object value = decodeValue(buffer);
+            StatusCode status = new StatusCode(UnsignedInteger.getFromBits(buffer.getInt()));
+            long sourceTime = buffer.getLong();
+            long serverTime = buffer.getLong();
+
+            return new DataValue(
+                    new Variant(value),
+                    status,
+                    sourceTime != NoTime ? DateTime.fromMillis(sourceTime) : null,
+                    serverTime != NoTime ? DateTime.fromMillis(serverTime) : null
+            );
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("truncated DataValue", e);
+        }
+    }
+
+    public static void encodeNodeId(NodeId nodeId, ByteBuffer buffer) {
+        buffer.putShort((short) nodeId.getNamespaceIndex());
+        encodeValue(nodeId.getValue(), buffer);
+    }
+
+    public static NodeId decodeNodeId(ByteBuffer buffer) {
+        try {
+            int namespaceIndex = buffer.getShort() & 0xFFFF;
+            Object value = decodeValue(buffer);
+
+            if (value instanceof UnsignedInteger) return new NodeId(namespaceIndex, (UnsignedInteger) value);
+            if (value instanceof String) return new NodeId(namespaceIndex, (String) value);
+            if (value instanceof UUID) return new NodeId(namespaceIndex, (UUID) value);
+            if (value instanceof byte[]) return new NodeId(namespaceIndex, (byte[]) value);
+
+            throw new IllegalArgumentException("invalid NodeId identifier: " + value);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("truncated NodeId", e);
+        }
+    }
+
+    public static void encodeQualifiedName(QualifiedName name, ByteBuffer buffer) {
+        buffer.putShort((short) name.getNamespaceIndex());
+        encodeString(name.getName(), buffer);
+    }
+
+    public static QualifiedName decodeQualifiedName(ByteBuffer buffer) {
+        try {
+            int namespaceIndex = buffer.getShort() & 0xFFFF;
+
+            return new QualifiedName(namespaceIndex, decodeString(buffer));
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("truncated QualifiedName", e);
+        }
+    }
+
+    public static void encodeString(String s, ByteBuffer buffer) {
+        if (s == null) {
+            buffer.putInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    public static String decodeString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+
+        if (length < 0) return null;
+        if (length > buffer.remaining()) throw new IllegalArgumentException("truncated String");
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encode a raw value: null, a supported scalar, or a one-dimensional array of a supported scalar type.
+     */
+    public static void encodeValue(Object value, ByteBuffer buffer) {
+        if (value != null && value.getClass().isArray() && !(value instanceof byte[])) {
+            Class<?> componentType = value.getClass().getComponentType();
+            byte type = componentType.isPrimitive() ? primitiveType(componentType) : scalarType(componentType);
+
+            if (type == TypeNull) throw new IllegalArgumentException("unsupported array type: " + componentType);
+
+            int length = Array.getLength(value);
+
+            buffer.put((byte) (type | ArrayFlag | (componentType.isPrimitive() ? PrimitiveArrayFlag : 0)));
+            buffer.putInt(length);
+
+            for (int i = 0; i < length; i++) {
+                Object element = Array.get(value, i);
+
+                if (element == null) {
+                    buffer.put((byte) 0);
+                } else {
+                    buffer.put((byte) 1);
+                    encodeScalar(type, element, buffer);
+                }
+            }
+        } else {
+            byte type = value != null ? scalarType(value.getClass()) : TypeNull;
+
+            if (value != null && type == TypeNull) {
+                throw new IllegalArgumentException("unsupported type: " + value.getClass());
+            }
+
+            buffer.put(type);
+            encodeScalar(type, value, buffer);
+        }
+    }
+
+    public static Object decodeValue(ByteBuffer buffer) {
+        try {
+            byte header = buffer.get();
+
+            if ((header & ArrayFlag) == 0) {
+                return decodeScalar(header, buffer);
+            }
+
+            byte type = (byte) (header & 0x1F);
+            boolean primitive = (header & PrimitiveArrayFlag) != 0;
+            int length = buffer.getInt();
+
+            if (length < 0 || length > buffer.remaining()) throw new IllegalArgumentException("invalid array length");
+
+            Class<?> componentType = primitive ? primitiveClass(type) : scalarClass(type);
+            Object array = Array.newInstance(componentType, length);
+
+            for (int i = 0; i < length; i++) {
+                if (buffer.get() != 0) Array.set(array, i, decodeScalar(type, buffer));
+            }
+
+            return array;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("truncated value", e);
+        }
+    }
+
+    private static void encodeScalar(byte type, Object value, ByteBuffer buffer) {
+        switch (type) {
+            case TypeNull:
+                break;
+            case TypeBoolean:
+                buffer.put((byte) ((Boolean) value ? 1 : 0));
+                break;
+            case TypeByte:
+                buffer.put((Byte) value);
+                break;
+            case TypeShort:
+                buffer.putShort((Short) value);
+                break;
+            case TypeInteger:
+                buffer.putInt((Integer) value);
+                break;
+            case TypeLong:
+                buffer.putLong((Long) value);
+                break;
+            case TypeFloat:
+                buffer.putFloat((Float) value);
+                break;
+            case TypeDouble:
+                buffer.putDouble((Double) value);
+                break;
+            case TypeString:
+                encodeString((String) value, buffer);
+                break;
+            case TypeUnsignedByte:
+                buffer.put((byte) ((UnsignedByte) value).intValue());
+                break;
+            case TypeUnsignedShort:
+                buffer.putShort((short) ((UnsignedShort) value).intValue());
+                break;
+            case TypeUnsignedInteger:
+                buffer.putInt(((UnsignedInteger) value).intValue());
+                break;
+            case TypeUnsignedLong:
+                encodeString(value.toString(), buffer);
+                break;
+            case TypeDateTime:
+                buffer.putLong(((DateTime) value).getMilliSeconds());
+                break;
+            case TypeUuid:
+                buffer.putLong(((UUID) value).getMostSignificantBits());
+                buffer.putLong(((UUID) value).getLeastSignificantBits());
+                break;
+            case TypeByteString:
+                buffer.putInt(((byte[]) value).length);
+                buffer.put((byte[]) value);
+                break;
+            case TypeNodeId:
+                encodeNodeId((NodeId) value, buffer);
+                break;
+            case TypeQualifiedName:
+                encodeQualifiedName((QualifiedName) value, buffer);
+                break;
+            case TypeStatusCode:
+                buffer.putInt(((StatusCode) value).getValue().intValue());
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported type: " + type);
+        }
+    }
+
+    private static Object decodeScalar(byte type, ByteBuffer buffer) {
+        switch (type) {
+            case TypeNull:
+                return null;
+            case TypeBoolean:
+                return buffer.get() != 0;
+            case TypeByte:
+                return buffer.get();
+            case TypeShort:
+                return buffer.getShort();
+            case TypeInteger:
+                return buffer.getInt();
+            case TypeLong:
+                return buffer.getLong();
+            case TypeFloat:
+                return buffer.getFloat();
+            case TypeDouble:
+                return buffer.getDouble();
+            case TypeString:
+                return decodeString(buffer);
+            case TypeUnsignedByte:
+                return new UnsignedByte(buffer.get() & 0xFF);
+            case TypeUnsignedShort:
+                return new UnsignedShort(buffer.getShort() & 0xFFFF);
+            case TypeUnsignedInteger:
+                return UnsignedInteger.getFromBits(buffer.getInt());
+            case TypeUnsignedLong:
+                return new UnsignedLong(decodeString(buffer));
+            case TypeDateTime:
+                return DateTime.fromMillis(buffer.getLong());
+            case TypeUuid:
+                return new UUID(buffer.getLong(), buffer.getLong());
+            case TypeByteString: {
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) throw new IllegalArgumentException("invalid length");
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                return bytes;
+            }
+            case TypeNodeId:
+                return decodeNodeId(buffer);
+            case TypeQualifiedName:
+                return decodeQualifiedName(buffer);
+            case TypeStatusCode:
+                return new StatusCode(UnsignedInteger.getFromBits(buffer.getInt()));
+            default:
+                throw new IllegalArgumentException("unsupported type: " + type);
+        }
+    }
+
+    private static byte scalarType(Class<?> c) {
+        if (c == Boolean.class) return TypeBoolean;
+        if (c == Byte.class) return TypeByte;
+        if (c == Short.class) return TypeShort;
+        if (c == Integer.class) return TypeInteger;
+        if (c == Long.class) return TypeLong;
+        if (c == Float.class) return TypeFloat;
+        if (c == Double.class) return TypeDouble;
+        if (c == String.class) return TypeString;
+        if (c == UnsignedByte.class) return TypeUnsignedByte;
+        if (c == UnsignedShort.class) return TypeUnsignedShort;
+        if (c == UnsignedInteger.class) return TypeUnsignedInteger;
+        if (c == UnsignedLong.class) return TypeUnsignedLong;
+        if (c == DateTime.class) return TypeDateTime;
+        if (c == UUID.class) return TypeUuid;
+        if (c == byte[].class) return TypeByteString;
+        if (c == NodeId.class) return TypeNodeId;
+        if (c == QualifiedName.class) return TypeQualifiedName;
+        if (c == StatusCode.class) return TypeStatusCode;
+        return TypeNull;
+    }
+
+    private static Class<?> scalarClass(byte type) {
+        switch (type) {
+            case TypeBoolean:
+                return Boolean.class;
+            case TypeByte:
+                return Byte.class;
+            case TypeShort:
+                return Short.class;
+            case TypeInteger:
+                return Integer.class;
+            case TypeLong:
+                return Long.class;
+            case TypeFloat:
+                return Float.class;
+            case TypeDouble:
+                return Double.class;
+            case TypeString:
+                return String.class;
+            case TypeUnsignedByte:
+                return UnsignedByte.class;
+            case TypeUnsignedShort:
+                return UnsignedShort.class;
+            case TypeUnsignedInteger:
+                return UnsignedInteger.class;
+            case TypeUnsignedLong:
+                return UnsignedLong.class;
+            case TypeDateTime:
+                return DateTime.class;
+            case TypeUuid:
+                return UUID.class;
+            case TypeByteString:
+                return byte[].class;
+            case TypeNodeId:
+                return NodeId.class;
+            case TypeQualifiedName:
+                return QualifiedName.class;
+            case TypeStatusCode:
+                return StatusCode.class;
+            default:
+                throw new IllegalArgumentException("unsupported array type: " + type);
+        }
+    }
+
+    private static byte primitiveType(Class<?> c) {
+        if (c == boolean.class) return TypeBoolean;
+        if (c == byte.class) return TypeByte;
+        if (c == short.class) return TypeShort;
+        if (c == int.class) return TypeInteger;
+        if (c == long.class) return TypeLong;
+        if (c == float.class) return TypeFloat;
+        if (c == double.class) return TypeDouble;
+        return TypeNull;
+    }
+
+    private static Class<?> primitiveClass(byte type) {
+        switch (type) {
+            case TypeBoolean:
+                return boolean.class;
+            case TypeByte:
+                return byte.class;
+            case TypeShort:
+                return short.class;
+            case TypeInteger:
+                return int.class;
+            case TypeLong:
+                return long.class;
+            case TypeFloat:
+                return float.class;
+            case TypeDouble:
+                return double.class;
+            default:
+                throw new IllegalArgumentException("unsupported primitive array type: " + type);
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+package com.digitalpetri.halcyon.util;
+
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access to virtual threads when running on a JDK that has them (21+), while still building for Java 8.
+ * <p>
+ * Everything is looked up reflectively once; on older JDKs every method returns {@link Optional#empty()}.
+ */
+public class VirtualThreads {
+
+    /**
+     * Workers of the shared virtual-thread scheduler. They're virtual, so a task that blocks only parks its own worker;
+     * this only bounds how many scheduled tasks can be running at once.
+     */
+    private static final int ScheduledPoolSize = 256;
+
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private static final Optional<ThreadFactory> Factory = factory("halcyon-virtual-");
+    private static final Optional<ExecutorService> Executor = Factory.flatMap(VirtualThreads::perTaskExecutor);
+    private static final Optional<ScheduledExecutorService> ScheduledExecutor =
+            Factory.map(f -> Executors.newScheduledThreadPool(ScheduledPoolSize, f));
+
+    public static boolean isAvailable() {
+        return Executor.isPresent() && ScheduledExecutor.isPresent();
+    }
+
+    /**
+     * @return a shared {@link ExecutorService} that runs each task on its own virtual thread.
+     */
+    public static Optional<ExecutorService> executor() {
+        return Executor;
+    }
+
+    /**
+     * @return a shared {@link ScheduledExecutorService} whose tasks run on virtual threads.
+     */
+    public static Optional<ScheduledExecutorService> scheduledExecutor() {
+        return ScheduledExecutor;
+    }
+
+    /**
+     * Equivalent to {@code Executors.newThreadPerTaskExecutor(factory)}.
+     */
+    private static Optional<ExecutorService> perTaskExecutor(ThreadFactory factory) {
+        try {
+            Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+
+            return Optional.of((ExecutorService) method.invoke(null, factory));
+        } catch (Throwable t) {
+            logger.warn("Virtual thread executor unavailable.", t);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Equivalent to {@code Thread.ofVirtual().name(prefix, 0).factory()}.
+     */
+    private static Optional<ThreadFactory> factory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method name = builderClass.getMethod("name", String.class, long.class);
+            Method factory = builderClass.getMethod("factory");
+
+            builder = name.invoke(builder, prefix, 0L);
+
+            return Optional.of((ThreadFactory) factory.invoke(builder));
+        } catch (NoSuchMethodException | ClassNotFoundException e) {
+            return Optional.empty();
+        } catch (Throwable t) {
+            logger.warn("Virtual threads unavailable.", t);
+            return Optional.empty();
+        }
+    }
+
+}
@@ -0,0 +1,188 @@
+package com.digitalpetri.halcyon;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.regex.Matcher;
+
+import com.digitalpetri.halcyon.api.Connection;
+import org.junit.Test;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+
+import static com.digitalpetri.halcyon.api.ConnectionContext.CONNECTION_PREFIX_PATTERN;
+import static com.digitalpetri.halcyon.api.ConnectionContext.HANDLE_BITS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ConnectionIndexTest {
+
+    private static final int NamespaceIndex = 2;
+
+    @Test
+    public void testOverlappingPrefixes() {
+        ConnectionIndex index = new ConnectionIndex(NamespaceIndex);
+
+        Connection a = connection("a");
+        Connection ab = connection("ab");
+        Connection abc = connection("abc");
+
+        index.add("ab", ab);
+        index.add("a", a);
+        index.add("abc", abc);
+
+        assertEquals(Optional.of(a), index.get("[a]Tag"));
+        assertEquals(Optional.of(ab), index.get("[ab]Tag"));
+        assertEquals(Optional.of(abc), index.get("[abc]Tag"));
+        assertEquals(Optional.of(abc), index.get("[abc]"));
+
+        assertEquals(Optional.empty(), index.get("[abcd]Tag"));
+        assertEquals(Optional.empty(), index.get("[b]Tag"));
+        assertEquals(Optional.empty(), index.get("[abc"));
+        assertEquals(Optional.empty(), index.get("abc]Tag"));
+        assertEquals(Optional.empty(), index.get("[]Tag"));
+
+        assertEquals(Optional.of(ab), index.byName("ab"));
+        assertEquals(Optional.empty(), index.byName("abcd"));
+
+        // Removing a connection leaves the ones sharing its prefix alone.
+        index.remove("ab");
+
+        assertEquals(Optional.of(a), index.get("[a]Tag"));
+        assertEquals(Optional.empty(), index.get("[ab]Tag"));
+        assertEquals(Optional.of(abc), index.get("[abc]Tag"));
+    }
+
+    @Test
+    public void testAddRemoveReAdd() {
+        ConnectionIndex index = new ConnectionIndex(NamespaceIndex);
+
+        Connection first = connection("c");
+        Connection second = connection("c");
+
+        int slot = index.slot("c");
+
+        index.add("c", first);
+        assertEquals(Optional.of(first), index.get("[c]Tag"));
+        assertEquals(Optional.of(first), index.get(handleNodeId(NamespaceIndex, slot, 7)));
+
+        index.remove("c");
+        assertEquals(Optional.empty(), index.get("[c]Tag"));
+        assertEquals(Optional.empty(), index.byName("c"));
+        assertEquals(Optional.empty(), index.get(handleNodeId(NamespaceIndex, slot, 7)));
+
+        // A re-added connection gets its old slot back.
+        assertEquals(slot, index.slot("c"));
+
+        index.add("c", second);
+        assertEquals(Optional.of(second), index.get("[c]Tag"));
+        assertEquals(Optional.of(second), index.get(handleNodeId(NamespaceIndex, slot, 7)));
+    }
+
+    @Test
+    public void testReplacingConnectionDoesNotAffectEarlierLookups() {
+        ConnectionIndex index = new ConnectionIndex(NamespaceIndex);
+
+        Connection first = connection("d");
+        Connection second = connection("d");
+
+        index.add("d", first);
+        Optional<Connection> before = index.get("[d]Tag");
+
+        index.add("d", second);
+
+        assertEquals(Optional.of(first), before);
+        assertEquals(Optional.of(second), index.get("[d]Tag"));
+    }
+
+    @Test
+    public void testNamesContainingClosingBracket() {
+        ConnectionIndex index = new ConnectionIndex(NamespaceIndex);
+
+        Connection bracketed = connection("x]y");
+        index.add("x]y", bracketed);
+
+        // Like CONNECTION_PREFIX_PATTERN, the name ends at the first ']', so "[x]y]Tag" names connection "x".
+        assertEquals(Optional.empty(), index.get("[x]y]Tag"));
+        assertEquals(Optional.of(bracketed), index.byName("x]y"));
+
+        Connection x = connection("x");
+        index.add("x", x);
+
+        assertEquals(Optional.of(x), index.get("[x]y]Tag"));
+
+        for (String id : new String[]{"[x]y]Tag", "[x]Tag", "[x]]", "[x]y]", "[[x]Tag"}) {
+            assertEquals(id, byPattern(index, id), index.get(id));
+        }
+    }
+
+    @Test
+    public void testHandleNodeIdsInOtherNamespacesAreNotRouted() {
+        ConnectionIndex index = new ConnectionIndex(NamespaceIndex);
+
+        Connection e = connection("e");
+        int slot = index.slot("e");
+        index.add("e", e);
+
+        assertEquals(Optional.of(e), index.get(handleNodeId(NamespaceIndex, slot, 1)));
+        assertEquals(Optional.empty(), index.get(handleNodeId(0, slot, 1)));
+        assertEquals(Optional.empty(), index.get(handleNodeId(NamespaceIndex + 1, slot, 1)));
+    }
+
+    @Test
+    public void testSlotsArePersisted() throws Exception {
+        Path directory = Files.createTempDirectory("connection-index");
+        Path slotsFile = directory.resolve("slots.properties");
+
+        try {
+            ConnectionIndex index = new ConnectionIndex(NamespaceIndex, slotsFile);
+
+            int a = index.slot("a");
+            int b = index.slot("b");
+            int bracketed = index.slot("x]y = z");
+
+            ConnectionIndex reloaded = new ConnectionIndex(NamespaceIndex, slotsFile);
+
+            // Assigned in a different order, but each name keeps its slot and new names don't reuse one.
+            assertEquals(bracketed, reloaded.slot("x]y = z"));
+            assertEquals(b, reloaded.slot("b"));
+            assertEquals(a, reloaded.slot("a"));
+
+            int c = reloaded.slot("c");
+            assertFalse(c == a || c == b || c == bracketed);
+        } finally {
+            Files.deleteIfExists(slotsFile);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    private static Optional<Connection> byPattern(ConnectionIndex index, String id) {
+        Matcher matcher = CONNECTION_PREFIX_PATTERN.matcher(id);
+
+        return matcher.matches() ? index.byName(matcher.group(1)) : Optional.empty();
+    }
+
+    private static NodeId handleNodeId(int namespaceIndex, int slot, int handle) {
+        return new NodeId(namespaceIndex, new UnsignedInteger(((long) slot << HANDLE_BITS) | handle));
+    }
+
+    private static Connection connection(String name) {
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return "Connection[" + name + "]";
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+}
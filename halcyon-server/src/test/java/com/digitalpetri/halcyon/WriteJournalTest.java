@@ -0,0 +1,354 @@
+package com.digitalpetri.halcyon;
+
+import java.io.RandomAccessFile;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+import com.codahale.metrics.MetricRegistry;
+import com.digitalpetri.halcyon.api.Connection;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.Variant;
+import org.opcfoundation.ua.core.Attributes;
+import org.opcfoundation.ua.core.StatusCodes;
+import org.opcfoundation.ua.core.WriteValue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WriteJournalTest {
+
+    private static final int Size = 64 * 1024;
+
+    /**
+     * Offsets within the journal file; see {@link WriteJournal}.
+     */
+    private static final int HeaderSize = 16;
+    private static final int EndOffset = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicBoolean connected = new AtomicBoolean(false);
+    private final List<WriteValue> written = new CopyOnWriteArrayList<>();
+    private final AtomicReference<StatusCode> writeStatus = new AtomicReference<>(StatusCode.GOOD);
+
+    private ScheduledExecutorService scheduler;
+    private Connection connection;
+    private Path path;
+
+    @Before
+    public void setUp() throws Exception {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+
+        ConnectionContext context = new ConnectionContext(
+                "journal-test",
+                ConfigFactory.empty(),
+                new NodeId(2, "[journal-test]"),
+                null,
+                new MetricRegistry(),
+                2);
+
+        connection = (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getContext":
+                            return context;
+                        case "isConnected":
+                            return connected.get();
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+
+        path = folder.getRoot().toPath().resolve("journal-test.journal");
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testQueuesOnlyTheLastWriteToEachNode() throws Exception {
+        WriteJournal journal = open(Size);
+
+        List<StatusCode> results = offer(journal, write("A", 1), write("B", 2), write("A", 3));
+
+        assertEquals(3, results.size());
+        results.forEach(s -> assertEquals(StatusCodes.Good_CompletesAsynchronously, s.getValue()));
+        assertEquals(2, journal.getDepth());
+
+        journal.close();
+    }
+
+    @Test
+    public void testNotJournaledWhileConnectedAndEmpty() throws Exception {
+        connected.set(true);
+
+        WriteJournal journal = open(Size);
+
+        assertFalse(journal.offer(Collections.singletonList(write("A", 1)), new CompletableFuture<>()));
+        assertEquals(0, journal.getDepth());
+
+        journal.close();
+    }
+
+    @Test
+    public void testLoadRestoresQueueInOrderOfLastWrite() throws Exception {
+        WriteJournal journal = open(Size);
+        offer(journal, write("A", 1), write("B", 2), write("A", 3), write("C", 4));
+        journal.close();
+
+        WriteJournal reopened = open(Size);
+        assertEquals(3, reopened.getDepth());
+
+        connected.set(true);
+        awaitDepth(reopened, 0);
+
+        assertEquals("B=2, A=3, C=4", describe(written));
+
+        reopened.close();
+
+        // Everything was replayed, so nothing comes back again.
+        WriteJournal empty = open(Size);
+        assertEquals(0, empty.getDepth());
+        empty.close();
+    }
+
+    @Test
+    public void testCompactsInsteadOfFillingUp() throws Exception {
+        WriteJournal journal = open(1024);
+
+        // Far more records than fit in 1KB without compaction.
+        for (int i = 0; i < 1000; i++) {
+            List<StatusCode> results = offer(journal, write("A", i), write("B", -i));
+
+            results.forEach(s -> assertEquals(StatusCodes.Good_CompletesAsynchronously, s.getValue()));
+        }
+
+        assertEquals(2, journal.getDepth());
+        assertTrue(journal.getSizeBytes() <= 1024);
+
+        journal.close();
+
+        WriteJournal reopened = open(1024);
+        assertEquals(2, reopened.getDepth());
+
+        connected.set(true);
+        awaitDepth(reopened, 0);
+
+        assertEquals("A=999, B=-999", describe(written));
+
+        reopened.close();
+    }
+
+    @Test
+    public void testRejectsWritesThatDontFitEvenAfterCompaction() throws Exception {
+        WriteJournal journal = open(1024);
+
+        StatusCode last = null;
+
+        for (int i = 0; i < 1000 && (last == null || last.isGood()); i++) {
+            last = offer(journal, write("Node" + i, i)).get(0);
+        }
+
+        assertEquals(StatusCodes.Bad_ResourceUnavailable, last.getValue());
+        assertTrue(journal.getSizeBytes() <= 1024);
+
+        journal.close();
+    }
+
+    @Test
+    public void testRecoversFromRecordCutShortByEndOffset() throws Exception {
+        WriteJournal journal = open(Size);
+        offer(journal, write("A", 1), write("B", 2), write("C", 3));
+        journal.close();
+
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            FileChannel channel = file.getChannel();
+            int end = readInt(channel, EndOffset);
+
+            // As if the process died partway through appending the last record.
+            writeInt(channel, EndOffset, end - 3);
+        }
+
+        WriteJournal reopened = open(Size);
+        assertEquals(2, reopened.getDepth());
+
+        connected.set(true);
+        awaitDepth(reopened, 0);
+
+        assertEquals("A=1, B=2", describe(written));
+
+        reopened.close();
+    }
+
+    @Test
+    public void testRecoversFromUnreadableRecord() throws Exception {
+        WriteJournal journal = open(Size);
+        offer(journal, write("A", 1), write("B", 2), write("C", 3));
+        journal.close();
+
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            FileChannel channel = file.getChannel();
+            int end = readInt(channel, EndOffset);
+
+            int start = HeaderSize;
+            int last = start;
+
+            while (start < end) {
+                last = start;
+                start += 4 + readInt(channel, start);
+            }
+
+            // Record: length, kind, sequence, then the NodeId's namespace index and identifier type.
+            ByteBuffer garbage = ByteBuffer.wrap(new byte[]{(byte) 0x1F});
+            channel.write(garbage, last + 4 + 1 + 8 + 2);
+        }
+
+        WriteJournal reopened = open(Size);
+        assertEquals(2, reopened.getDepth());
+
+        // New writes append after the last good record.
+        offer(reopened, write("D", 4));
+        assertEquals(3, reopened.getDepth());
+
+        reopened.close();
+
+        WriteJournal again = open(Size);
+        assertEquals(3, again.getDepth());
+
+        connected.set(true);
+        awaitDepth(again, 0);
+
+        assertEquals("A=1, B=2, D=4", describe(written));
+
+        again.close();
+    }
+
+    @Test
+    public void testReplaysRetryTransientFailures() throws Exception {
+        WriteJournal journal = open(Size);
+        offer(journal, write("A", 1), write("B", 2));
+
+        writeStatus.set(new StatusCode(StatusCodes.Bad_Timeout));
+        connected.set(true);
+
+        awaitWrites(1);
+        assertEquals(2, journal.getDepth());
+
+        writeStatus.set(StatusCode.GOOD);
+        awaitDepth(journal, 0);
+
+        assertEquals("A=1", describe(written.subList(0, 1)));
+        assertTrue(describe(written).endsWith("A=1, B=2"));
+
+        journal.close();
+    }
+
+    @Test
+    public void testReplaysDropDefinitiveRejections() throws Exception {
+        WriteJournal journal = open(Size);
+        offer(journal, write("A", 1), write("B", 2));
+
+        writeStatus.set(new StatusCode(StatusCodes.Bad_NodeIdUnknown));
+        connected.set(true);
+
+        awaitDepth(journal, 0);
+
+        assertEquals("A=1, B=2", describe(written));
+
+        journal.close();
+    }
+
+    private WriteJournal open(int size) throws Exception {
+        written.clear();
+
+        BiConsumer<List<WriteValue>, CompletableFuture<List<StatusCode>>> writer = (values, future) -> {
+            StatusCode status = writeStatus.get();
+
+            written.addAll(values);
+            future.complete(Collections.nCopies(values.size(), status));
+        };
+
+        return new WriteJournal(connection, path, size, 1000, scheduler, writer);
+    }
+
+    private static List<StatusCode> offer(WriteJournal journal, WriteValue... values) throws Exception {
+        CompletableFuture<List<StatusCode>> future = new CompletableFuture<>();
+
+        assertTrue(journal.offer(Arrays.asList(values), future));
+
+        return future.get(1, TimeUnit.SECONDS);
+    }
+
+    private void awaitWrites(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (written.size() < count && System.currentTimeMillis() < deadline) Thread.sleep(10);
+
+        assertTrue("timed out waiting for " + count + " write(s)", written.size() >= count);
+    }
+
+    private static void awaitDepth(WriteJournal journal, int depth) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (journal.getDepth() != depth && System.currentTimeMillis() < deadline) Thread.sleep(10);
+
+        assertEquals(depth, journal.getDepth());
+    }
+
+    private static WriteValue write(String node, int value) {
+        return new WriteValue(
+                new NodeId(2, "[journal-test]" + node),
+                Attributes.Value,
+                null,
+                new DataValue(new Variant(value)));
+    }
+
+    private static String describe(List<WriteValue> values) {
+        return values.stream()
+                .map(v -> ((String) v.getNodeId().getValue()).substring("[journal-test]".length()) +
+                        "=" + v.getValue().getValue().getValue())
+                .collect(Collectors.joining(", "));
+    }
+
+    private static int readInt(FileChannel channel, int position) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        channel.read(buffer, position);
+        buffer.flip();
+        return buffer.getInt();
+    }
+
+    private static void writeInt(FileChannel channel, int position, int value) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(value).flip();
+        channel.write(buffer, position);
+    }
+
+}
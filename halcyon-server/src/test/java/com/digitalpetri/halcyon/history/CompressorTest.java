@@ -0,0 +1,198 @@
+package com.digitalpetri.halcyon.history;
+
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompressorTest {
+
+    private static final int Good = 0x00000000;
+    private static final int Bad = 0x80000000;
+
+    @Test
+    public void testSwingingDoorRamp() {
+        Compressor compressor = Compressor.swingingDoor(1.0);
+
+        List<HistoryValue> archived = offer(compressor, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
+
+        // A straight line needs only its end points.
+        assertEquals("0=0.0, 10=10.0", describe(archived));
+    }
+
+    @Test
+    public void testSwingingDoorStep() {
+        Compressor compressor = Compressor.swingingDoor(1.0);
+
+        List<HistoryValue> archived = offer(compressor, 0, 0, 0, 10, 10, 10);
+
+        assertEquals("0=0.0, 2=0.0, 3=10.0, 5=10.0", describe(archived));
+    }
+
+    @Test
+    public void testSwingingDoorNoiseWithinDeviation() {
+        Compressor compressor = Compressor.swingingDoor(1.0);
+
+        List<HistoryValue> archived = offer(compressor, 0, 0.5, -0.5, 0.5);
+
+        assertEquals("0=0.0, 3=0.5", describe(archived));
+    }
+
+    @Test
+    public void testSwingingDoorZeroDeviationKeepsEveryBend() {
+        Compressor compressor = Compressor.swingingDoor(0.0);
+
+        List<HistoryValue> archived = offer(compressor, 0, 1, 2, 2, 2, 1);
+
+        assertEquals("0=0.0, 2=2.0, 4=2.0, 5=1.0", describe(archived));
+    }
+
+    @Test
+    public void testSwingingDoorReconstructsRandomWalk() {
+        double deviation = 0.5;
+
+        Compressor compressor = Compressor.swingingDoor(deviation);
+
+        Random random = new Random(42);
+        double[] values = new double[10000];
+        for (int i = 1; i < values.length; i++) {
+            values[i] = values[i - 1] + random.nextGaussian() * 0.2;
+        }
+
+        List<HistoryValue> archived = offer(compressor, values);
+
+        assertEquals(0L, archived.get(0).getTime());
+        assertEquals(values.length - 1, archived.get(archived.size() - 1).getTime());
+        assertTrue("expected compression, archived " + archived.size(), archived.size() < values.length / 3);
+
+        // Each archived segment starts a line that passes within the deviation of every sample up to the next archived
+        // point; joining the archived points themselves stays within twice that.
+        for (int i = 1; i < archived.size(); i++) {
+            HistoryValue a = archived.get(i - 1);
+            HistoryValue b = archived.get(i);
+
+            for (long t = a.getTime(); t <= b.getTime(); t++) {
+                double interpolated = a.getValue() +
+                        (b.getValue() - a.getValue()) * (t - a.getTime()) / (b.getTime() - a.getTime());
+
+                assertTrue("t=" + t, Math.abs(interpolated - values[(int) t]) <= 2 * deviation + 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testDeadband() {
+        Compressor compressor = Compressor.deadband(1.0);
+
+        List<HistoryValue> archived = Lists.newArrayList();
+
+        double[] values = {0, 0.5, 1.0, 1.5, 1.2};
+        for (int i = 0; i < values.length; i++) {
+            compressor.offer(i, values[i], Good, archiver(archived));
+        }
+
+        // Compared against the last archived value, not the last sample, so slow drift is still caught.
+        assertEquals("0=0.0, 3=1.5", describe(archived));
+
+        HistoryValue pending = compressor.getPending();
+        assertEquals(4L, pending.getTime());
+        assertEquals(1.2, pending.getValue(), 0.0);
+
+        compressor.offer(5, 3.0, Good, archiver(archived));
+
+        assertEquals("0=0.0, 3=1.5, 5=3.0", describe(archived));
+        assertNull(compressor.getPending());
+    }
+
+    @Test
+    public void testNoneArchivesEverything() {
+        Compressor compressor = Compressor.create("none", 0.0);
+
+        List<HistoryValue> archived = offer(compressor, 1, 1, 1, 2);
+
+        assertEquals("0=1.0, 1=1.0, 2=1.0, 3=2.0", describe(archived));
+    }
+
+    @Test
+    public void testStatusChangeArchivesSampleBeforeIt() {
+        for (Compressor compressor : new Compressor[]{Compressor.swingingDoor(1.0), Compressor.deadband(1.0)}) {
+            List<HistoryValue> archived = Lists.newArrayList();
+
+            compressor.offer(0, 0.0, Good, archiver(archived));
+            compressor.offer(1, 0.1, Good, archiver(archived));
+            compressor.offer(2, 0.2, Good, archiver(archived));
+            compressor.offer(3, 0.2, Bad, archiver(archived));
+            compressor.offer(4, 0.2, Bad, archiver(archived));
+            compressor.offer(5, 0.2, Good, archiver(archived));
+
+            assertEquals("0=0.0, 2=0.2, 3=0.2!, 4=0.2!, 5=0.2", describe(archived));
+        }
+    }
+
+    @Test
+    public void testNaNTransitionsAreArchived() {
+        // Swinging door keeps the last NaN before a number so the gap's end is known...
+        List<HistoryValue> swingingDoor = offer(Compressor.swingingDoor(1.0), 1.0, Double.NaN, Double.NaN, 1.0);
+
+        assertEquals("0=1.0, 1=NaN, 2=NaN, 3=1.0", describe(swingingDoor));
+
+        // ...while deadband only compares against the last archived value.
+        List<HistoryValue> deadband = offer(Compressor.deadband(1.0), 1.0, Double.NaN, Double.NaN, 1.0);
+
+        assertEquals("0=1.0, 1=NaN, 3=1.0", describe(deadband));
+    }
+
+    @Test
+    public void testOutOfOrderSamplesAreIgnored() {
+        Compressor compressor = Compressor.deadband(1.0);
+
+        List<HistoryValue> archived = Lists.newArrayList();
+
+        compressor.offer(10, 0.0, Good, archiver(archived));
+        compressor.offer(5, 100.0, Good, archiver(archived));
+        compressor.offer(10, 100.0, Good, archiver(archived));
+        compressor.flush(archiver(archived));
+
+        assertEquals("10=0.0", describe(archived));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownCompression() {
+        Compressor.create("lossy", 1.0);
+    }
+
+    /**
+     * Offer {@code values} at times 0, 1, 2... with a Good status, then flush.
+     */
+    private static List<HistoryValue> offer(Compressor compressor, double... values) {
+        List<HistoryValue> archived = Lists.newArrayList();
+
+        for (int i = 0; i < values.length; i++) {
+            compressor.offer(i, values[i], Good, archiver(archived));
+        }
+
+        compressor.flush(archiver(archived));
+
+        return archived;
+    }
+
+    private static Compressor.Archiver archiver(List<HistoryValue> archived) {
+        return (time, value, status) -> archived.add(new HistoryValue(time, value, status));
+    }
+
+    /**
+     * @return "time=value" for each sample, with a trailing "!" if its status is Bad.
+     */
+    private static String describe(List<HistoryValue> values) {
+        return values.stream()
+                .map(v -> v.getTime() + "=" + v.getValue() + (v.getStatus() != Good ? "!" : ""))
+                .collect(Collectors.joining(", "));
+    }
+
+}
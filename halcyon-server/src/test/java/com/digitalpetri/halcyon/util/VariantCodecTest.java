@@ -0,0 +1,225 @@
+package com.digitalpetri.halcyon.util;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import org.junit.Test;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.QualifiedName;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.UnsignedByte;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.builtintypes.UnsignedLong;
+import org.opcfoundation.ua.builtintypes.UnsignedShort;
+import org.opcfoundation.ua.builtintypes.Variant;
+import org.opcfoundation.ua.core.StatusCodes;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class VariantCodecTest {
+
+    @Test
+    public void testScalars() {
+        assertRoundTrip(null);
+        assertRoundTrip(true);
+        assertRoundTrip(false);
+        assertRoundTrip((byte) -7);
+        assertRoundTrip((short) -1234);
+        assertRoundTrip(Integer.MIN_VALUE);
+        assertRoundTrip(Long.MAX_VALUE);
+        assertRoundTrip(3.14f);
+        assertRoundTrip(Double.NaN);
+        assertRoundTrip(-6.28d);
+        assertRoundTrip("");
+        assertRoundTrip("Hello, world!");
+        assertRoundTrip("été 温度 🌡");
+        assertRoundTrip(new UnsignedByte(255));
+        assertRoundTrip(new UnsignedShort(65535));
+        assertRoundTrip(UnsignedInteger.getFromBits(0xFFFFFFFF));
+        assertRoundTrip(new UnsignedLong("18446744073709551615"));
+        assertRoundTrip(UUID.randomUUID());
+        assertRoundTrip(new NodeId(2, "[connection]Tag"));
+        assertRoundTrip(new QualifiedName(3, "Name"));
+
+        byte[] bytes = {0, 1, -1, 127, -128};
+        assertArrayEquals(bytes, (byte[]) roundTrip(bytes));
+
+        DateTime time = DateTime.fromMillis(1400000000123L);
+        assertEquals(time.getMilliSeconds(), ((DateTime) roundTrip(time)).getMilliSeconds());
+
+        StatusCode status = new StatusCode(StatusCodes.Bad_Timeout);
+        assertEquals(status.getValue(), ((StatusCode) roundTrip(status)).getValue());
+    }
+
+    @Test
+    public void testPrimitiveArrays() {
+        assertArrayEquals(new int[]{1, -2, 3}, (int[]) roundTrip(new int[]{1, -2, 3}));
+        assertArrayEquals(new long[]{Long.MIN_VALUE, 0L}, (long[]) roundTrip(new long[]{Long.MIN_VALUE, 0L}));
+        assertArrayEquals(new double[]{1.5, -2.5}, (double[]) roundTrip(new double[]{1.5, -2.5}), 0.0);
+        assertArrayEquals(new float[]{0.25f}, (float[]) roundTrip(new float[]{0.25f}), 0.0f);
+        assertArrayEquals(new short[]{-1, 1}, (short[]) roundTrip(new short[]{-1, 1}));
+        assertArrayEquals(new int[0], (int[]) roundTrip(new int[0]));
+
+        boolean[] booleans = (boolean[]) roundTrip(new boolean[]{true, false, true});
+        assertEquals(3, booleans.length);
+        assertEquals(true, booleans[0]);
+        assertEquals(false, booleans[1]);
+        assertEquals(true, booleans[2]);
+    }
+
+    @Test
+    public void testObjectArrays() {
+        Object[] strings = new String[]{"a", null, "c"};
+        assertArrayEquals(strings, (Object[]) roundTrip(strings));
+
+        Object[] integers = new Integer[]{1, null, 3};
+        assertArrayEquals(integers, (Object[]) roundTrip(integers));
+
+        Object[] nodeIds = new NodeId[]{
+                new NodeId(1, "a"),
+                new NodeId(2, UnsignedInteger.getFromBits(42)),
+                new NodeId(3, UUID.randomUUID())
+        };
+        assertArrayEquals(nodeIds, (Object[]) roundTrip(nodeIds));
+
+        assertEquals(String[].class, roundTrip(new String[0]).getClass());
+    }
+
+    @Test
+    public void testNodeIds() {
+        NodeId[] nodeIds = new NodeId[]{
+                new NodeId(0, UnsignedInteger.getFromBits(85)),
+                new NodeId(2, UnsignedInteger.getFromBits(0xFFFFFFFF)),
+                new NodeId(2, "[connection]Folder/Tag"),
+                new NodeId(65535, UUID.randomUUID()),
+                new NodeId(4, new byte[]{1, 2, 3})
+        };
+
+        for (NodeId nodeId : nodeIds) {
+            ByteBuffer buffer = ByteBuffer.allocate(1024);
+            VariantCodec.encodeNodeId(nodeId, buffer);
+            buffer.flip();
+
+            NodeId decoded = VariantCodec.decodeNodeId(buffer);
+            assertFalse(buffer.hasRemaining());
+
+            assertEquals(nodeId.getNamespaceIndex(), decoded.getNamespaceIndex());
+
+            if (nodeId.getValue() instanceof byte[]) {
+                assertArrayEquals((byte[]) nodeId.getValue(), (byte[]) decoded.getValue());
+            } else {
+                assertEquals(nodeId.getValue(), decoded.getValue());
+            }
+        }
+    }
+
+    @Test
+    public void testStrings() {
+        for (String s : new String[]{null, "", "abc", "é温"}) {
+            ByteBuffer buffer = ByteBuffer.allocate(1024);
+            VariantCodec.encodeString(s, buffer);
+            buffer.flip();
+
+            assertEquals(s, VariantCodec.decodeString(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+    }
+
+    @Test
+    public void testDataValues() {
+        DataValue value = new DataValue(
+                new Variant(42.5d),
+                new StatusCode(StatusCodes.Good_CompletesAsynchronously),
+                DateTime.fromMillis(1400000000123L),
+                DateTime.fromMillis(1400000000456L));
+
+        DataValue decoded = roundTrip(value);
+
+        assertEquals(42.5d, decoded.getValue().getValue());
+        assertEquals(value.getStatusCode().getValue(), decoded.getStatusCode().getValue());
+        assertEquals(1400000000123L, decoded.getSourceTimestamp().getMilliSeconds());
+        assertEquals(1400000000456L, decoded.getServerTimestamp().getMilliSeconds());
+
+        DataValue empty = roundTrip(new DataValue(new Variant(null), StatusCode.GOOD, null, null));
+
+        assertNull(empty.getValue().getValue());
+        assertEquals(StatusCode.GOOD.getValue(), empty.getStatusCode().getValue());
+        assertNull(empty.getSourceTimestamp());
+        assertNull(empty.getServerTimestamp());
+    }
+
+    @Test
+    public void testUnsupportedTypesAreRejected() {
+        for (Object value : new Object[]{new Object(), new int[][]{{1}}, new Object[]{"a"}, new char[]{'a'}}) {
+            try {
+                VariantCodec.encodeValue(value, ByteBuffer.allocate(1024));
+                fail("expected IllegalArgumentException for " + value.getClass());
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testTruncatedBuffersAreRejected() {
+        Object[] values = new Object[]{
+                "Hello, world!",
+                Long.MAX_VALUE,
+                new int[]{1, 2, 3},
+                new String[]{"a", "b"},
+                new NodeId(2, "[connection]Tag"),
+                new byte[]{1, 2, 3}
+        };
+
+        for (Object value : values) {
+            ByteBuffer buffer = ByteBuffer.allocate(1024);
+            VariantCodec.encodeValue(value, buffer);
+            buffer.flip();
+
+            for (int length = 0; length < buffer.limit(); length++) {
+                ByteBuffer truncated = buffer.duplicate();
+                truncated.limit(length);
+
+                try {
+                    VariantCodec.decodeValue(truncated);
+                    fail("expected IllegalArgumentException decoding " + length + " bytes of " + value.getClass());
+                } catch (IllegalArgumentException expected) {
+                    // expected
+                }
+            }
+        }
+    }
+
+    private static void assertRoundTrip(Object value) {
+        assertEquals(value, roundTrip(value));
+    }
+
+    private static Object roundTrip(Object value) {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        VariantCodec.encodeValue(value, buffer);
+        buffer.flip();
+
+        Object decoded = VariantCodec.decodeValue(buffer);
+        assertFalse(buffer.hasRemaining());
+
+        return decoded;
+    }
+
+    private static DataValue roundTrip(DataValue value) {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        VariantCodec.encodeDataValue(value, buffer);
+        buffer.flip();
+
+        DataValue decoded = VariantCodec.decodeDataValue(buffer);
+        assertFalse(buffer.hasRemaining());
+
+        return decoded;
+    }
+
+}